@@ -0,0 +1,241 @@
+package com.schlaikjer.music.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.schlaikjer.music.utility.LibraryPaths;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the directory table in step with the track and image tables through a sync.
+ * <p>
+ * Every record written is filed under a directory row for its parent path, created along with any
+ * missing ancestors. Directories whose contents changed are remembered, and once the records are
+ * in, {@link #refresh} redoes the totals and cover for those and their ancestors from the deepest
+ * up. That only ever touches the part of the tree a sync changed, and since totals are recounted
+ * rather than adjusted, they can't drift from the tables they summarize.
+ */
+class DirectoryTree {
+
+    static final long NO_DIRECTORY = -1;
+
+    private static final String TRACKS = TrackDatabaseHelper.TracksTable.TABLE_NAME;
+    private static final String IMAGES = TrackDatabaseHelper.ImagesTable.TABLE_NAME;
+    private static final String DIRECTORIES = TrackDatabaseHelper.DirectoryTable.TABLE_NAME;
+
+    private final SQLiteDatabase database;
+    private final SQLiteStatement findDirectory;
+    private final SQLiteStatement insertDirectory;
+    private final SQLiteStatement updateDirectory;
+    private final SQLiteStatement deleteEmptyDirectory;
+
+    // Directory ids by path, both as the server reports them and normalized
+    private final Map<String, Long> ids = new HashMap<>();
+    private final Map<Long, String> paths = new HashMap<>();
+    // Directories whose contents have changed since the last refresh
+    private final Set<Long> dirty = new HashSet<>();
+
+    DirectoryTree(SQLiteDatabase database) {
+        this.database = database;
+        this.findDirectory = database.compileStatement("SELECT IFNULL((SELECT " + TrackDatabaseHelper.DirectoryTable._ID + " FROM " + DIRECTORIES +
+                " WHERE " + TrackDatabaseHelper.DirectoryTable.COLUMN_PATH + " = ?), " + NO_DIRECTORY + ")");
+        this.insertDirectory = database.compileStatement("INSERT INTO " + DIRECTORIES + " (" +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + ", " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_NAME + ", " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_PATH + ", " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + ", " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_SIZE_BYTES + ") VALUES (?, ?, ?, 0, 0)");
+
+        // Totals are whatever is directly in the directory plus the totals of its children, so the
+        // children must be up to date first. The cover is the first image in the directory itself,
+        // or failing that the cover of the first child that has one
+        this.updateDirectory = database.compileStatement("UPDATE " + DIRECTORIES + " SET " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + " = " +
+                "(SELECT COUNT(*) FROM " + TRACKS + " WHERE " + TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID + " = ?1) + " +
+                "(SELECT IFNULL(SUM(" + TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + "), 0) FROM " + DIRECTORIES + " WHERE " + TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " = ?1), " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_SIZE_BYTES + " = " +
+                "(SELECT IFNULL(SUM(" + TrackDatabaseHelper.TracksTable.COLUMN_SIZE_BYTES + "), 0) FROM " + TRACKS + " WHERE " + TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID + " = ?1) + " +
+                "(SELECT IFNULL(SUM(" + TrackDatabaseHelper.DirectoryTable.COLUMN_SIZE_BYTES + "), 0) FROM " + DIRECTORIES + " WHERE " + TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " = ?1), " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + " = COALESCE(" +
+                "(SELECT " + TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM + " FROM " + IMAGES + " WHERE " + TrackDatabaseHelper.ImagesTable.COLUMN_DIRECTORY_ID + " = ?1 ORDER BY " + TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH + " LIMIT 1), " +
+                "(SELECT " + TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + " FROM " + DIRECTORIES + " WHERE " + TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " = ?1 AND " + TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + " IS NOT NULL ORDER BY " + TrackDatabaseHelper.DirectoryTable.COLUMN_NAME + " LIMIT 1)) " +
+                "WHERE " + TrackDatabaseHelper.DirectoryTable._ID + " = ?1");
+
+        // With no tracks or images anywhere below it, nothing refers to a directory any more. The
+        // root is kept regardless
+        this.deleteEmptyDirectory = database.compileStatement("DELETE FROM " + DIRECTORIES + " WHERE " +
+                TrackDatabaseHelper.DirectoryTable._ID + " = ? AND " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + " = 0 AND " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + " IS NULL AND " +
+                TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " IS NOT NULL");
+    }
+
+    /**
+     * Find the directory for a record's parent path, creating it and its ancestors if need be, and
+     * note that its contents are changing. Must be called inside a transaction.
+     */
+    long fileUnder(String parentPath) {
+        long id = resolve(parentPath);
+        dirty.add(id);
+        return id;
+    }
+
+    /**
+     * Note that a record has left a directory.
+     */
+    void removedFrom(long id) {
+        if (id != NO_DIRECTORY) {
+            dirty.add(id);
+        }
+    }
+
+    /**
+     * Note that every directory needs recounting, e.g. because an earlier sync was cut off before
+     * it could refresh them.
+     */
+    void invalidateAll() {
+        Cursor c = database.rawQuery("SELECT " + TrackDatabaseHelper.DirectoryTable._ID + " FROM " + DIRECTORIES, null);
+        while (c.moveToNext()) {
+            dirty.add(c.getLong(0));
+        }
+        c.close();
+    }
+
+    private long resolve(String parentPath) {
+        Long id = ids.get(parentPath);
+        if (id != null) {
+            return id;
+        }
+
+        String path = LibraryPaths.normalize(parentPath);
+        long found = find(path);
+        if (found == NO_DIRECTORY) {
+            if (path.isEmpty()) {
+                insertDirectory.bindNull(1);
+            } else {
+                insertDirectory.bindLong(1, resolve(LibraryPaths.parent(path)));
+            }
+            insertDirectory.bindString(2, LibraryPaths.name(path));
+            insertDirectory.bindString(3, path);
+            found = insertDirectory.executeInsert();
+            ids.put(path, found);
+            paths.put(found, path);
+        }
+        ids.put(parentPath, found);
+        return found;
+    }
+
+    private long find(String path) {
+        Long id = ids.get(path);
+        if (id != null) {
+            return id;
+        }
+        findDirectory.bindString(1, path);
+        long found = findDirectory.simpleQueryForLong();
+        if (found != NO_DIRECTORY) {
+            ids.put(path, found);
+            paths.put(found, path);
+        }
+        return found;
+    }
+
+    /**
+     * Recount every directory whose contents changed, and their ancestors, committing every
+     * batchSize directories. Must be called outside a transaction.
+     */
+    void refresh(int batchSize) {
+        // Gather the ancestors too, each with its depth
+        Map<Long, Integer> depths = new HashMap<>();
+        Deque<Long> pending = new ArrayDeque<>(dirty);
+        while (!pending.isEmpty()) {
+            long id = pending.pop();
+            if (depths.containsKey(id)) {
+                continue;
+            }
+            String path = pathOf(id);
+            if (path == null) {
+                // Created in a transaction that was rolled back
+                continue;
+            }
+            depths.put(id, depth(path));
+            if (!path.isEmpty()) {
+                long parent = find(LibraryPaths.parent(path));
+                if (parent != NO_DIRECTORY) {
+                    pending.push(parent);
+                }
+            }
+        }
+
+        List<Long> order = new ArrayList<>(depths.keySet());
+        order.sort((a, b) -> Integer.compare(depths.get(b), depths.get(a)));
+
+        int batchRows = 0;
+        for (long id : order) {
+            if (batchRows == 0) {
+                database.beginTransactionNonExclusive();
+            }
+            updateDirectory.bindLong(1, id);
+            updateDirectory.executeUpdateDelete();
+            deleteEmptyDirectory.bindLong(1, id);
+            if (deleteEmptyDirectory.executeUpdateDelete() > 0) {
+                ids.values().removeIf(value -> value == id);
+                paths.remove(id);
+            }
+            if (++batchRows >= batchSize) {
+                database.setTransactionSuccessful();
+                database.endTransaction();
+                batchRows = 0;
+            }
+        }
+        if (batchRows > 0) {
+            database.setTransactionSuccessful();
+            database.endTransaction();
+        }
+        dirty.clear();
+    }
+
+    private String pathOf(long id) {
+        String path = paths.get(id);
+        if (path != null) {
+            return path;
+        }
+        Cursor c = database.rawQuery("SELECT " + TrackDatabaseHelper.DirectoryTable.COLUMN_PATH + " FROM " + DIRECTORIES +
+                " WHERE " + TrackDatabaseHelper.DirectoryTable._ID + " = ?", new String[]{String.valueOf(id)});
+        if (c.moveToFirst()) {
+            path = c.getString(0);
+            paths.put(id, path);
+        }
+        c.close();
+        return path;
+    }
+
+    private static int depth(String path) {
+        if (path.isEmpty()) {
+            return 0;
+        }
+        int depth = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    void close() {
+        findDirectory.close();
+        insertDirectory.close();
+        updateDirectory.close();
+        deleteEmptyDirectory.close();
+    }
+
+}
@@ -5,17 +5,27 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.google.protobuf.ByteString;
 import com.schlaikjer.msgs.TrackOuterClass;
 import com.schlaikjer.music.model.Album;
 import com.schlaikjer.music.model.CacheEntry;
+import com.schlaikjer.music.model.SyncResult;
 import com.schlaikjer.music.model.Track;
+import com.schlaikjer.music.utility.LibraryPaths;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
 
 public class TrackDatabase {
 
@@ -23,43 +33,522 @@ public class TrackDatabase {
 
     private static volatile TrackDatabase instance;
 
+    // Rows written per transaction while syncing, so that readers are never kept waiting for long
+    private static final int SYNC_BATCH_ROWS = 500;
+    // Page cache for the length of a bulk load, in KiB when negative as SQLite takes it
+    private static final int BULK_CACHE_SIZE = -8 * 1024;
+    // Directories per cover candidate query, to keep the statement a sensible size
+    private static final int COVER_QUERY_DIRECTORIES = 500;
+
+    private final Context appContext;
     private TrackDatabaseHelper helper;
+    // Which kind of full text table the search index is, once we have looked
+    private volatile Boolean searchUsesFts5;
 
     public static TrackDatabase getInstance(Context context) {
-        if (instance == null) {
+        // The application only changes between unit tests, each of which has its own files
+        Context appContext = context.getApplicationContext();
+        TrackDatabase current = instance;
+        if (current == null || current.appContext != appContext) {
             synchronized (TrackDatabase.class) {
-                if (instance == null) {
-                    instance = new TrackDatabase(context);
+                if (instance == null || instance.appContext != appContext) {
+                    instance = new TrackDatabase(appContext);
                 }
+                current = instance;
             }
         }
-        return instance;
+        return current;
+    }
+
+    private TrackDatabase(Context appContext) {
+        this.appContext = appContext;
+        this.helper = new TrackDatabaseHelper(appContext);
     }
 
-    private TrackDatabase(Context context) {
-        this.helper = new TrackDatabaseHelper(context);
+    public SyncResult setDatabase(TrackOuterClass.MusicDatabase db) {
+        Replacement replacement = beginReplacement();
+        replacement.addTracks(db.getTracksList());
+        replacement.addImages(db.getImagesList());
+        return replacement.commit();
     }
 
-    public void setDatabase(TrackOuterClass.MusicDatabase db) {
+    /**
+     * Start bringing the track and image tables in line with a new data set that arrives in
+     * batches. Records are diffed by checksum against what is already stored, and only the rows
+     * that differ are written, a bounded number per transaction so that readers are never held up
+     * for long. Rows missing from the new data set are deleted on commit. Readers may see a mix of
+     * old and new rows until then.
+     * <p>
+     * No transaction is left open between calls, so they may come from different threads, but
+     * only one at a time. Committing can take a while, since it rebuilds indexes and recounts
+     * directories, so it shouldn't be done on a thread that has to stay responsive.
+     */
+    public Replacement beginReplacement() {
         SQLiteDatabase database = helper.getWritableDatabase();
-        database.beginTransaction();
+        return new Replacement(database, loadTrackFingerprints(database), loadImageFingerprints(database));
+    }
 
-        // Delete old track/image info
-        database.delete(TrackDatabaseHelper.TracksTable.TABLE_NAME, null, null);
-        database.delete(TrackDatabaseHelper.ImagesTable.TABLE_NAME, null, null);
+    public class Replacement {
+        private final SyncWriter writer;
+        // Rows that were stored before the sync started and haven't been seen in it yet
+        private final Map<ByteBuffer, Long> unseenTracks;
+        private final Map<ByteBuffer, Long> unseenImages;
+
+        private Replacement(SQLiteDatabase database, Map<ByteBuffer, Long> tracks, Map<ByteBuffer, Long> images) {
+            // Loading into an empty library is the first sync, and the biggest by far
+            this.writer = new SyncWriter(database, tracks.isEmpty());
+            this.unseenTracks = tracks;
+            this.unseenImages = images;
+        }
 
-        // Insert the new data set
-        for (TrackOuterClass.Track track : db.getTracksList()) {
-            addTrack(database, track);
+        public void addTracks(Iterable<TrackOuterClass.Track> tracks) {
+            for (TrackOuterClass.Track track : tracks) {
+                writer.putTrack(track, unseenTracks.remove(ByteBuffer.wrap(track.getChecksum().toByteArray())));
+            }
+            writer.commitBatch();
         }
-        for (TrackOuterClass.Image image : db.getImagesList()) {
-            addImage(database, image);
+
+        public void addImages(Iterable<TrackOuterClass.Image> images) {
+            for (TrackOuterClass.Image image : images) {
+                writer.putImage(image, unseenImages.remove(ByteBuffer.wrap(image.getChecksum().toByteArray())));
+            }
+            writer.commitBatch();
         }
 
-        database.setTransactionSuccessful();
-        database.endTransaction();
+        public SyncResult commit() {
+            // Anything we haven't been sent is gone from the server
+            for (ByteBuffer checksum : unseenTracks.keySet()) {
+                writer.deleteTrack(checksum.array());
+            }
+            for (ByteBuffer checksum : unseenImages.keySet()) {
+                writer.deleteImage(checksum.array());
+            }
+            SyncResult result = writer.finish();
 
-        Log.d(TAG, "Database update completed with " + db.getTracksCount() + " tracks, " + db.getImagesCount() + " images.");
+            Log.d(TAG, "Database update completed with " + result);
+            return result;
+        }
+
+        public void abort() {
+            // Batches already committed stay, which is harmless: they hold the server's current
+            // records, and the next sync diffs against them like anything else
+            SyncResult result = writer.abandon();
+
+            Log.w(TAG, "Database update abandoned after " + result);
+        }
+    }
+
+    public SyncResult applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta delta) {
+        // Server couldn't go back far enough, so this is a fresh snapshot
+        if (delta.getFull()) {
+            Replacement replacement = beginReplacement();
+            replacement.addTracks(delta.getAddedTracksList());
+            replacement.addImages(delta.getAddedImagesList());
+            return replacement.commit();
+        }
+
+        SQLiteDatabase database = helper.getWritableDatabase();
+        SyncWriter writer = new SyncWriter(database, false);
+
+        // Drop removed records
+        for (ByteString checksum : delta.getRemovedTrackChecksumsList()) {
+            writer.deleteTrack(checksum.toByteArray());
+        }
+        for (ByteString checksum : delta.getRemovedImageChecksumsList()) {
+            writer.deleteImage(checksum.toByteArray());
+        }
+
+        // Upsert new and changed records
+        for (TrackOuterClass.Track track : delta.getAddedTracksList()) {
+            writer.putTrack(track, findTrackFingerprint(database, track.getChecksum().toByteArray()));
+        }
+        for (TrackOuterClass.Image image : delta.getAddedImagesList()) {
+            writer.putImage(image, findImageFingerprint(database, image.getChecksum().toByteArray()));
+        }
+
+        SyncResult result = writer.finish();
+        Log.d(TAG, "Database delta to generation " + delta.getGeneration() + " applied with " + result);
+        return result;
+    }
+
+    /**
+     * Writes sync changes in transactions of at most SYNC_BATCH_ROWS rows, and counts them. Rows go
+     * through statements compiled once per writer rather than a ContentValues insert each, and are
+     * filed in the directory tree, which is recounted wherever it changed once the writer is done.
+     * <p>
+     * A bulk writer is for loading into an empty library. It drops the secondary track indexes and
+     * search triggers and relaxes durability for the length of the load, and rebuilds and restores
+     * them when finished or abandoned. If the process dies part way through, the missing indexes
+     * are the record of it: the next writer finds them gone, and puts them back, reindexes search
+     * and recounts every directory before doing anything else.
+     */
+    private class SyncWriter {
+        private final SQLiteDatabase database;
+        private final boolean bulk;
+        private final SQLiteStatement insertTrack;
+        private final SQLiteStatement insertImage;
+        private final SQLiteStatement deleteTrack;
+        private final SQLiteStatement deleteImage;
+        private final SQLiteStatement findTrackDirectory;
+        private final SQLiteStatement findImageDirectory;
+        private final DirectoryTree directories;
+        private final SyncResult result = new SyncResult();
+        private int batchRows = 0;
+        // Connection settings to put back after a bulk load
+        private long savedSynchronous;
+        private long savedCacheSize;
+
+        private SyncWriter(SQLiteDatabase database, boolean bulk) {
+            this.database = database;
+            this.bulk = bulk;
+            this.insertTrack = compileInsert(TrackDatabaseHelper.TracksTable.TABLE_NAME, new String[]{
+                    TrackDatabaseHelper.TracksTable.COLUMN_RAW_PATH, TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH, TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM,
+                    TrackDatabaseHelper.TracksTable.COLUMN_TAG_TITLE, TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST, TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM,
+                    TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR, TrackDatabaseHelper.TracksTable.COLUMN_TAG_COMMENT, TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK,
+                    TrackDatabaseHelper.TracksTable.COLUMN_TAG_GENRE, TrackDatabaseHelper.TracksTable.COLUMN_SIZE_BYTES, TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID
+            });
+            this.insertImage = compileInsert(TrackDatabaseHelper.ImagesTable.TABLE_NAME, new String[]{
+                    TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH, TrackDatabaseHelper.ImagesTable.COLUMN_PARENT_PATH, TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM,
+                    TrackDatabaseHelper.ImagesTable.COLUMN_SIZE_BYTES, TrackDatabaseHelper.ImagesTable.COLUMN_DIRECTORY_ID
+            });
+            this.deleteTrack = database.compileStatement("DELETE FROM " + TrackDatabaseHelper.TracksTable.TABLE_NAME + " WHERE " + TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM + " = ?");
+            this.deleteImage = database.compileStatement("DELETE FROM " + TrackDatabaseHelper.ImagesTable.TABLE_NAME + " WHERE " + TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM + " = ?");
+            this.findTrackDirectory = compileFindDirectory(TrackDatabaseHelper.TracksTable.TABLE_NAME);
+            this.findImageDirectory = compileFindDirectory(TrackDatabaseHelper.ImagesTable.TABLE_NAME);
+            this.directories = new DirectoryTree(database);
+
+            // An earlier bulk load was cut off. Its rows are committed, so the retry won't be a
+            // bulk load and wouldn't otherwise put things back
+            if (TrackDatabaseHelper.isMissingBulkLoadIndexes(database)) {
+                Log.w(TAG, "Repairing indexes after an interrupted bulk load");
+                restoreIndexes();
+                directories.invalidateAll();
+            }
+
+            if (bulk) {
+                savedSynchronous = queryPragma("synchronous");
+                savedCacheSize = queryPragma("cache_size");
+                // Nothing reads the new rows until the load is done, so there is no need to sync
+                // the log on every batch commit. Under WAL, a crash can then lose the last batches
+                // but never corrupt the database. A bigger page cache saves rereading the b-tree
+                // as it grows
+                database.execSQL("PRAGMA synchronous = NORMAL");
+                database.execSQL("PRAGMA cache_size = " + BULK_CACHE_SIZE);
+                TrackDatabaseHelper.dropTrackIndexes(database);
+                TrackDatabaseHelper.dropSearchTriggers(database);
+            }
+        }
+
+        private SQLiteStatement compileInsert(String table, String[] columns) {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            return database.compileStatement("INSERT OR REPLACE INTO " + table + " (" + String.join(", ", columns) + ") VALUES (" + placeholders + ")");
+        }
+
+        // Directory of the stored record with a given checksum, or NO_DIRECTORY if there is none.
+        // Both tables name their columns alike
+        private SQLiteStatement compileFindDirectory(String table) {
+            return database.compileStatement("SELECT IFNULL((SELECT " + TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID + " FROM " + table +
+                    " WHERE " + TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM + " = ?), " + DirectoryTree.NO_DIRECTORY + ")");
+        }
+
+        private long findDirectory(SQLiteStatement statement, byte[] checksum) {
+            statement.bindBlob(1, checksum);
+            return statement.simpleQueryForLong();
+        }
+
+        // existingFingerprint is that of the stored row with the same checksum, or null if none
+        void putTrack(TrackOuterClass.Track track, Long existingFingerprint) {
+            if (existingFingerprint != null && existingFingerprint == trackFingerprint(track)) {
+                result.unchanged++;
+                return;
+            }
+            beginWrite();
+            byte[] checksum = track.getChecksum().toByteArray();
+            if (existingFingerprint != null) {
+                // It may be moving out of another directory
+                directories.removedFrom(findDirectory(findTrackDirectory, checksum));
+            }
+            insertTrack.bindString(1, track.getRawPath());
+            insertTrack.bindString(2, track.getParentPath());
+            insertTrack.bindBlob(3, checksum);
+            insertTrack.bindString(4, track.getTagTitle());
+            insertTrack.bindString(5, track.getTagArtist());
+            insertTrack.bindString(6, track.getTagAlbum());
+            insertTrack.bindLong(7, track.getTagYear());
+            insertTrack.bindString(8, track.getTagComment());
+            insertTrack.bindLong(9, track.getTagTrack());
+            insertTrack.bindString(10, track.getTagGenre());
+            insertTrack.bindLong(11, track.getSizeBytes());
+            insertTrack.bindLong(12, directories.fileUnder(track.getParentPath()));
+            insertTrack.executeInsert();
+            endWrite();
+            if (existingFingerprint == null) {
+                result.inserted++;
+            } else {
+                result.updated++;
+            }
+        }
+
+        void putImage(TrackOuterClass.Image image, Long existingFingerprint) {
+            if (existingFingerprint != null && existingFingerprint == imageFingerprint(image)) {
+                result.unchanged++;
+                return;
+            }
+            beginWrite();
+            byte[] checksum = image.getChecksum().toByteArray();
+            if (existingFingerprint != null) {
+                directories.removedFrom(findDirectory(findImageDirectory, checksum));
+            }
+            insertImage.bindString(1, image.getRawPath());
+            insertImage.bindString(2, image.getParentPath());
+            insertImage.bindBlob(3, checksum);
+            insertImage.bindLong(4, image.getSizeBytes());
+            insertImage.bindLong(5, directories.fileUnder(image.getParentPath()));
+            insertImage.executeInsert();
+            endWrite();
+            if (existingFingerprint == null) {
+                result.inserted++;
+            } else {
+                result.updated++;
+            }
+        }
+
+        void deleteTrack(byte[] checksum) {
+            delete(deleteTrack, findTrackDirectory, checksum);
+        }
+
+        void deleteImage(byte[] checksum) {
+            delete(deleteImage, findImageDirectory, checksum);
+        }
+
+        private void delete(SQLiteStatement statement, SQLiteStatement find, byte[] checksum) {
+            beginWrite();
+            directories.removedFrom(findDirectory(find, checksum));
+            statement.bindBlob(1, checksum);
+            result.deleted += statement.executeUpdateDelete();
+            endWrite();
+        }
+
+        private void beginWrite() {
+            if (!database.inTransaction()) {
+                database.beginTransactionNonExclusive();
+            }
+        }
+
+        private void endWrite() {
+            batchRows++;
+            if (batchRows >= SYNC_BATCH_ROWS) {
+                commitBatch();
+            }
+        }
+
+        private void commitBatch() {
+            if (database.inTransaction()) {
+                database.setTransactionSuccessful();
+                database.endTransaction();
+            }
+            batchRows = 0;
+        }
+
+        SyncResult finish() {
+            commitBatch();
+            close();
+            return result;
+        }
+
+        SyncResult abandon() {
+            if (database.inTransaction()) {
+                database.endTransaction();
+            }
+            // Batches that were committed still need their directories recounting
+            close();
+            return result;
+        }
+
+        private void close() {
+            if (bulk) {
+                // Building each index in one pass over the loaded table is much cheaper than
+                // keeping it sorted through every insert. The same goes for the search index
+                restoreIndexes();
+
+                database.execSQL("PRAGMA synchronous = " + savedSynchronous);
+                database.execSQL("PRAGMA cache_size = " + savedCacheSize);
+            }
+
+            // Needs the directory index on the track table, so must come after it is rebuilt
+            directories.refresh(SYNC_BATCH_ROWS);
+
+            insertTrack.close();
+            insertImage.close();
+            deleteTrack.close();
+            deleteImage.close();
+            findTrackDirectory.close();
+            findImageDirectory.close();
+            directories.close();
+        }
+
+        private void restoreIndexes() {
+            database.beginTransactionNonExclusive();
+            TrackDatabaseHelper.createTrackIndexes(database);
+            TrackDatabaseHelper.rebuildSearchIndex(database);
+            TrackDatabaseHelper.createSearchTriggers(database);
+            database.setTransactionSuccessful();
+            database.endTransaction();
+        }
+
+        private long queryPragma(String pragma) {
+            SQLiteStatement statement = database.compileStatement("PRAGMA " + pragma);
+            long value = statement.simpleQueryForLong();
+            statement.close();
+            return value;
+        }
+    }
+
+    // Summaries of a row's contents, so that a sync can tell whether a record has changed without
+    // keeping whole rows in memory. Must digest the same values however the row is read. 64 bits
+    // of SHA-1 makes an accidental match between different contents vanishingly unlikely, which a
+    // 32-bit hash of the fields does not
+
+    private static long trackFingerprint(TrackOuterClass.Track track) {
+        return new Fingerprint()
+                .add(track.getRawPath()).add(track.getParentPath()).add(track.getTagTitle()).add(track.getTagArtist()).add(track.getTagAlbum())
+                .add(track.getTagYear()).add(track.getTagComment()).add(track.getTagTrack()).add(track.getTagGenre()).add(track.getSizeBytes())
+                .finish();
+    }
+
+    private static long trackFingerprint(Cursor c) {
+        return new Fingerprint()
+                .add(c.getString(1)).add(c.getString(2)).add(c.getString(3)).add(c.getString(4)).add(c.getString(5))
+                .add(c.getInt(6)).add(c.getString(7)).add(c.getInt(8)).add(c.getString(9)).add(c.getLong(10))
+                .finish();
+    }
+
+    private static String[] trackFingerprintProjection() {
+        return new String[]{
+                TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM,
+                TrackDatabaseHelper.TracksTable.COLUMN_RAW_PATH, TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH,
+                TrackDatabaseHelper.TracksTable.COLUMN_TAG_TITLE, TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST, TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM,
+                TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR, TrackDatabaseHelper.TracksTable.COLUMN_TAG_COMMENT, TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK, TrackDatabaseHelper.TracksTable.COLUMN_TAG_GENRE,
+                TrackDatabaseHelper.TracksTable.COLUMN_SIZE_BYTES
+        };
+    }
+
+    private static long imageFingerprint(TrackOuterClass.Image image) {
+        return new Fingerprint().add(image.getRawPath()).add(image.getParentPath()).add(image.getSizeBytes()).finish();
+    }
+
+    private static long imageFingerprint(Cursor c) {
+        return new Fingerprint().add(c.getString(1)).add(c.getString(2)).add(c.getLong(3)).finish();
+    }
+
+    // Digests a sequence of values. Each string is length-prefixed, so that moving characters
+    // from one field to the next changes the result. The digest is shared per thread, so only one
+    // fingerprint may be in progress on a thread at a time
+    private static final class Fingerprint {
+        private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    // Every Java platform is required to provide SHA-1
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        private final MessageDigest digest = DIGEST.get();
+        private final ByteBuffer number = ByteBuffer.allocate(8);
+
+        Fingerprint() {
+            digest.reset();
+        }
+
+        Fingerprint add(String value) {
+            if (value == null) {
+                return add(-1L);
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        Fingerprint add(long value) {
+            number.clear();
+            number.putLong(value);
+            digest.update(number.array());
+            return this;
+        }
+
+        long finish() {
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        }
+    }
+
+    private static String[] imageFingerprintProjection() {
+        return new String[]{
+                TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM,
+                TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH, TrackDatabaseHelper.ImagesTable.COLUMN_PARENT_PATH,
+                TrackDatabaseHelper.ImagesTable.COLUMN_SIZE_BYTES
+        };
+    }
+
+    private static Map<ByteBuffer, Long> loadTrackFingerprints(SQLiteDatabase database) {
+        Cursor c = database.query(TrackDatabaseHelper.TracksTable.TABLE_NAME, trackFingerprintProjection(), null, null, null, null, null);
+        Map<ByteBuffer, Long> fingerprints = new HashMap<>(Math.max(16, c.getCount() * 4 / 3 + 1));
+        while (c.moveToNext()) {
+            fingerprints.put(ByteBuffer.wrap(c.getBlob(0)), trackFingerprint(c));
+        }
+        c.close();
+        return fingerprints;
+    }
+
+    private static Map<ByteBuffer, Long> loadImageFingerprints(SQLiteDatabase database) {
+        Cursor c = database.query(TrackDatabaseHelper.ImagesTable.TABLE_NAME, imageFingerprintProjection(), null, null, null, null, null);
+        Map<ByteBuffer, Long> fingerprints = new HashMap<>(Math.max(16, c.getCount() * 4 / 3 + 1));
+        while (c.moveToNext()) {
+            fingerprints.put(ByteBuffer.wrap(c.getBlob(0)), imageFingerprint(c));
+        }
+        c.close();
+        return fingerprints;
+    }
+
+    private static Long findTrackFingerprint(SQLiteDatabase database, byte[] checksum) {
+        Cursor c = queryByChecksum(database, TrackDatabaseHelper.TracksTable.TABLE_NAME, trackFingerprintProjection(), checksum);
+        Long fingerprint = c.moveToFirst() ? trackFingerprint(c) : null;
+        c.close();
+        return fingerprint;
+    }
+
+    private static Long findImageFingerprint(SQLiteDatabase database, byte[] checksum) {
+        Cursor c = queryByChecksum(database, TrackDatabaseHelper.ImagesTable.TABLE_NAME, imageFingerprintProjection(), checksum);
+        Long fingerprint = c.moveToFirst() ? imageFingerprint(c) : null;
+        c.close();
+        return fingerprint;
+    }
+
+    // The checksum column must come first in the projection
+    private static Cursor queryByChecksum(SQLiteDatabase database, String table, String[] projection, byte[] checksum) {
+        // Blobs can't be passed as string selection args, so bind the checksum directly
+        return database.rawQueryWithFactory((db, masterQuery, editTable, query) -> {
+            query.bindBlob(1, checksum);
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }, "SELECT " + String.join(", ", projection) + " FROM " + table + " WHERE " + projection[0] + " = $1", null, table);
+    }
+
+    /**
+     * @return Whether there are any tracks at all, e.g. false before the first sync
+     */
+    public boolean hasTracks() {
+        SQLiteDatabase database = helper.getReadableDatabase();
+        Cursor c = database.rawQuery("SELECT 1 FROM " + TrackDatabaseHelper.TracksTable.TABLE_NAME + " LIMIT 1", null);
+        boolean hasTracks = c.moveToFirst();
+        c.close();
+        return hasTracks;
     }
 
     public void addTrack(Track track) {
@@ -91,27 +580,11 @@ public class TrackDatabase {
     }
 
     public void addPbTracks(Iterable<TrackOuterClass.Track> records) {
-        SQLiteDatabase database = helper.getWritableDatabase();
+        SyncWriter writer = new SyncWriter(helper.getWritableDatabase(), false);
         for (TrackOuterClass.Track record : records) {
-            addTrack(database, record);
+            writer.putTrack(record, null);
         }
-    }
-
-    private void addTrack(SQLiteDatabase database, TrackOuterClass.Track record) {
-        ContentValues contentValues = new ContentValues();
-
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_RAW_PATH, record.getRawPath());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH, record.getParentPath());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM, record.getChecksum().toByteArray());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_TITLE, record.getTagTitle());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST, record.getTagArtist());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM, record.getTagAlbum());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR, record.getTagYear());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_COMMENT, record.getTagComment());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK, record.getTagTrack());
-        contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_GENRE, record.getTagGenre());
-
-        database.insertWithOnConflict(TrackDatabaseHelper.TracksTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+        writer.finish();
     }
 
     private Track parseTrack(Cursor c) {
@@ -202,35 +675,98 @@ public class TrackDatabase {
         return parseTracks(c);
     }
 
-    public List<Track> getTracksForParentPathRecursive(String parent_path) {
+    /**
+     * Tracks in a directory and everything below it, found through the directory tree so that
+     * however the server spelled the paths, and whatever else shares their prefix, only the
+     * directory's own subtree matches.
+     */
+    public List<Track> getTracksForDirectoryRecursive(long directoryId) {
         SQLiteDatabase database = helper.getReadableDatabase();
-        Cursor c = database.query(
-                TrackDatabaseHelper.TracksTable.TABLE_NAME,
-                TrackDatabaseHelper.TracksTable.projection(), TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH + " LIKE $1", // No select
-                new String[]{parent_path + '%'}, // No select args
-                null, // Group
-                null, // Having
-                TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM + ", " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK // Order
-        );
+        Cursor c = database.rawQuery("WITH RECURSIVE subtree(id) AS (SELECT CAST(?1 AS INTEGER) UNION ALL" +
+                " SELECT " + TrackDatabaseHelper.DirectoryTable._ID + " FROM " + TrackDatabaseHelper.DirectoryTable.TABLE_NAME +
+                " JOIN subtree ON " + TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " = subtree.id)" +
+                " SELECT " + String.join(", ", TrackDatabaseHelper.TracksTable.projection()) +
+                " FROM " + TrackDatabaseHelper.TracksTable.TABLE_NAME +
+                " WHERE " + TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID + " IN subtree" +
+                " ORDER BY " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM + ", " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK,
+                new String[]{String.valueOf(directoryId)});
 
         return parseTracks(c);
     }
 
-    public void addPbImages(Iterable<TrackOuterClass.Image> records) {
-        SQLiteDatabase database = helper.getWritableDatabase();
-        for (TrackOuterClass.Image record : records) {
-            addImage(database, record);
+    /**
+     * Tracks whose title, artist, album, genre or path contain a word starting with each word of
+     * the query, best matches first, for search as you type.
+     *
+     * @param offset Matches to skip, for paging
+     * @param limit  Most matches to return
+     */
+    public List<Track> searchTracks(String query, int offset, int limit) {
+        List<String> terms = searchTerms(query);
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // Every term has to match, and the last may be half typed
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            match.append(match.length() == 0 ? "" : " ").append(term).append('*');
         }
-    }
 
-    private void addImage(SQLiteDatabase database, TrackOuterClass.Image record) {
-        ContentValues contentValues = new ContentValues();
+        SQLiteDatabase database = helper.getReadableDatabase();
+        if (searchUsesFts5 == null) {
+            searchUsesFts5 = TrackDatabaseHelper.searchUsesFts5(database);
+        }
 
-        contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH, record.getRawPath());
-        contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_PARENT_PATH, record.getParentPath());
-        contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM, record.getChecksum().toByteArray());
+        String search = TrackDatabaseHelper.SearchTable.TABLE_NAME;
+        String tracks = TrackDatabaseHelper.TracksTable.TABLE_NAME;
+        String sql;
+        String[] args;
+        if (searchUsesFts5) {
+            // Lowest score is the best match. Weights follow SearchTable.columns
+            sql = "SELECT " + tracks + ".* FROM " + search + " JOIN " + tracks + " ON " + tracks + ".rowid = " + search + ".rowid" +
+                    " WHERE " + search + " MATCH ?1" +
+                    " ORDER BY bm25(" + search + ", 8.0, 4.0, 4.0, 1.0, 0.5)";
+            args = new String[]{match.toString()};
+        } else {
+            // FTS4 has no ranking function, so settle for putting tracks whose title, artist or
+            // album starts with the first word ahead of the rest
+            sql = "SELECT " + tracks + ".* FROM " + search + " JOIN " + tracks + " ON " + tracks + ".rowid = " + search + ".docid" +
+                    " WHERE " + search + " MATCH ?1" +
+                    " ORDER BY (" + tracks + "." + TrackDatabaseHelper.TracksTable.COLUMN_TAG_TITLE + " LIKE ?2) * 4 + " +
+                    "(" + tracks + "." + TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST + " LIKE ?2) * 2 + " +
+                    "(" + tracks + "." + TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM + " LIKE ?2) DESC";
+            args = new String[]{match.toString(), terms.get(0) + "%"};
+        }
+        sql += ", " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST + ", " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM + ", " + TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK +
+                " LIMIT " + limit + " OFFSET " + offset;
 
-        database.insertWithOnConflict(TrackDatabaseHelper.ImagesTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+        return parseTracks(database.rawQuery(sql, args));
+    }
+
+    // Split a query into words the way the index tokenizer does, so that each can be matched as a
+    // bare prefix without quoting, and without being taken for a query operator
+    private static List<String> searchTerms(String query) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= query.length(); i++) {
+            if (i < query.length() && Character.isLetterOrDigit(query.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                terms.add(query.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    public void addPbImages(Iterable<TrackOuterClass.Image> records) {
+        SyncWriter writer = new SyncWriter(helper.getWritableDatabase(), false);
+        for (TrackOuterClass.Image record : records) {
+            writer.putImage(record, null);
+        }
+        writer.finish();
     }
 
     public List<byte[]> getImageChecksumsForParentPath(String path) {
@@ -255,26 +791,81 @@ public class TrackDatabase {
         return checksums;
     }
 
-    private List<Album> parseAlbumList(Cursor c) {
+    private List<Album> parseAlbumList(SQLiteDatabase database, Cursor c) {
         // Pull intom models
         List<Album> albums = new ArrayList<>();
+        Map<Long, List<Album>> albumsByDirectory = new HashMap<>();
         c.moveToFirst();
         while (!c.isAfterLast()) {
             Album album = new Album();
             album.parent_path = c.getString(c.getColumnIndex(TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH));
             album.artist = c.getString(c.getColumnIndex(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST));
             album.name = c.getString(c.getColumnIndex(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM));
-
-            // For each album, fetch the set of content addresses for images that could be used as covers
-            album.coverImageChecksums = getImageChecksumsForParentPath(album.parent_path);
+            album.coverImageChecksums = new ArrayList<>();
 
             albums.add(album);
+            addToDirectory(albumsByDirectory, c.getLong(c.getColumnIndex(TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID)), album);
             c.moveToNext();
         }
         c.close();
+
+        addCoverCandidates(database, albumsByDirectory);
         return albums;
     }
 
+    private static void addToDirectory(Map<Long, List<Album>> albumsByDirectory, long directoryId, Album album) {
+        List<Album> albums = albumsByDirectory.get(directoryId);
+        if (albums == null) {
+            albums = new ArrayList<>(1);
+            albumsByDirectory.put(directoryId, albums);
+        }
+        albums.add(album);
+    }
+
+    /**
+     * Fill in the cover candidates for a whole listing at once: the cover chosen for each album's
+     * directory at sync time, then any other images directly in it as fallbacks.
+     */
+    private static void addCoverCandidates(SQLiteDatabase database, Map<Long, List<Album>> albumsByDirectory) {
+        List<Long> directoryIds = new ArrayList<>(albumsByDirectory.keySet());
+        for (int start = 0; start < directoryIds.size(); start += COVER_QUERY_DIRECTORIES) {
+            // Ids are numbers we read back from the database, so they can go straight into the query
+            StringBuilder ids = new StringBuilder();
+            for (long id : directoryIds.subList(start, Math.min(directoryIds.size(), start + COVER_QUERY_DIRECTORIES))) {
+                ids.append(ids.length() == 0 ? "" : ",").append(id);
+            }
+
+            Cursor c = database.rawQuery("SELECT " + TrackDatabaseHelper.DirectoryTable._ID + ", " + TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + ", 0, ''" +
+                    " FROM " + TrackDatabaseHelper.DirectoryTable.TABLE_NAME +
+                    " WHERE " + TrackDatabaseHelper.DirectoryTable._ID + " IN (" + ids + ") AND " + TrackDatabaseHelper.DirectoryTable.COLUMN_COVER_CHECKSUM + " IS NOT NULL" +
+                    " UNION ALL SELECT " + TrackDatabaseHelper.ImagesTable.COLUMN_DIRECTORY_ID + ", " + TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM + ", 1, " + TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH +
+                    " FROM " + TrackDatabaseHelper.ImagesTable.TABLE_NAME +
+                    " WHERE " + TrackDatabaseHelper.ImagesTable.COLUMN_DIRECTORY_ID + " IN (" + ids + ")" +
+                    " ORDER BY 1, 3, 4", null);
+            c.moveToFirst();
+            while (!c.isAfterLast()) {
+                byte[] checksum = c.getBlob(1);
+                for (Album album : albumsByDirectory.get(c.getLong(0))) {
+                    // The chosen cover is usually also one of the images in the directory
+                    if (!containsChecksum(album.coverImageChecksums, checksum)) {
+                        album.coverImageChecksums.add(checksum);
+                    }
+                }
+                c.moveToNext();
+            }
+            c.close();
+        }
+    }
+
+    private static boolean containsChecksum(List<byte[]> checksums, byte[] checksum) {
+        for (byte[] candidate : checksums) {
+            if (Arrays.equals(candidate, checksum)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<Album> getAlbums() {
         // Select distinct album names
         SQLiteDatabase database = helper.getReadableDatabase();
@@ -286,6 +877,7 @@ public class TrackDatabase {
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM,
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST,
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR,
+                        TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID,
                 },
                 null, // No select
                 null, // No select args
@@ -296,7 +888,7 @@ public class TrackDatabase {
                 null // Limit
         );
 
-        return parseAlbumList(c);
+        return parseAlbumList(database, c);
     }
 
     public List<Album> getRandomAlbums(int count) {
@@ -310,6 +902,7 @@ public class TrackDatabase {
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM,
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST,
                         TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR,
+                        TrackDatabaseHelper.TracksTable.COLUMN_DIRECTORY_ID,
                 },
                 null, // No select
                 null, // No select args
@@ -320,66 +913,41 @@ public class TrackDatabase {
                 String.valueOf(count) // Limit
         );
 
-        return parseAlbumList(c);
+        return parseAlbumList(database, c);
     }
 
     public List<Album> getDirectoryAlbums(String basedir) {
-        // Select distinct directories from the common basedir
+        // Subdirectories of the basedir that have tracks somewhere below them
         SQLiteDatabase database = helper.getReadableDatabase();
-        Cursor c = database.query(
-                true, // distinct
-                TrackDatabaseHelper.TracksTable.TABLE_NAME,
-                new String[]{
-                        TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH,
-                },
-                // Select tracks that are in subdirectories of the basedir but not the basedir itself
-                TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH + " LIKE $1 AND " + TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH + " != $2",
-                new String[]{basedir + "%", basedir},
-                TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH, // Group
-                null, // Having
-                null, // Order
-                null // Limit
-        );
+        Cursor c = database.rawQuery("SELECT child." + TrackDatabaseHelper.DirectoryTable._ID + ", " +
+                "child." + TrackDatabaseHelper.DirectoryTable.COLUMN_PATH + ", " +
+                "child." + TrackDatabaseHelper.DirectoryTable.COLUMN_NAME + ", " +
+                "child." + TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + ", " +
+                "child." + TrackDatabaseHelper.DirectoryTable.COLUMN_SIZE_BYTES +
+                " FROM " + TrackDatabaseHelper.DirectoryTable.TABLE_NAME + " parent" +
+                " JOIN " + TrackDatabaseHelper.DirectoryTable.TABLE_NAME + " child ON child." + TrackDatabaseHelper.DirectoryTable.COLUMN_PARENT_ID + " = parent." + TrackDatabaseHelper.DirectoryTable._ID +
+                " WHERE parent." + TrackDatabaseHelper.DirectoryTable.COLUMN_PATH + " = $1 AND child." + TrackDatabaseHelper.DirectoryTable.COLUMN_TRACK_COUNT + " > 0" +
+                " ORDER BY child." + TrackDatabaseHelper.DirectoryTable.COLUMN_NAME, new String[]{LibraryPaths.normalize(basedir)});
 
-        Set<String> prefixSet = new HashSet<>();
         List<Album> albums = new ArrayList<>();
+        Map<Long, List<Album>> albumsByDirectory = new HashMap<>();
         c.moveToFirst();
         while (!c.isAfterLast()) {
-            // Split the parent path on /
-            String parentPath = c.getString(c.getColumnIndex(TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH));
-            String childPath = parentPath.substring(basedir.length());
-            String[] childPathFragments = childPath.split("/");
-            // baseChild is first non-empty path fragment
-            String baseChild = "";
-            for (int i = 0; i < childPathFragments.length; i++) {
-                if (childPathFragments[i].length() > 0) {
-                    baseChild = childPathFragments[i];
-                    break;
-                }
-            }
-            if (prefixSet.contains(baseChild)) {
-                c.moveToNext();
-                continue;
-            }
-
-            prefixSet.add(baseChild);
             Album album = new Album();
-            if (basedir.length() > 0) {
-                album.parent_path = basedir + "/" + baseChild;
-            } else {
-                album.parent_path = baseChild;
-            }
-            album.artist = baseChild;
-            album.name = baseChild;
-
-            // For each album, fetch the set of content addresses for images that could be used as covers
-            album.coverImageChecksums = getImageChecksumsForParentPath(album.parent_path);
+            album.directoryId = c.getLong(0);
+            album.parent_path = c.getString(1);
+            album.name = c.getString(2);
+            album.trackCount = c.getLong(3);
+            album.sizeBytes = c.getLong(4);
+            album.coverImageChecksums = new ArrayList<>();
 
             albums.add(album);
+            addToDirectory(albumsByDirectory, c.getLong(0), album);
             c.moveToNext();
         }
         c.close();
 
+        addCoverCandidates(database, albumsByDirectory);
         return albums;
     }
 
@@ -2,16 +2,23 @@ package com.schlaikjer.music.db;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.SparseArray;
 
 import com.schlaikjer.music.exception.MissingMigrationException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
 public class TrackDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "tracks";
-    private static int DB_VERSION = 4;
+    private static int DB_VERSION = 7;
 
     private static SparseArray<Migration> migrations = new SparseArray<>();
 
@@ -76,11 +83,105 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
                         " ) ");
             }
         });
+
+        migrations.put(5, new Migration() {
+            @Override
+            public void apply(SQLiteDatabase database) {
+                // Directory tree, rebuilt from the track and image tables as they are synced
+                database.execSQL("CREATE TABLE " + DirectoryTable.TABLE_NAME + " (" +
+                        DirectoryTable._ID + " INTEGER PRIMARY KEY, " +
+                        DirectoryTable.COLUMN_PARENT_ID + " INTEGER, " +
+                        DirectoryTable.COLUMN_NAME + " TEXT, " +
+                        DirectoryTable.COLUMN_PATH + " TEXT, " +
+                        DirectoryTable.COLUMN_TRACK_COUNT + " INTEGER, " +
+                        DirectoryTable.COLUMN_SIZE_BYTES + " INTEGER, " +
+                        DirectoryTable.COLUMN_COVER_CHECKSUM + " BLOB, " +
+                        "CONSTRAINT " + DirectoryTable.COLUMN_PATH + "_unique UNIQUE (" + DirectoryTable.COLUMN_PATH + ")" +
+                        " ) ");
+                database.execSQL("CREATE INDEX " + DirectoryTable.INDEX_PARENT_ID + " ON " + DirectoryTable.TABLE_NAME + "(" + DirectoryTable.COLUMN_PARENT_ID + ")");
+
+                // Sizes, and which directory each record is in
+                database.execSQL("ALTER TABLE " + TracksTable.TABLE_NAME + " ADD COLUMN " + TracksTable.COLUMN_SIZE_BYTES + " INTEGER");
+                database.execSQL("ALTER TABLE " + TracksTable.TABLE_NAME + " ADD COLUMN " + TracksTable.COLUMN_DIRECTORY_ID + " INTEGER");
+                database.execSQL("CREATE INDEX " + TracksTable.INDEX_DIRECTORY_ID + " ON " + TracksTable.TABLE_NAME + "(" + TracksTable.COLUMN_DIRECTORY_ID + ")");
+                database.execSQL("ALTER TABLE " + ImagesTable.TABLE_NAME + " ADD COLUMN " + ImagesTable.COLUMN_SIZE_BYTES + " INTEGER");
+                database.execSQL("ALTER TABLE " + ImagesTable.TABLE_NAME + " ADD COLUMN " + ImagesTable.COLUMN_DIRECTORY_ID + " INTEGER");
+                database.execSQL("CREATE INDEX " + ImagesTable.INDEX_DIRECTORY_ID + " ON " + ImagesTable.TABLE_NAME + "(" + ImagesTable.COLUMN_DIRECTORY_ID + ")");
+
+                // Existing records have neither, so drop them. An empty library is always synced in
+                // full, whatever generation we were at
+                database.delete(TracksTable.TABLE_NAME, null, null);
+                database.delete(ImagesTable.TABLE_NAME, null, null);
+            }
+        });
+
+        migrations.put(6, new Migration() {
+            @Override
+            public void apply(SQLiteDatabase database) {
+                // Full text index over the track table. It stores no copy of the text, just the
+                // index, and prefix indexes for the short prefixes someone is typing
+                try {
+                    database.execSQL("CREATE VIRTUAL TABLE " + SearchTable.TABLE_NAME + " USING fts5(" +
+                            String.join(", ", SearchTable.columns()) + ", " +
+                            "content='" + TracksTable.TABLE_NAME + "', prefix='2 3')");
+                } catch (SQLiteException e) {
+                    // Most platform builds of SQLite have no FTS5
+                    database.execSQL("CREATE VIRTUAL TABLE " + SearchTable.TABLE_NAME + " USING fts4(" +
+                            String.join(", ", SearchTable.columns()) + ", " +
+                            "content=\"" + TracksTable.TABLE_NAME + "\", prefix=\"2,3\")");
+                }
+                createSearchTriggers(database);
+                rebuildSearchIndex(database);
+            }
+        });
+
+        migrations.put(7, new Migration() {
+            @Override
+            public void apply(SQLiteDatabase database) {
+                // The search index refers to tracks by rowid, which VACUUM is free to renumber
+                // unless the table declares it. Copy the rows into a table that does, keeping
+                // their rowids so that the index still lines up
+                String columns = String.join(", ", TracksTable.columns());
+                database.execSQL("CREATE TABLE " + TracksTable.TABLE_NAME + "_new (" +
+                        TracksTable._ID + " INTEGER PRIMARY KEY," +
+                        TracksTable.COLUMN_RAW_PATH + " TEXT," +
+                        TracksTable.COLUMN_PARENT_PATH + " TEXT," +
+                        TracksTable.COLUMN_CHECKSUM + " BLOB," +
+                        TracksTable.COLUMN_TAG_TITLE + " TEXT," +
+                        TracksTable.COLUMN_TAG_ARTIST + " TEXT," +
+                        TracksTable.COLUMN_TAG_ALBUM + " TEXT," +
+                        TracksTable.COLUMN_TAG_YEAR + " INTEGER," +
+                        TracksTable.COLUMN_TAG_COMMENT + " TEXT," +
+                        TracksTable.COLUMN_TAG_TRACK + " INTEGER," +
+                        TracksTable.COLUMN_TAG_GENRE + " TEXT," +
+                        TracksTable.COLUMN_SIZE_BYTES + " INTEGER," +
+                        TracksTable.COLUMN_DIRECTORY_ID + " INTEGER," +
+                        "CONSTRAINT " + TracksTable.COLUMN_CHECKSUM + "_unique UNIQUE (" + TracksTable.COLUMN_CHECKSUM + ") ON CONFLICT REPLACE " +
+                        " ) ");
+                database.execSQL("INSERT INTO " + TracksTable.TABLE_NAME + "_new (" + TracksTable._ID + ", " + columns + ") " +
+                        "SELECT rowid, " + columns + " FROM " + TracksTable.TABLE_NAME);
+
+                // Dropping the table takes its indexes and triggers with it
+                database.execSQL("DROP TABLE " + TracksTable.TABLE_NAME);
+                database.execSQL("ALTER TABLE " + TracksTable.TABLE_NAME + "_new RENAME TO " + TracksTable.TABLE_NAME);
+                createTrackIndexes(database);
+                createSearchTriggers(database);
+            }
+        });
     }
 
 
     public TrackDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // Let readers carry on against the last commit while a sync is writing
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Rows overwritten by INSERT OR REPLACE only fire the delete triggers with this on, and
+        // without them the search index would keep the old text
+        db.execSQL("PRAGMA recursive_triggers = ON");
     }
 
     @Override
@@ -100,6 +201,97 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Secondary indexes on the track table, which a bulk load drops and recreates rather than
+     * maintaining row by row. Must match what the migrations create.
+     */
+    static void createTrackIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TracksTable.INDEX_TAG_ARTIST + " ON " + TracksTable.TABLE_NAME + "(" + TracksTable.COLUMN_TAG_ARTIST + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TracksTable.INDEX_TAG_ALBUM + " ON " + TracksTable.TABLE_NAME + "(" + TracksTable.COLUMN_TAG_ALBUM + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TracksTable.INDEX_DIRECTORY_ID + " ON " + TracksTable.TABLE_NAME + "(" + TracksTable.COLUMN_DIRECTORY_ID + ")");
+    }
+
+    static void dropTrackIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + TracksTable.INDEX_TAG_ARTIST);
+        db.execSQL("DROP INDEX IF EXISTS " + TracksTable.INDEX_TAG_ALBUM);
+        db.execSQL("DROP INDEX IF EXISTS " + TracksTable.INDEX_DIRECTORY_ID);
+    }
+
+    /**
+     * @return Whether any of the indexes or search triggers that a bulk load drops are missing,
+     * i.e. a load is under way or was cut off before it could put them back
+     */
+    static boolean isMissingBulkLoadIndexes(SQLiteDatabase db) {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                TracksTable.INDEX_TAG_ARTIST, TracksTable.INDEX_TAG_ALBUM, TracksTable.INDEX_DIRECTORY_ID,
+                SearchTable.TRIGGER_INSERT, SearchTable.TRIGGER_DELETE, SearchTable.TRIGGER_UPDATE
+        ));
+        if (!searchUsesFts5(db)) {
+            names.add(SearchTable.TRIGGER_UPDATE_BEFORE);
+        }
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM sqlite_master WHERE name IN (" + placeholders + ")");
+        for (int i = 0; i < names.size(); i++) {
+            statement.bindString(i + 1, names.get(i));
+        }
+        long found = statement.simpleQueryForLong();
+        statement.close();
+        return found < names.size();
+    }
+
+    /**
+     * @return Whether the search table is FTS5, rather than the FTS4 fallback
+     */
+    static boolean searchUsesFts5(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("SELECT sql FROM sqlite_master WHERE name = ?");
+        statement.bindString(1, SearchTable.TABLE_NAME);
+        String sql = statement.simpleQueryForString();
+        statement.close();
+        return sql.toLowerCase(Locale.ROOT).contains("fts5");
+    }
+
+    /**
+     * Triggers that keep the search table in step with the track table. FTS5 and FTS4 want
+     * removed text passed back in different ways, so the triggers differ between them. A bulk load
+     * drops these and rebuilds the index afterwards instead.
+     */
+    static void createSearchTriggers(SQLiteDatabase db) {
+        String columns = String.join(", ", SearchTable.columns());
+        String newValues = "new." + String.join(", new.", SearchTable.columns());
+        String oldValues = "old." + String.join(", old.", SearchTable.columns());
+        String insert = "INSERT INTO " + SearchTable.TABLE_NAME + " (rowid, " + columns + ") VALUES (new.rowid, " + newValues + ");";
+        if (searchUsesFts5(db)) {
+            String delete = "INSERT INTO " + SearchTable.TABLE_NAME + " (" + SearchTable.TABLE_NAME + ", rowid, " + columns + ") VALUES ('delete', old.rowid, " + oldValues + ");";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_INSERT + " AFTER INSERT ON " + TracksTable.TABLE_NAME + " BEGIN " + insert + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_DELETE + " AFTER DELETE ON " + TracksTable.TABLE_NAME + " BEGIN " + delete + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_UPDATE + " AFTER UPDATE ON " + TracksTable.TABLE_NAME + " BEGIN " + delete + " " + insert + " END");
+        } else {
+            // FTS4 reads the text to remove from the track table, so it has to go before the row
+            String delete = "DELETE FROM " + SearchTable.TABLE_NAME + " WHERE docid = old.rowid;";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_INSERT + " AFTER INSERT ON " + TracksTable.TABLE_NAME + " BEGIN " + insert + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_DELETE + " BEFORE DELETE ON " + TracksTable.TABLE_NAME + " BEGIN " + delete + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_UPDATE_BEFORE + " BEFORE UPDATE ON " + TracksTable.TABLE_NAME + " BEGIN " + delete + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + SearchTable.TRIGGER_UPDATE + " AFTER UPDATE ON " + TracksTable.TABLE_NAME + " BEGIN " + insert + " END");
+        }
+    }
+
+    static void dropSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + SearchTable.TRIGGER_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + SearchTable.TRIGGER_DELETE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + SearchTable.TRIGGER_UPDATE_BEFORE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + SearchTable.TRIGGER_UPDATE);
+    }
+
+    /**
+     * Reindex every track from scratch
+     */
+    static void rebuildSearchIndex(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + SearchTable.TABLE_NAME + " (" + SearchTable.TABLE_NAME + ") VALUES ('rebuild')");
+    }
+
     public static class TracksTable implements BaseColumns {
 
         public static final String TABLE_NAME = "track";
@@ -114,6 +306,12 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
         public static final String COLUMN_TAG_COMMENT = "tag_comment";
         public static final String COLUMN_TAG_TRACK = "tag_track";
         public static final String COLUMN_TAG_GENRE = "tag_genre";
+        public static final String COLUMN_SIZE_BYTES = "size_bytes";
+        public static final String COLUMN_DIRECTORY_ID = "directory_id";
+
+        public static final String INDEX_TAG_ARTIST = COLUMN_TAG_ARTIST + "_index";
+        public static final String INDEX_TAG_ALBUM = COLUMN_TAG_ALBUM + "_index";
+        public static final String INDEX_DIRECTORY_ID = TABLE_NAME + "_" + COLUMN_DIRECTORY_ID + "_index";
 
         public static String[] projection() {
             return new String[]{
@@ -121,6 +319,13 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
             };
         }
 
+        // Every column bar the rowid
+        public static String[] columns() {
+            return new String[]{
+                    COLUMN_RAW_PATH, COLUMN_PARENT_PATH, COLUMN_CHECKSUM, COLUMN_TAG_TITLE, COLUMN_TAG_ARTIST, COLUMN_TAG_ALBUM, COLUMN_TAG_YEAR, COLUMN_TAG_COMMENT, COLUMN_TAG_TRACK, COLUMN_TAG_GENRE, COLUMN_SIZE_BYTES, COLUMN_DIRECTORY_ID
+            };
+        }
+
     }
 
 
@@ -131,6 +336,10 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
         public static final String COLUMN_RAW_PATH = "raw_path";
         public static final String COLUMN_PARENT_PATH = "parent_path";
         public static final String COLUMN_CHECKSUM = "checksum";
+        public static final String COLUMN_SIZE_BYTES = "size_bytes";
+        public static final String COLUMN_DIRECTORY_ID = "directory_id";
+
+        public static final String INDEX_DIRECTORY_ID = TABLE_NAME + "_" + COLUMN_DIRECTORY_ID + "_index";
 
         public static String[] projection() {
             return new String[]{
@@ -173,5 +382,48 @@ public class TrackDatabaseHelper extends SQLiteOpenHelper {
 
     }
 
+    public static class DirectoryTable implements BaseColumns {
+
+        public static final String TABLE_NAME = "directory";
+
+        public static final String COLUMN_PARENT_ID = "parent_id";
+        public static final String COLUMN_NAME = "name";
+        // Normalized, see LibraryPaths.normalize. The root is ""
+        public static final String COLUMN_PATH = "path";
+        // Totals for everything at or below this directory
+        public static final String COLUMN_TRACK_COUNT = "track_count";
+        public static final String COLUMN_SIZE_BYTES = "size_bytes";
+        public static final String COLUMN_COVER_CHECKSUM = "cover_checksum";
+
+        public static final String INDEX_PARENT_ID = TABLE_NAME + "_" + COLUMN_PARENT_ID + "_index";
+
+        public static String[] projection() {
+            return new String[]{
+                    _ID, COLUMN_PARENT_ID, COLUMN_NAME, COLUMN_PATH, COLUMN_TRACK_COUNT, COLUMN_SIZE_BYTES, COLUMN_COVER_CHECKSUM
+            };
+        }
+
+    }
+
+    public static class SearchTable {
+
+        // Indexes the track table, with the same rowids
+        public static final String TABLE_NAME = "track_search";
+
+        public static final String TRIGGER_INSERT = TABLE_NAME + "_insert";
+        public static final String TRIGGER_DELETE = TABLE_NAME + "_delete";
+        public static final String TRIGGER_UPDATE = TABLE_NAME + "_update";
+        // FTS4 only
+        public static final String TRIGGER_UPDATE_BEFORE = TABLE_NAME + "_update_before";
+
+        // Indexed track columns, named as in the track table. Search ranking weights them in
+        // this order
+        public static String[] columns() {
+            return new String[]{
+                    TracksTable.COLUMN_TAG_TITLE, TracksTable.COLUMN_TAG_ARTIST, TracksTable.COLUMN_TAG_ALBUM, TracksTable.COLUMN_TAG_GENRE, TracksTable.COLUMN_RAW_PATH
+            };
+        }
+
+    }
 
 }
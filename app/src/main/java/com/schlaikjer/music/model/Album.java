@@ -4,9 +4,16 @@ import java.util.List;
 
 public class Album {
 
+    // For albums that are directories, see TrackDatabase.getDirectoryAlbums
+    public static final long NO_DIRECTORY = -1;
+
     public String parent_path;
+    public long directoryId = NO_DIRECTORY;
     public String name;
     public String artist;
+    // Totals for everything below the album's directory, where known
+    public long trackCount = 0;
+    public long sizeBytes = 0;
     public List<byte[]> coverImageChecksums;
 
 }
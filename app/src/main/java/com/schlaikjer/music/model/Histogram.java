@@ -0,0 +1,104 @@
+package com.schlaikjer.music.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, in the style of HdrHistogram: buckets are
+ * log-linear, so each power of two is split into a fixed number of equal sub-buckets and any
+ * recorded value can be reported back to within about 12%. Recording is a couple of atomic
+ * increments, so it is safe to call from the network thread on every packet.
+ * <p>
+ * Readers may see a recording that is only partly applied, which is fine for display purposes.
+ */
+public class Histogram {
+
+    // Each power of two is split into 2^SUB_BUCKET_BITS buckets
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values at or above 2^MAX_VALUE_BITS are counted in the top bucket
+    private static final int MAX_VALUE_BITS = 40;
+    static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _total_count = new AtomicLong();
+    private final AtomicLong _total_sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(bucketIndex(value));
+        _total_count.incrementAndGet();
+        _total_sum.addAndGet(value);
+
+        long max;
+        while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) ;
+    }
+
+    public long getCount() {
+        return _total_count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getMean() {
+        long count = _total_count.get();
+        return count == 0 ? 0 : _total_sum.get() / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Highest value that could have been recorded into the bucket the percentile falls
+     * in, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = _total_count.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += _counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        // Top bits select the power of two, the next few the sub-bucket within it
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_VALUE_BITS);
+        if (exponent == MAX_VALUE_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        // The top bucket also takes everything too big for the others
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKET_COUNT + subBucket) * width + width - 1;
+    }
+
+}
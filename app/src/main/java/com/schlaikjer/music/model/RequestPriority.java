@@ -0,0 +1,19 @@
+package com.schlaikjer.music.model;
+
+public class RequestPriority {
+    // Lower values are sent first. Requests in the same class are sent in the order they were made.
+
+    // Something the user is actively waiting on, e.g. the track they just tapped
+    public static final int INTERACTIVE = 0;
+
+    // Content for views currently on screen, e.g. album art in a visible cell
+    public static final int VISIBLE = 1;
+
+    // Lookahead fetches for the play queue
+    public static final int PREFETCH = 2;
+
+    // Bulk background work, e.g. prefetching art for the whole library
+    public static final int BACKGROUND = 3;
+
+    public static final int COUNT = 4;
+}
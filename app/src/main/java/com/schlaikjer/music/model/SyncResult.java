@@ -0,0 +1,23 @@
+package com.schlaikjer.music.model;
+
+/**
+ * Row counts from bringing the track and image tables up to date with the server.
+ */
+public class SyncResult {
+
+    public long inserted = 0;
+    public long updated = 0;
+    public long deleted = 0;
+    // Rows the server sent that we already had exactly as sent
+    public long unchanged = 0;
+
+    public long getChangedRows() {
+        return inserted + updated + deleted;
+    }
+
+    @Override
+    public String toString() {
+        return inserted + " inserted, " + updated + " updated, " + deleted + " deleted, " + unchanged + " unchanged";
+    }
+
+}
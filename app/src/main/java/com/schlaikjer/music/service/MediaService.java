@@ -15,13 +15,18 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.RequestPriority;
 import com.schlaikjer.music.model.Track;
+import com.schlaikjer.music.utility.ContentSink;
 import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.PlaylistManager;
 import com.schlaikjer.music.utility.StorageManager;
+import com.schlaikjer.music.utility.ThreadManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
 
 public class MediaService extends Service implements MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener, PlaylistManager.PlaylistChangedListener {
@@ -29,6 +34,9 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
     private static final String TAG = MediaService.class.getSimpleName();
     private static final String WAKELOCK_TAG = MediaService.class.getSimpleName();
 
+    // How much of a track needs to have arrived before we try to start playing it mid-download
+    public static final long PROGRESSIVE_START_BYTES = 256 * 1024;
+
     public class MediaServiceBinder extends Binder {
 
         public final MediaService service;
@@ -45,6 +53,10 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
     boolean isPlaying = false;
     int playIndex = 0;
     byte[] currentTrack;
+    // Content ID of the track the player's data source was last set to
+    byte[] sourceTrack;
+    // Our interest in the current track's download, if it had to be fetched
+    NetworkManager.ContentFetchHandle trackFetch;
 
     PowerManager.WakeLock wakeLock;
 
@@ -75,6 +87,9 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
             }
             unregisterReceiver(becomingNoisyReceiver);
         }
+
+        // The next track will be wanted soon, so don't let the connection go cold in between
+        NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_PLAYBACK, isPlaying);
     }
 
     @Nullable
@@ -101,12 +116,14 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
     @Override
     public void onDestroy() {
         // Clean up media player
+        cancelTrackFetch();
         player.release();
 
         // Ensure any held wakelock is released
         if (wakeLock.isHeld()) {
             wakeLock.release();
         }
+        NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_PLAYBACK, false);
 
         super.onDestroy();
     }
@@ -160,6 +177,7 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
     public boolean stop() {
         isPlaying = false;
         playerPrepared = false;
+        sourceTrack = null;
 
         if (!player.isPlaying()) {
             return true;
@@ -202,6 +220,7 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
         isPlaying = true;
         playIndex = index;
         byte[] trackChecksum = playlist.get(playIndex);
+        cancelTrackFetch();
         currentTrack = trackChecksum;
         onPlayStateChanged();
 
@@ -215,6 +234,7 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
             }
             player.reset();
             playerPrepared = false;
+            sourceTrack = trackChecksum;
 
             try {
                 player.setDataSource(trackPath);
@@ -234,22 +254,47 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
         final Context appContext = getApplicationContext();
         final WeakReference<MediaService> serviceRef = new WeakReference<>(this);
         Log.d(TAG, "Fetching track index " + index + " with ID " + StorageManager.bytesToHex(trackChecksum));
-        NetworkManager.fetchTrack(trackChecksum, new NetworkManager.ContentFetchCallback() {
+        trackFetch = NetworkManager.fetchTrack(appContext, trackChecksum, RequestPriority.INTERACTIVE, new NetworkManager.ContentFetchCallback() {
+            @Override
+            public void onContentStarted(ContentSink sink) {
+                // Start playing from the partial file once the container header and a little audio have arrived
+                sink.runWhenAvailable(PROGRESSIVE_START_BYTES, () -> ThreadManager.runOnUIThread(() -> {
+                    MediaService service = serviceRef.get();
+                    if (service != null) {
+                        service.playProgressive(sink);
+                    }
+                }));
+            }
+
             @Override
-            public void onContentReceived(byte[] data) {
-                StorageManager.saveContentFile(appContext, trackChecksum, data);
-
-                // If the service still exists, ask it to play
-                MediaService service = serviceRef.get();
-                if (service != null) {
-                    service.play(index);
-                }
+            public void onContentReceived(File contentFile) {
+                // If the service still exists and didn't already start this track mid-download, ask it to play
+                ThreadManager.runOnUIThread(() -> {
+                    MediaService service = serviceRef.get();
+                    if (service != null && service.isPlaying && Arrays.equals(service.currentTrack, trackChecksum) && !Arrays.equals(service.sourceTrack, trackChecksum)) {
+                        service.play(index);
+                    }
+                });
             }
 
             @Override
             public void onAbort() {
-                isPlaying = false;
-                onPlayStateChanged();
+                // Only stop if the service is still on this track - it may have moved on since
+                ThreadManager.runOnUIThread(() -> {
+                    MediaService service = serviceRef.get();
+                    if (service == null || !Arrays.equals(service.currentTrack, trackChecksum)) {
+                        return;
+                    }
+
+                    // Progressive playback has nothing left to read from
+                    if (Arrays.equals(service.sourceTrack, trackChecksum)) {
+                        service.player.reset();
+                        service.playerPrepared = false;
+                        service.sourceTrack = null;
+                    }
+                    service.isPlaying = false;
+                    service.onPlayStateChanged();
+                });
             }
         });
 
@@ -257,6 +302,32 @@ public class MediaService extends Service implements MediaPlayer.OnErrorListener
         return true;
     }
 
+    private void cancelTrackFetch() {
+        // Stops callbacks for a track we've moved on from; the download itself carries on if a
+        // prefetch still wants it
+        if (trackFetch != null) {
+            trackFetch.cancel();
+            trackFetch = null;
+        }
+    }
+
+    private void playProgressive(ContentSink sink) {
+        // Only take over if we're still waiting on this track and haven't started it some other way
+        byte[] trackChecksum = sink.getChecksum();
+        if (!isPlaying || !Arrays.equals(currentTrack, trackChecksum) || Arrays.equals(sourceTrack, trackChecksum)) {
+            return;
+        }
+
+        Log.d(TAG, "Starting progressive playback of " + StorageManager.bytesToHex(trackChecksum) + " with " + sink.getBytesWritten() + "/" + sink.getExpectedLength() + " bytes");
+        player.reset();
+        playerPrepared = false;
+        sourceTrack = trackChecksum;
+
+        // Reads past the download position block until the data arrives
+        player.setDataSource(new ProgressiveDataSource(sink));
+        player.prepareAsync();
+    }
+
     /**
      * Called to indicate an error.
      *
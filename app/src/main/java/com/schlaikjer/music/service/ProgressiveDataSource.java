@@ -0,0 +1,78 @@
+package com.schlaikjer.music.service;
+
+import android.media.MediaDataSource;
+
+import com.schlaikjer.music.utility.ContentSink;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MediaDataSource over a content file that is still being downloaded. Reads past the current
+ * download position block until the data arrives, so playback can start as soon as the container
+ * header has been received.
+ * <p>
+ * Closing the source wakes any blocked read, so that resetting the player never waits on the
+ * network.
+ */
+public class ProgressiveDataSource extends MediaDataSource {
+
+    private final ContentSink _sink;
+    private final AtomicBoolean _closed = new AtomicBoolean(false);
+    // Guarded by this, which is never held while waiting on the sink
+    private RandomAccessFile _file;
+
+    public ProgressiveDataSource(ContentSink sink) {
+        _sink = sink;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+
+        // Wait for the download to reach this position
+        long available;
+        try {
+            available = _sink.awaitAvailable(position, _closed);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for content", e);
+        }
+        if (available == 0) {
+            return -1;
+        }
+
+        synchronized (this) {
+            if (_closed.get()) {
+                throw new IOException("Data source is closed");
+            }
+            if (_file == null) {
+                _file = _sink.openForRead();
+            }
+            _file.seek(position);
+            return _file.read(buffer, offset, (int) Math.min(size, available));
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return _sink.getExpectedLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Any read still waiting on the download sees the flag and gives up
+        _closed.set(true);
+        _sink.wakeReaders();
+
+        synchronized (this) {
+            if (_file != null) {
+                _file.close();
+                _file = null;
+            }
+        }
+    }
+
+}
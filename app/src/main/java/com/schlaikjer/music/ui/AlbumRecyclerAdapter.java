@@ -16,10 +16,12 @@ import com.schlaikjer.music.R;
 import com.schlaikjer.music.listener.AlbumSelectedListener;
 import com.schlaikjer.music.listener.TrackSelectedListener;
 import com.schlaikjer.music.model.Album;
+import com.schlaikjer.music.model.RequestPriority;
 import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.StorageManager;
 import com.squareup.picasso.Picasso;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -30,6 +32,8 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
     private static final String TAG = AlbumRecyclerAdapter.class.getSimpleName();
 
     private final Context _appContext;
+    // Size of thumbnail to fetch for our image views
+    private final int _thumbnailSize;
     private List<Album> _albums;
     private String[] _albumSections;
     private Integer[] _albumSectionOffsets;
@@ -72,6 +76,8 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
         public final TextView albumText;
 
         public Album album;
+        // Outstanding art download for this cell, if any
+        NetworkManager.ContentFetchHandle imageFetch;
 
         public ViewHolder(View view) {
             super(view);
@@ -84,6 +90,7 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
 
     public AlbumRecyclerAdapter(Context context, AlbumSelectedListener albumSelectedListener, TrackSelectedListener trackSelectedListener) {
         this._appContext = context.getApplicationContext();
+        this._thumbnailSize = StorageManager.thumbnailSize(context.getResources().getDimensionPixelSize(R.dimen.album_list_image_width));
         this.albumSelectedListener = albumSelectedListener;
         this.trackSelectedListener = trackSelectedListener;
         setAlbumList(new ArrayList<>());
@@ -141,8 +148,9 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
         final Album album = _albums.get(position);
         viewHolder.album = album;
 
-        // Invalidate previous picasso requests
+        // Invalidate previous picasso requests and art downloads
         Picasso.get().cancelRequest(viewHolder.imageView);
+        cancelImageFetch(viewHolder);
 
         View.OnClickListener listener = v -> albumSelectedListener.onAlbumSelected(album);
         viewHolder.rootView.setOnClickListener(listener);
@@ -160,11 +168,12 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
         boolean didLoadImage = false;
         for (byte[] checksum : album.coverImageChecksums) {
             Log.d(TAG, "Checking for cached content hash " + StorageManager.bytesToHex(checksum));
-            if (StorageManager.hasContentFile(_appContext, checksum)) {
+            File artFile = StorageManager.getCachedArtFile(_appContext, checksum, _thumbnailSize);
+            if (artFile != null) {
                 // Load into UI
                 didLoadImage = true;
                 Picasso.get()
-                        .load(StorageManager.getContentFile(_appContext, checksum))
+                        .load(artFile)
                         .placeholder(R.drawable.ic_baseline_image_48)
                         .error(R.drawable.ic_baseline_image_48)
                         .into(viewHolder.imageView);
@@ -195,16 +204,15 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
         coverImageChecksums.remove(0);
 
         // If we already have it, we're done
-        if (StorageManager.hasContentFile(_appContext, checksum)) {
+        if (StorageManager.getCachedArtFile(_appContext, checksum, _thumbnailSize) != null) {
             return;
         }
 
         Log.d(TAG, "Fetching image with content ID " + StorageManager.bytesToHex(checksum));
-        NetworkManager.fetchImage(checksum, new NetworkManager.ContentFetchCallback() {
+        holder.imageFetch = NetworkManager.fetchThumbnail(_appContext, checksum, _thumbnailSize, RequestPriority.VISIBLE, new NetworkManager.ContentFetchCallback() {
             @Override
-            public void onContentReceived(byte[] data) {
-                // Save the image to local storage for next time
-                StorageManager.saveContentFile(_appContext, checksum, data);
+            public void onContentReceived(File contentFile) {
+                // Image is now in local storage for next time
             }
 
 
@@ -218,6 +226,19 @@ public class AlbumRecyclerAdapter extends RecyclerView.Adapter<AlbumRecyclerAdap
         });
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // Cell has scrolled away, so stop downloading art for it
+        cancelImageFetch(holder);
+    }
+
+    private void cancelImageFetch(ViewHolder holder) {
+        if (holder.imageFetch != null) {
+            holder.imageFetch.cancel();
+            holder.imageFetch = null;
+        }
+    }
+
     @Override
     public int getItemCount() {
         return _albums.size();
@@ -12,11 +12,13 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.schlaikjer.music.R;
 import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.RequestPriority;
 import com.schlaikjer.music.model.Track;
 import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.StorageManager;
 import com.squareup.picasso.Picasso;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,6 +27,8 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
     private static final String TAG = PlaylistRecyclerAdapter.class.getSimpleName();
 
     private final Context _appContext;
+    // Size of thumbnail to fetch for our image views
+    private final int _thumbnailSize;
     private List<Track> _tracks;
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -34,6 +38,8 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
         public final TextView subtitleText;
 
         public Track track;
+        // Outstanding art download for this cell, if any
+        NetworkManager.ContentFetchHandle imageFetch;
 
         public ViewHolder(View view) {
             super(view);
@@ -52,6 +58,7 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
 
     public PlaylistRecyclerAdapter(Context context, TrackSelectedListener listener) {
         this._appContext = context.getApplicationContext();
+        this._thumbnailSize = StorageManager.thumbnailSize(context.getResources().getDimensionPixelSize(R.dimen.playlist_image_width));
         this.trackSelectedListener = listener;
         setPlaylist(new ArrayList<>());
     }
@@ -79,17 +86,20 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
         final Track track = _tracks.get(position);
         viewHolder.track = track;
 
+        // Invalidate any art download for the item this holder showed before
+        cancelImageFetch(viewHolder);
 
         // Attempt to find an already loaded image for this album
         TrackDatabase db = TrackDatabase.getInstance(_appContext);
         List<byte[]> imageCandidates = db.getImageChecksumsForParentPath(track.parent_path);
         boolean didLoadImage = false;
         for (byte[] checksum : imageCandidates) {
-            if (StorageManager.hasContentFile(_appContext, checksum)) {
+            File artFile = StorageManager.getCachedArtFile(_appContext, checksum, _thumbnailSize);
+            if (artFile != null) {
                 // Load into UI
                 didLoadImage = true;
                 Picasso.get()
-                        .load(StorageManager.getContentFile(_appContext, checksum))
+                        .load(artFile)
                         .placeholder(R.drawable.ic_baseline_image_48)
                         .error(R.drawable.ic_baseline_image_48)
                         .into(viewHolder.imageView);
@@ -126,16 +136,15 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
         coverImageChecksums.remove(0);
 
         // If we already have it, we're done
-        if (StorageManager.hasContentFile(_appContext, checksum)) {
+        if (StorageManager.getCachedArtFile(_appContext, checksum, _thumbnailSize) != null) {
             return;
         }
 
         Log.d(TAG, "Fetching image with content ID " + StorageManager.bytesToHex(checksum));
-        NetworkManager.fetchImage(checksum, new NetworkManager.ContentFetchCallback() {
+        holder.imageFetch = NetworkManager.fetchThumbnail(_appContext, checksum, _thumbnailSize, RequestPriority.VISIBLE, new NetworkManager.ContentFetchCallback() {
             @Override
-            public void onContentReceived(byte[] data) {
-                // Save the image to local storage for next time
-                StorageManager.saveContentFile(_appContext, checksum, data);
+            public void onContentReceived(File contentFile) {
+                // Image is now in local storage for next time
             }
 
             @Override
@@ -150,6 +159,19 @@ public class PlaylistRecyclerAdapter extends RecyclerView.Adapter<PlaylistRecycl
         });
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // Cell has scrolled away, so stop downloading art for it
+        cancelImageFetch(holder);
+    }
+
+    private void cancelImageFetch(ViewHolder holder) {
+        if (holder.imageFetch != null) {
+            holder.imageFetch.cancel();
+            holder.imageFetch = null;
+        }
+    }
+
     @Override
     public int getItemCount() {
         return _tracks.size();
@@ -30,6 +30,7 @@ import com.schlaikjer.music.db.TrackDatabase;
 import com.schlaikjer.music.model.Album;
 import com.schlaikjer.music.model.Track;
 import com.schlaikjer.music.service.MediaService;
+import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.PlaylistManager;
 import com.schlaikjer.music.utility.StorageManager;
 import com.schlaikjer.music.utility.ThreadManager;
@@ -97,6 +98,19 @@ public class MainActivity extends AppCompatActivity {
         bindService(new Intent(this, MediaService.class), mediaServiceConnection, BIND_AUTO_CREATE);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Have a connection ready for whatever the user taps on next
+        NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, true);
+    }
+
+    @Override
+    protected void onStop() {
+        NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, false);
+        super.onStop();
+    }
+
     @Override
     protected void onDestroy() {
         unbindService(mediaServiceConnection);
@@ -18,15 +18,16 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
-import com.schlaikjer.msgs.TrackOuterClass;
 import com.schlaikjer.music.R;
 import com.schlaikjer.music.db.TrackDatabase;
 import com.schlaikjer.music.listener.AlbumSelectedListener;
 import com.schlaikjer.music.listener.TrackSelectedListener;
 import com.schlaikjer.music.model.Album;
+import com.schlaikjer.music.model.SyncResult;
 import com.schlaikjer.music.model.Track;
 import com.schlaikjer.music.ui.AlbumRecyclerAdapter;
 import com.schlaikjer.music.ui.activity.MainActivity;
+import com.schlaikjer.music.utility.LibraryManager;
 import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.PlaylistManager;
 import com.schlaikjer.music.utility.StorageManager;
@@ -59,10 +60,15 @@ public class LibraryFragment extends Fragment implements AlbumSelectedListener,
 
         final SwipeRefreshLayout swipeRefresh = root.findViewById(R.id.fragment_home_swipe_refresh);
         final Context appContext = root.getContext().getApplicationContext();
-        swipeRefresh.setOnRefreshListener(() -> NetworkManager.fetchDatabase(new NetworkManager.DatabaseFetchCallback() {
+        swipeRefresh.setOnRefreshListener(() -> LibraryManager.sync(appContext, new LibraryManager.LibrarySyncCallback() {
             @Override
-            public void onDatabaseFetched(TrackOuterClass.MusicDatabase db) {
-                TrackDatabase.getInstance(appContext).setDatabase(db);
+            public void onLibrarySynced(SyncResult result) {
+                // Nothing changed on the server, so what's on screen is still current
+                if (result.getChangedRows() == 0) {
+                    ThreadManager.runOnUIThread(() -> swipeRefresh.setRefreshing(false));
+                    return;
+                }
+
                 final List<Album> albums = TrackDatabase.getInstance(appContext).getDirectoryAlbums(baseDir);
 
                 // If we are on wifi, prefetch album art
@@ -101,10 +107,9 @@ public class LibraryFragment extends Fragment implements AlbumSelectedListener,
             }
 
             // If the album list is empty, this might be first boot - try and fetch albums from the network
-            NetworkManager.fetchDatabase(new NetworkManager.DatabaseFetchCallback() {
+            LibraryManager.sync(appContext, new LibraryManager.LibrarySyncCallback() {
                 @Override
-                public void onDatabaseFetched(TrackOuterClass.MusicDatabase db) {
-                    TrackDatabase.getInstance(appContext).setDatabase(db);
+                public void onLibrarySynced(SyncResult result) {
                     final List<Album> albums = TrackDatabase.getInstance(appContext).getDirectoryAlbums(baseDir);
 
                     // If we are on wifi, prefetch album art
@@ -159,7 +164,7 @@ public class LibraryFragment extends Fragment implements AlbumSelectedListener,
         }
 
         // Get all the tracks below this album
-        List<Track> tracks = TrackDatabase.getInstance(getContext()).getTracksForParentPathRecursive(album.parent_path);
+        List<Track> tracks = TrackDatabase.getInstance(getContext()).getTracksForDirectoryRecursive(album.directoryId);
         List<byte[]> trackIds = new ArrayList<>();
         for (Track track : tracks) {
             trackIds.add(track.checksum);
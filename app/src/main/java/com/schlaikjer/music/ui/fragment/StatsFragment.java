@@ -16,6 +16,10 @@ import androidx.fragment.app.Fragment;
 import com.google.android.material.slider.Slider;
 import com.schlaikjer.music.R;
 import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.Histogram;
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.utility.LinkEstimator;
+import com.schlaikjer.music.utility.NetworkMetrics;
 import com.schlaikjer.music.utility.NetworkManager;
 import com.schlaikjer.music.utility.PreferencesManager;
 import com.schlaikjer.music.utility.StorageManager;
@@ -32,10 +36,26 @@ public class StatsFragment extends Fragment {
 
     static final long MEGABYTE = 1024 * 1024;
 
+    // How often the network panel is refreshed while visible
+    private static final long NETWORK_STATS_REFRESH_MS = 1000;
+
+    private TextView _networkStatsText;
+    private final Runnable _refreshNetworkStats = new Runnable() {
+        @Override
+        public void run() {
+            if (_networkStatsText == null) {
+                return;
+            }
+            _networkStatsText.setText(formatNetworkStats());
+            _networkStatsText.postDelayed(this, NETWORK_STATS_REFRESH_MS);
+        }
+    };
+
     public View onCreateView(@NonNull LayoutInflater inflater,
                              ViewGroup container, Bundle savedInstanceState) {
         View root = inflater.inflate(R.layout.fragment_stats, container, false);
         TextView cacheSizeText = root.findViewById(R.id.fragment_stats_cache_size);
+        _networkStatsText = root.findViewById(R.id.fragment_stats_network);
         CheckBox limitCacheSize = root.findViewById(R.id.fragment_stats_limit_cache_size);
         Slider cacheSizeSlider = root.findViewById(R.id.fragment_stats_max_cache_size);
         Button rescanRemoteDb = root.findViewById(R.id.fragment_stats_rescan_remote_db);
@@ -92,6 +112,56 @@ public class StatsFragment extends Fragment {
         return root;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        _refreshNetworkStats.run();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (_networkStatsText != null) {
+            _networkStatsText.removeCallbacks(_refreshNetworkStats);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        _networkStatsText = null;
+    }
+
+    private String formatNetworkStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getString(R.string.network_throughput_s, formatByteSize(NetworkMetrics.getReceiveThroughput()), (int) (NetworkManager.getWindowOccupancy() * 100))).append('\n');
+        sb.append(getString(R.string.network_link_s, LinkEstimator.getSmoothedRttMs(), LinkEstimator.getRttVarianceMs(),
+                formatByteSize(Math.max(0, LinkEstimator.getBandwidthEstimate())))).append('\n');
+        sb.append(getString(R.string.network_connections_d, NetworkMetrics.getConnects(), NetworkMetrics.getConnectFailures(), NetworkMetrics.getAborts())).append('\n');
+        sb.append(getString(R.string.network_verify_s, formatByteSize(NetworkMetrics.getBytesVerified()), formatByteSize(NetworkMetrics.getVerifyThroughput()),
+                formatPercentiles(NetworkMetrics.getVerifyLag()), NetworkMetrics.getVerifyFailures(), NetworkMetrics.getVerifyRetries())).append('\n');
+        sb.append(getString(R.string.network_latency_header));
+
+        // One line per opcode we've had answers for
+        for (int opcode = 0; opcode < NetworkMetrics.OPCODE_SLOTS; opcode++) {
+            NetworkMetrics.OpcodeMetrics metrics = NetworkMetrics.forOpcode(opcode);
+            long responses = metrics.responses.get();
+            if (responses == 0) {
+                continue;
+            }
+            sb.append('\n').append(String.format(Locale.US, "%s x%d, %s", NetworkOpcode.name(opcode), responses, formatByteSize(metrics.bytesReceived.get())));
+            sb.append('\n').append(String.format(Locale.US, "  %s | %s | %s",
+                    formatPercentiles(metrics.queueWait), formatPercentiles(metrics.timeToFirstByte), formatPercentiles(metrics.transferTime)));
+        }
+        return sb.toString();
+    }
+
+    private static String formatPercentiles(Histogram histogram) {
+        // Histograms are in microseconds
+        return String.format(Locale.US, "%.1f/%.1f/%.1f",
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(95) / 1000.0, histogram.getPercentile(99) / 1000.0);
+    }
+
 
     public static String formatByteSize(long bytes) {
         long absB = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
@@ -0,0 +1,510 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.CacheEntry;
+import com.schlaikjer.music.model.PayloadSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes a content payload to a temporary file next to its final location in the content cache as
+ * it arrives, then atomically renames it into place once the transfer is complete. Memory use is
+ * independent of the size of the content.
+ * <p>
+ * Data may arrive in order, as a single streamed payload, or as ranges at arbitrary offsets. Readers
+ * may open the content while it is still downloading, and block until the bytes they need have
+ * been written. Resumable sinks keep the contiguous prefix of an aborted transfer on disk so that a
+ * later attempt can pick up where it left off.
+ * <p>
+ * Content that is stored under its own checksum is hashed as it arrives, and is only moved into the
+ * cache once the hash matches.
+ */
+public class ContentSink implements PayloadSink {
+
+    private static final String TAG = ContentSink.class.getSimpleName();
+
+    static final String PARTIAL_SUFFIX = ".part";
+
+    // Told when a reader is blocked on data that has not been requested yet, e.g. after a seek
+    public interface RangeWantedListener {
+        void onRangeWanted(ContentSink sink, long position);
+    }
+
+    // Pending request to be told once a given number of bytes are available
+    private static class WatermarkListener {
+        final long bytes;
+        final Runnable runnable;
+
+        WatermarkListener(long bytes, Runnable runnable) {
+            this.bytes = bytes;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Context _context;
+    private final byte[] _checksum;
+    private final File _target_file;
+    private final File _partial_file;
+    private final boolean _resumable;
+    // Null if the content isn't stored under its own checksum, e.g. thumbnails
+    private final ContentVerifier _verifier;
+
+    private FileChannel _channel;
+    private volatile long _expected_length = -1;
+    // Every byte before this offset has been written
+    private long _contiguous_bytes = 0;
+    // Written ranges beyond the contiguous prefix, start -> end
+    private final TreeMap<Long, Long> _written_ranges = new TreeMap<>();
+    // Where the next in-order payload fragment goes
+    private long _append_position = 0;
+    private boolean _complete = false;
+    private boolean _committed = false;
+    private boolean _failed = false;
+    private final List<WatermarkListener> _watermark_listeners = new ArrayList<>();
+    private RangeWantedListener _range_wanted_listener;
+
+    ContentSink(Context context, byte[] checksum, File targetFile, boolean resumable, boolean verify) {
+        _context = context.getApplicationContext();
+        _checksum = checksum;
+        _target_file = targetFile;
+        _partial_file = new File(targetFile.getParentFile(), targetFile.getName() + PARTIAL_SUFFIX);
+        _resumable = resumable;
+        _verifier = verify ? new ContentVerifier(checksum, _partial_file) : null;
+
+        // Pick up from whatever an earlier attempt managed to save, or clear it out
+        if (_resumable) {
+            _contiguous_bytes = _partial_file.length();
+            if (_contiguous_bytes > 0) {
+                Log.d(TAG, "Resuming " + targetFile.getName() + " from byte " + _contiguous_bytes);
+                // Whatever we kept from last time has to be hashed too, so make a start on it now
+                if (_verifier != null) {
+                    _verifier.advance(_contiguous_bytes);
+                }
+            }
+        } else if (_partial_file.exists() && !_partial_file.delete()) {
+            Log.w(TAG, "Failed to delete stale partial content file " + _partial_file.getAbsolutePath());
+        }
+    }
+
+    public byte[] getChecksum() {
+        return _checksum;
+    }
+
+    public File getContentFile() {
+        return _target_file;
+    }
+
+    // How many bytes from the start of the content are available to read
+    public synchronized long getBytesWritten() {
+        return _contiguous_bytes;
+    }
+
+    // Total size of the content, or -1 if the response header has not arrived yet
+    public long getExpectedLength() {
+        return _expected_length;
+    }
+
+    void setExpectedLength(long length) {
+        synchronized (this) {
+            _expected_length = length;
+            if (_contiguous_bytes >= length) {
+                _complete = true;
+            }
+            notifyAll();
+        }
+        notifyWatermarkListeners();
+    }
+
+    synchronized void setRangeWantedListener(RangeWantedListener listener) {
+        _range_wanted_listener = listener;
+    }
+
+    // How many bytes from the given position have been written, whether or not they're contiguous
+    // with the start of the content
+    public synchronized long getBytesAvailableFrom(long position) {
+        return availableFrom(position);
+    }
+
+    public synchronized boolean isRangeAvailable(long start, long end) {
+        return availableFrom(start) >= end - start;
+    }
+
+    // Whether every byte of the content has been written
+    public synchronized boolean isComplete() {
+        return _complete;
+    }
+
+    @Override
+    public void onPayloadData(ByteBuffer data) {
+        long position;
+        synchronized (this) {
+            position = _append_position;
+            _append_position += data.remaining();
+        }
+        write(position, data);
+    }
+
+    @Override
+    public void onPayloadComplete() {
+        synchronized (this) {
+            // A streamed payload is the whole content by definition
+            if (_expected_length < 0 || _contiguous_bytes >= _expected_length) {
+                _expected_length = _contiguous_bytes;
+                _complete = true;
+            }
+            notifyAll();
+        }
+        notifyWatermarkListeners();
+    }
+
+    /**
+     * Write part of the content at the given offset.
+     */
+    public void write(long position, ByteBuffer data) {
+        synchronized (this) {
+            // Late ranges for a transfer that has already finished one way or another
+            if (_failed || _committed) {
+                data.position(data.limit());
+                return;
+            }
+
+            long start = position;
+            try {
+                // Lazily open the partial file
+                if (_channel == null) {
+                    _channel = new RandomAccessFile(_partial_file, "rw").getChannel();
+                }
+
+                while (data.hasRemaining()) {
+                    position += _channel.write(data, position);
+                }
+            } catch (IOException e) {
+                // Swallow the rest of the payload so the connection stays in sync, and fail on commit
+                Log.e(TAG, "Failed to write content to " + _partial_file.getAbsolutePath(), e);
+                _failed = true;
+                data.position(data.limit());
+            }
+
+            addWrittenRange(start, position);
+            notifyAll();
+        }
+        notifyWatermarkListeners();
+    }
+
+    /**
+     * Run the given runnable once at least the given number of bytes (or the whole content, if it
+     * is smaller) has been written. The runnable is called on the network thread, or immediately if
+     * enough data is already available. It is never called if the transfer fails.
+     */
+    public void runWhenAvailable(long bytes, Runnable runnable) {
+        synchronized (this) {
+            if (!isPrefixAvailable(bytes)) {
+                _watermark_listeners.add(new WatermarkListener(bytes, runnable));
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    /**
+     * Block until the byte at the given position has been written, or the content is known to end
+     * before it. If nobody has asked for that part of the content yet, the range wanted listener is
+     * told so that it can be fetched ahead of anything else.
+     *
+     * @param closed Set by the reader to give up waiting, followed by a call to {@link #wakeReaders()}
+     * @return How many contiguous bytes are readable from the position - zero at end of content
+     * @throws IOException If the transfer failed or was aborted, or the reader was closed
+     */
+    public long awaitAvailable(long position, AtomicBoolean closed) throws IOException, InterruptedException {
+        boolean requested = false;
+        while (true) {
+            RangeWantedListener listener;
+            synchronized (this) {
+                if (closed.get()) {
+                    throw new IOException("Reader of " + _target_file.getName() + " was closed");
+                }
+                if (_failed) {
+                    throw new IOException("Transfer of " + _target_file.getName() + " failed");
+                }
+                long available = availableFrom(position);
+                if (available > 0) {
+                    return available;
+                }
+                if (_complete || _committed || (_expected_length >= 0 && position >= _expected_length)) {
+                    return 0;
+                }
+                if (requested || _range_wanted_listener == null) {
+                    wait();
+                    continue;
+                }
+                listener = _range_wanted_listener;
+            }
+
+            // Called outside our lock, since the listener will want the network manager's
+            listener.onRangeWanted(this, position);
+            requested = true;
+        }
+    }
+
+    /**
+     * Wake any readers blocked in {@link #awaitAvailable(long, AtomicBoolean)} so that they can
+     * notice they have been closed.
+     */
+    public synchronized void wakeReaders() {
+        notifyAll();
+    }
+
+    /**
+     * Open the content for reading, whether or not the transfer has finished. The returned handle
+     * stays valid across the rename that happens on commit.
+     */
+    public synchronized RandomAccessFile openForRead() throws IOException {
+        if (_failed) {
+            throw new IOException("Transfer of " + _target_file.getName() + " failed");
+        }
+        return new RandomAccessFile(_committed ? _target_file : _partial_file, "r");
+    }
+
+    /**
+     * Check the received content against its checksum. Hashing keeps up with the download, so this
+     * usually only has the last few KB left to do. Content that isn't verified always passes.
+     *
+     * @param callback Called with the result on a verifier thread, or straight away if there is
+     *                 nothing to check
+     */
+    public void verify(ContentVerifier.VerifyCallback callback) {
+        long length;
+        synchronized (this) {
+            if (_verifier == null || _failed || !_complete) {
+                length = -1;
+            } else {
+                length = _contiguous_bytes;
+                _verifier.finish(length, callback);
+            }
+        }
+        if (length < 0) {
+            // Unverified content passes, and failed or incomplete content is caught by commit
+            callback.onVerified(_verifier == null);
+        }
+    }
+
+    /**
+     * Throw away everything received so far and start the transfer over, keeping the sink itself so
+     * that readers and callers holding it carry on with the new data.
+     */
+    public void restart() {
+        synchronized (this) {
+            if (_committed) {
+                return;
+            }
+            try {
+                // Truncate rather than delete, so that open read handles see the new data
+                if (_channel == null) {
+                    _channel = new RandomAccessFile(_partial_file, "rw").getChannel();
+                }
+                _channel.truncate(0);
+                _failed = false;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to clear " + _partial_file.getAbsolutePath(), e);
+                _failed = true;
+            }
+            _contiguous_bytes = 0;
+            _written_ranges.clear();
+            _append_position = 0;
+            _complete = false;
+            // Ranged fetches still know the size, everything else learns it again from the response
+            if (!_resumable) {
+                _expected_length = -1;
+            }
+            if (_verifier != null) {
+                _verifier.reset();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Move the received content into the cache proper and record it in the cache table.
+     *
+     * @return Whether the content is now available at {@link #getContentFile()}
+     */
+    public boolean commit() {
+        synchronized (this) {
+            closeChannel();
+            if (_failed || !_complete) {
+                discard();
+                return false;
+            }
+
+            try {
+                // Zero-length payloads never open the channel, so make sure the file exists
+                if (!_partial_file.exists() && !_partial_file.createNewFile()) {
+                    throw new IOException("Failed to create " + _partial_file.getAbsolutePath());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                discard();
+                return false;
+            }
+
+            // Rename is atomic within a directory, so readers only ever see complete files
+            if (!_partial_file.renameTo(_target_file)) {
+                Log.e(TAG, "Failed to move " + _partial_file.getAbsolutePath() + " into place");
+                discard();
+                return false;
+            }
+            _committed = true;
+            notifyAll();
+        }
+
+        // Add a cache entry to the DB on success
+        CacheEntry entry = new CacheEntry();
+        entry.checksum = _checksum;
+        entry.path = _target_file.getAbsolutePath();
+        entry.sizeBytes = _target_file.length();
+        TrackDatabase.getInstance(_context).addCacheEntry(entry);
+        return true;
+    }
+
+    /**
+     * Give up on the transfer. Resumable sinks keep the contiguous prefix received so far for the
+     * next attempt, others discard everything.
+     */
+    public synchronized void abort() {
+        if (!_resumable || _failed) {
+            discard();
+            return;
+        }
+
+        // Anything past the contiguous prefix can't be resumed from, so drop it
+        try {
+            if (_channel != null) {
+                _channel.truncate(_contiguous_bytes);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closeChannel();
+        fail();
+    }
+
+    /**
+     * Discard any data received so far.
+     */
+    public synchronized void discard() {
+        closeChannel();
+        fail();
+        if (_partial_file.exists() && !_partial_file.delete()) {
+            Log.w(TAG, "Failed to delete partial content file " + _partial_file.getAbsolutePath());
+        }
+    }
+
+    private void fail() {
+        _failed = true;
+        if (_verifier != null) {
+            _verifier.cancel();
+        }
+        _watermark_listeners.clear();
+        notifyAll();
+    }
+
+    private void addWrittenRange(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        // Merge with any overlapping or adjacent ranges
+        Map.Entry<Long, Long> prev = _written_ranges.floorEntry(start);
+        if (prev != null && prev.getValue() >= start) {
+            start = prev.getKey();
+            end = Math.max(end, prev.getValue());
+            _written_ranges.remove(prev.getKey());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = _written_ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            _written_ranges.remove(next.getKey());
+        }
+
+        // Fold into the contiguous prefix if it now reaches it, and let the verifier hash the new part
+        if (start <= _contiguous_bytes) {
+            _contiguous_bytes = Math.max(_contiguous_bytes, end);
+            if (_verifier != null) {
+                _verifier.advance(_contiguous_bytes);
+            }
+        } else {
+            _written_ranges.put(start, end);
+        }
+
+        if (_expected_length >= 0 && _contiguous_bytes >= _expected_length) {
+            _complete = true;
+        }
+    }
+
+    private long availableFrom(long position) {
+        if (position < _contiguous_bytes) {
+            return _contiguous_bytes - position;
+        }
+        Map.Entry<Long, Long> range = _written_ranges.floorEntry(position);
+        if (range != null && range.getValue() > position) {
+            return range.getValue() - position;
+        }
+        return 0;
+    }
+
+    private boolean isPrefixAvailable(long bytes) {
+        if (_failed) {
+            return false;
+        }
+        if (_complete || _committed) {
+            return true;
+        }
+        return _contiguous_bytes >= bytes || (_expected_length >= 0 && _contiguous_bytes >= _expected_length);
+    }
+
+    private void notifyWatermarkListeners() {
+        // Collect satisfied listeners under the lock, but run them outside it
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            Iterator<WatermarkListener> it = _watermark_listeners.iterator();
+            while (it.hasNext()) {
+                WatermarkListener listener = it.next();
+                if (isPrefixAvailable(listener.bytes)) {
+                    ready.add(listener.runnable);
+                    it.remove();
+                }
+            }
+        }
+        for (Runnable runnable : ready) {
+            runnable.run();
+        }
+    }
+
+    private void closeChannel() {
+        if (_channel == null) {
+            return;
+        }
+
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            _failed = true;
+        }
+        _channel = null;
+    }
+
+}
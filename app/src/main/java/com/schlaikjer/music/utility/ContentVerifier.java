@@ -0,0 +1,270 @@
+package com.schlaikjer.music.utility;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hashes a piece of content as it is downloaded, so that it can be checked against its checksum
+ * as soon as the last byte arrives rather than read back in full afterwards.
+ * <p>
+ * The owning {@link ContentSink} reports how much of the content is contiguous on disk, and the
+ * verifier reads that prefix back from the partial file and feeds it to the digest on a small
+ * shared pool. Content IDs are the SHA-1 of the file, so the result can be compared with the
+ * checksum directly.
+ */
+class ContentVerifier {
+
+    private static final String TAG = ContentVerifier.class.getSimpleName();
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int VERIFY_THREADS = 2;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static final ExecutorService _pool = Executors.newFixedThreadPool(VERIFY_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "ContentVerifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface VerifyCallback {
+        // Called on a verifier thread
+        void onVerified(boolean matches);
+    }
+
+    private final byte[] _checksum;
+    private final File _file;
+
+    private MessageDigest _digest;
+    private FileChannel _channel;
+    private ByteBuffer _buffer;
+    // Bumped whenever the content starts over, so that a hash pass in progress knows to drop its work
+    private int _generation = 0;
+    // Bytes fed to the digest so far, and how many are ready to be
+    private long _hashed_bytes = 0;
+    private long _available_bytes = 0;
+    // Whether a hash pass is queued or running on the pool
+    private boolean _running = false;
+    // Total length and who to tell, once the download has finished
+    private long _final_length = -1;
+    private VerifyCallback _callback;
+    private long _finished_at_nanos;
+    private long _hash_nanos = 0;
+    private boolean _cancelled = false;
+
+    ContentVerifier(byte[] checksum, File file) {
+        _checksum = checksum;
+        _file = file;
+        _digest = newDigest();
+    }
+
+    /**
+     * Note that the first contiguousBytes of the content are on disk and can be hashed.
+     */
+    synchronized void advance(long contiguousBytes) {
+        if (_cancelled || contiguousBytes <= _available_bytes) {
+            return;
+        }
+        _available_bytes = contiguousBytes;
+        schedule();
+    }
+
+    /**
+     * Check the content once everything up to length has been hashed. Any remaining hashing happens
+     * on the pool, and the callback is made once the result is known.
+     */
+    synchronized void finish(long length, VerifyCallback callback) {
+        if (_cancelled) {
+            return;
+        }
+        _final_length = length;
+        _callback = callback;
+        _finished_at_nanos = System.nanoTime();
+        _available_bytes = Math.max(_available_bytes, length);
+        schedule();
+    }
+
+    /**
+     * Forget everything hashed so far, e.g. because the content is being fetched again.
+     */
+    synchronized void reset() {
+        _generation++;
+        _digest = newDigest();
+        _hashed_bytes = 0;
+        _available_bytes = 0;
+        _final_length = -1;
+        _callback = null;
+        _hash_nanos = 0;
+    }
+
+    /**
+     * Stop hashing and release the file. Pending callbacks are never made.
+     */
+    synchronized void cancel() {
+        reset();
+        _cancelled = true;
+        if (!_running) {
+            closeChannel();
+        }
+    }
+
+    // Must be called with the lock held
+    private void schedule() {
+        if (_running) {
+            return;
+        }
+        _running = true;
+        _pool.execute(this::hashAvailable);
+    }
+
+    private void hashAvailable() {
+        while (true) {
+            MessageDigest digest;
+            int generation;
+            long position;
+            int length;
+            synchronized (this) {
+                if (_cancelled) {
+                    _running = false;
+                    closeChannel();
+                    return;
+                }
+                if (_hashed_bytes >= _available_bytes) {
+                    _running = false;
+                    break;
+                }
+                digest = _digest;
+                generation = _generation;
+                position = _hashed_bytes;
+                length = (int) Math.min(READ_SIZE, _available_bytes - _hashed_bytes);
+            }
+
+            // Read and hash outside the lock so that the network thread is never held up by us
+            long start = System.nanoTime();
+            int read;
+            try {
+                read = readAt(position, length);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read back " + _file.getName() + " for verification", e);
+                fail(generation);
+                return;
+            }
+            if (read > 0) {
+                _buffer.flip();
+                digest.update(_buffer);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                // Content started over while we were reading - the loop picks up from its start
+                if (generation != _generation) {
+                    continue;
+                }
+                if (read <= 0) {
+                    // File is shorter than we were told, so it can't match
+                    Log.e(TAG, _file.getName() + " ended at " + position + " of " + _available_bytes + " bytes");
+                    _running = false;
+                    break;
+                }
+                _hashed_bytes += read;
+                _hash_nanos += elapsed;
+            }
+        }
+
+        complete();
+    }
+
+    private void complete() {
+        VerifyCallback callback;
+        boolean matches;
+        long length;
+        long hashNanos;
+        long lagNanos;
+        synchronized (this) {
+            // Nothing to report while the download is still going, or if another pass has started
+            if (_callback == null || _running) {
+                return;
+            }
+            matches = _hashed_bytes == _final_length && Arrays.equals(_digest.digest(), _checksum);
+            callback = _callback;
+            length = _hashed_bytes;
+            hashNanos = _hash_nanos;
+            lagNanos = System.nanoTime() - _finished_at_nanos;
+            _callback = null;
+            closeChannel();
+        }
+
+        NetworkMetrics.recordVerification(length, hashNanos, lagNanos, matches);
+        if (!matches) {
+            Log.w(TAG, "Checksum mismatch for " + ContentIds.bytesToHex(_checksum) + " after " + length + " bytes");
+        }
+        callback.onVerified(matches);
+    }
+
+    private void fail(int generation) {
+        VerifyCallback callback;
+        synchronized (this) {
+            _running = false;
+            closeChannel();
+            if (generation != _generation || _callback == null) {
+                return;
+            }
+            callback = _callback;
+            _callback = null;
+        }
+        callback.onVerified(false);
+    }
+
+    private int readAt(long position, int length) throws IOException {
+        // Lazily open the partial file. It is truncated rather than replaced when the content starts
+        // over, so the same channel stays good for the whole transfer
+        if (_channel == null) {
+            _channel = new RandomAccessFile(_file, "r").getChannel();
+            _buffer = ByteBuffer.allocate(READ_SIZE);
+        }
+        _buffer.clear();
+        _buffer.limit(length);
+        int total = 0;
+        while (_buffer.hasRemaining()) {
+            int read = _channel.read(_buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    // Must be called with the lock held
+    private void closeChannel() {
+        if (_channel == null) {
+            return;
+        }
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        _channel = null;
+        _buffer = null;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-1
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.schlaikjer.music.utility;
+
+import android.util.Log;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.PayloadSink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a streamed database download - a sequence of varint length-delimited DatabaseRecord
+ * messages - as it comes off the socket, handing tracks and images over in fixed size batches.
+ * Only one batch and at most one partially received record are ever held in memory.
+ */
+class DatabaseStreamSink implements PayloadSink {
+
+    private static final String TAG = DatabaseStreamSink.class.getSimpleName();
+
+    static final int BATCH_SIZE = 500;
+
+    // Refuse to buffer anything larger than this for a single record
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    interface BatchListener {
+        // The lists are reused once this returns, so must be consumed synchronously
+        void onBatch(List<TrackOuterClass.Track> tracks, List<TrackOuterClass.Image> images);
+    }
+
+    private final BatchListener _listener;
+
+    // Bytes received but not yet parsed, in write mode
+    private ByteBuffer _pending = ByteBuffer.allocate(64 * 1024);
+
+    private final List<TrackOuterClass.Track> _tracks = new ArrayList<>(BATCH_SIZE);
+    private final List<TrackOuterClass.Image> _images = new ArrayList<>(BATCH_SIZE);
+    private int _record_count = 0;
+    private long _generation = 0;
+    private boolean _complete = false;
+    private boolean _failed = false;
+
+    DatabaseStreamSink(BatchListener listener) {
+        _listener = listener;
+    }
+
+    @Override
+    public void onPayloadData(ByteBuffer data) {
+        if (_failed) {
+            data.position(data.limit());
+            return;
+        }
+
+        ensureCapacity(data.remaining());
+        _pending.put(data);
+
+        _pending.flip();
+        parseRecords();
+        if (_failed) {
+            _pending.clear();
+        } else {
+            _pending.compact();
+        }
+    }
+
+    @Override
+    public void onPayloadComplete() {
+        if (_failed) {
+            return;
+        }
+
+        if (_pending.position() != 0) {
+            Log.e(TAG, "Database stream ended with " + _pending.position() + " bytes of a partial record");
+            _failed = true;
+            return;
+        }
+
+        flushBatch();
+        _complete = true;
+        Log.d(TAG, "Database stream complete with " + _record_count + " records");
+    }
+
+    /**
+     * @return Whether the whole stream was received and parsed successfully
+     */
+    boolean isComplete() {
+        return _complete && !_failed;
+    }
+
+    /**
+     * @return Database generation sent at the end of the stream, or 0 if there was none
+     */
+    long getGeneration() {
+        return _generation;
+    }
+
+    private void parseRecords() {
+        while (_pending.hasRemaining()) {
+            int recordStart = _pending.position();
+            int length = readVarint32();
+            if (length < 0) {
+                // Length prefix itself isn't all here yet
+                _pending.position(recordStart);
+                return;
+            }
+            if (length > MAX_RECORD_SIZE) {
+                Log.e(TAG, "Database record of " + length + " bytes is too large");
+                fail();
+                return;
+            }
+            if (_pending.remaining() < length) {
+                _pending.position(recordStart);
+                return;
+            }
+
+            byte[] record = new byte[length];
+            _pending.get(record);
+            try {
+                onRecord(TrackOuterClass.DatabaseRecord.parseFrom(record));
+            } catch (InvalidProtocolBufferException e) {
+                e.printStackTrace();
+                fail();
+                return;
+            }
+        }
+    }
+
+    private void onRecord(TrackOuterClass.DatabaseRecord record) {
+        _record_count++;
+        switch (record.getRecordCase()) {
+            case TRACK:
+                _tracks.add(record.getTrack());
+                break;
+            case IMAGE:
+                _images.add(record.getImage());
+                break;
+            case GENERATION:
+                _generation = record.getGeneration();
+                break;
+            default:
+                // Record type from a newer server, skip it
+                break;
+        }
+
+        if (_tracks.size() + _images.size() >= BATCH_SIZE) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        if (_tracks.isEmpty() && _images.isEmpty()) {
+            return;
+        }
+        _listener.onBatch(_tracks, _images);
+        _tracks.clear();
+        _images.clear();
+    }
+
+    // Read a varint length prefix, or return -1 if it is incomplete
+    private int readVarint32() {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!_pending.hasRemaining()) {
+                return -1;
+            }
+            byte b = _pending.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                // Anything that doesn't fit in a positive int is garbage
+                return result < 0 ? Integer.MAX_VALUE : result;
+            }
+        }
+
+        // Over-long varint, treat as garbage
+        return Integer.MAX_VALUE;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (_pending.remaining() >= extra) {
+            return;
+        }
+
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(_pending.capacity() * 2, _pending.position() + extra));
+        _pending.flip();
+        grown.put(_pending);
+        _pending = grown;
+    }
+
+    private void fail() {
+        _failed = true;
+        _tracks.clear();
+        _images.clear();
+    }
+
+}
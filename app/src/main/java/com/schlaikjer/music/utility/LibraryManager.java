@@ -0,0 +1,108 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.SyncResult;
+
+import java.util.List;
+
+public class LibraryManager {
+
+    private static final String TAG = LibraryManager.class.getSimpleName();
+
+    // Generation of a client that has never synced, or a server that doesn't track generations
+    private static final long NO_GENERATION = 0;
+
+    public interface LibrarySyncCallback {
+        void onLibrarySynced(SyncResult result);
+
+        void onAbort();
+    }
+
+    /**
+     * Bring the local track database up to date with the server. Only the changes since the last
+     * sync are fetched, unless we have never synced before or have no tracks. The callback is
+     * invoked on the background thread.
+     */
+    public static void sync(Context context, LibrarySyncCallback cb) {
+        final Context appContext = context.getApplicationContext();
+        long generation = getGeneration(appContext);
+        // An empty library can't be brought up to date with a delta, e.g. if a schema upgrade
+        // dropped it
+        if (generation == NO_GENERATION || !TrackDatabase.getInstance(appContext).hasTracks()) {
+            syncFull(appContext, cb);
+            return;
+        }
+
+        Log.d(TAG, "Fetching database changes since generation " + generation);
+        NetworkManager.fetchDatabaseDelta(generation, new NetworkManager.DatabaseDeltaFetchCallback() {
+            @Override
+            public void onDatabaseDeltaFetched(TrackOuterClass.MusicDatabaseDelta delta) {
+                // A full delta rebuilds indexes, so keep it off the network thread
+                ThreadManager.runOnBgThread(() -> {
+                    SyncResult result = TrackDatabase.getInstance(appContext).applyDatabaseDelta(delta);
+
+                    // Only advance the generation once the changes are committed. If we die in
+                    // between, re-applying the same delta next time is harmless
+                    setGeneration(appContext, delta.getGeneration());
+                    cb.onLibrarySynced(result);
+                });
+            }
+
+            @Override
+            public void onAbort() {
+                ThreadManager.runOnBgThread(cb::onAbort);
+            }
+        });
+    }
+
+    private static void syncFull(Context appContext, LibrarySyncCallback cb) {
+        Log.d(TAG, "Streaming full database");
+        // Called on the background thread, so the writes never hold up the network thread
+        NetworkManager.fetchDatabaseStream(new NetworkManager.DatabaseStreamCallback() {
+            private TrackDatabase.Replacement replacement;
+
+            @Override
+            public void onStreamStarted() {
+                replacement = TrackDatabase.getInstance(appContext).beginReplacement();
+            }
+
+            @Override
+            public void onRecordBatch(List<TrackOuterClass.Track> tracks, List<TrackOuterClass.Image> images) {
+                // Write as we go, so only a few batches of records are ever held in memory
+                replacement.addTracks(tracks);
+                replacement.addImages(images);
+            }
+
+            @Override
+            public void onStreamComplete(long generation) {
+                SyncResult result = replacement.commit();
+                setGeneration(appContext, generation);
+                cb.onLibrarySynced(result);
+            }
+
+            @Override
+            public void onAbort() {
+                if (replacement != null) {
+                    replacement.abort();
+                }
+                cb.onAbort();
+            }
+        });
+    }
+
+    private static long getGeneration(Context context) {
+        return PreferencesManager.getSharedPreferences(context).getLong(PreferencesManager.Keys.DATABASE_GENERATION, NO_GENERATION);
+    }
+
+    private static void setGeneration(Context context, long generation) {
+        PreferencesManager.getSharedPreferences(context)
+                .edit()
+                .putLong(PreferencesManager.Keys.DATABASE_GENERATION, generation)
+                .apply();
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.schlaikjer.music.utility;
+
+/**
+ * Running estimates of the round trip time and bandwidth to the server, for anything that wants to
+ * size a timeout or decide how far ahead to prefetch.
+ * <p>
+ * RTT is smoothed the same way TCP does it (RFC 6298), from requests the server answers without
+ * doing any real work - HELLO and PING. Bandwidth is an exponentially weighted average over large
+ * responses, timed from their first byte to their last so that server think time isn't counted.
+ */
+public class LinkEstimator {
+
+    // Smoothing gains from RFC 6298
+    private static final double RTT_ALPHA = 1.0 / 8;
+    private static final double RTT_BETA = 1.0 / 4;
+    private static final double BANDWIDTH_GAIN = 1.0 / 8;
+
+    // Responses smaller than this arrive in too few reads to time meaningfully
+    static final long BANDWIDTH_SAMPLE_MIN_BYTES = 64 * 1024;
+
+    // Bounds on the suggested request timeout
+    private static final long MIN_TIMEOUT_MS = 1_000;
+    private static final long MAX_TIMEOUT_MS = 60_000;
+    // Timeout to suggest before we have any samples
+    private static final long DEFAULT_TIMEOUT_MS = 10_000;
+
+    // All in microseconds, or bytes per second. Negative until the first sample
+    private static double _srtt_us = -1;
+    private static double _rttvar_us = -1;
+    private static double _bandwidth = -1;
+    private static long _rtt_samples = 0;
+
+    // Forget everything measured so far
+    static synchronized void reset() {
+        _srtt_us = -1;
+        _rttvar_us = -1;
+        _bandwidth = -1;
+        _rtt_samples = 0;
+    }
+
+    static synchronized void recordRtt(long nanos) {
+        double sample = nanos / 1000.0;
+        if (_srtt_us < 0) {
+            _srtt_us = sample;
+            _rttvar_us = sample / 2;
+        } else {
+            _rttvar_us = (1 - RTT_BETA) * _rttvar_us + RTT_BETA * Math.abs(_srtt_us - sample);
+            _srtt_us = (1 - RTT_ALPHA) * _srtt_us + RTT_ALPHA * sample;
+        }
+        _rtt_samples++;
+    }
+
+    static synchronized void recordTransfer(long bytes, long nanos) {
+        if (bytes < BANDWIDTH_SAMPLE_MIN_BYTES || nanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / nanos;
+        _bandwidth = _bandwidth < 0 ? sample : (1 - BANDWIDTH_GAIN) * _bandwidth + BANDWIDTH_GAIN * sample;
+    }
+
+    /**
+     * @return Smoothed round trip time in milliseconds, or -1 if there haven't been any samples yet
+     */
+    public static synchronized float getSmoothedRttMs() {
+        return _srtt_us < 0 ? -1 : (float) (_srtt_us / 1000);
+    }
+
+    /**
+     * @return Mean deviation of the round trip time in milliseconds, or -1 if unknown
+     */
+    public static synchronized float getRttVarianceMs() {
+        return _rttvar_us < 0 ? -1 : (float) (_rttvar_us / 1000);
+    }
+
+    public static synchronized long getRttSampleCount() {
+        return _rtt_samples;
+    }
+
+    /**
+     * @return Estimated download bandwidth in bytes per second, or -1 if unknown
+     */
+    public static synchronized long getBandwidthEstimate() {
+        return _bandwidth < 0 ? -1 : (long) _bandwidth;
+    }
+
+    /**
+     * How long to wait on a small request before assuming it has been lost, worked out like TCP's
+     * retransmission timeout. Transfers should allow extra time for their size on top of this.
+     */
+    public static synchronized long getRequestTimeoutMs() {
+        if (_srtt_us < 0) {
+            return DEFAULT_TIMEOUT_MS;
+        }
+        long timeout = (long) ((_srtt_us + 4 * _rttvar_us) / 1000);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    /**
+     * Estimated time to receive the given number of bytes, from sending the request to the last
+     * byte, or -1 if the link hasn't been measured yet.
+     */
+    public static synchronized long estimateTransferMs(long bytes) {
+        if (_srtt_us < 0 || _bandwidth <= 0) {
+            return -1;
+        }
+        return (long) (_srtt_us / 1000 + bytes * 1000 / _bandwidth);
+    }
+
+}
@@ -8,17 +8,28 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.schlaikjer.msgs.TrackOuterClass;
 import com.schlaikjer.music.model.NetworkOpcode;
 import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.PacketDecoder;
+import com.schlaikjer.music.model.PayloadSink;
+import com.schlaikjer.music.model.RequestPriority;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NetworkManager {
 
@@ -28,9 +39,74 @@ public class NetworkManager {
     // static final String SERVER_HOST = "192.168.0.41";
     static final int SERVER_PORT = 5959;
 
+    // Server actually connected to, which tests and benchmarks point elsewhere
+    private static volatile String _server_host = SERVER_HOST;
+    private static volatile int _server_port = SERVER_PORT;
+    // Set when the address changes, until the network thread drops any connection to the old one
+    private static volatile boolean _server_address_changed = false;
+
     // How long to keep the socket connected with no active transactions
     static final long SOCKET_KEEPALIVE_MS = 15_000;
 
+    // Reasons to keep the connection open and warm even when idle, see setKeepWarm
+    public static final int KEEP_WARM_PLAYBACK = 1;
+    public static final int KEEP_WARM_FOREGROUND = 2;
+    // While kept warm, an idle connection is pinged this often
+    static final long PING_INTERVAL_MS = 10_000;
+    // Least time to wait on a ping before deciding the connection is dead
+    static final long PING_TIMEOUT_MIN_MS = 5_000;
+
+    // Give up on a connection attempt that hasn't completed in this long
+    static final long CONNECT_TIMEOUT_MS = 10_000;
+    // How long to wait for the server to close its side after we finish with a connection
+    static final long DRAIN_TIMEOUT_MS = 5_000;
+    // Reconnect delays double with each consecutive failure, between these bounds
+    static final long BACKOFF_BASE_MS = 250;
+    static final long BACKOFF_MAX_MS = 60_000;
+    // How many times a request is re-sent after losing the connection before it is aborted
+    static final int MAX_SEND_ATTEMPTS = 3;
+    // After this many failed connections in a row, stop holding on to requests and abort them
+    static final int CONNECT_FAILURES_BEFORE_ABORT = 4;
+
+    // Connection states
+    // No socket, nothing to send
+    private static final int STATE_IDLE = 0;
+    // Non-blocking connect in progress
+    private static final int STATE_CONNECTING = 1;
+    // Connected, exchanging packets
+    private static final int STATE_CONNECTED = 2;
+    // Last attempt failed, waiting before trying again
+    private static final int STATE_BACKOFF = 3;
+    // Finished with the connection, waiting for the server to close its side
+    private static final int STATE_DRAINING = 4;
+
+    // Tracks are fetched as a series of ranged requests of this size, so a dropped connection
+    // only loses the chunks that were in flight
+    static final int TRACK_CHUNK_SIZE = 1024 * 1024;
+    // How many chunk requests to keep on the wire for each track
+    static final int TRACK_CHUNK_PIPELINE_DEPTH = 4;
+
+    // Image requests are held back this long so that a screenful of them can go out as one batch
+    private static final long IMAGE_BATCH_WINDOW_MS = 20;
+    private static final int IMAGE_BATCH_MAX_SIZE = 64;
+
+    // How many times content that fails its checksum is fetched again before giving up
+    private static final int MAX_CONTENT_VERIFY_RETRIES = 2;
+
+    // Default limits on how much we have asked of the server at once. Past either limit, new
+    // requests are held in the tx queue until responses drain, so that interactive requests aren't
+    // stuck behind a pile of prefetches the server has already started on
+    static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 32;
+    static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 16 * 1024 * 1024;
+    // Guesses at response sizes, for requests that don't say how much they want
+    private static final long IMAGE_RESPONSE_ESTIMATE = 512 * 1024;
+    private static final long DEFAULT_RESPONSE_ESTIMATE = 64 * 1024;
+
+    // Most parsed database batches left waiting for the background thread before we stop reading
+    // from the socket. Whatever is already in the receive buffer is still parsed, so this can be
+    // overshot by a batch or two
+    private static final int MAX_QUEUED_BATCHES = 4;
+
     // Content database fetch callback
     public interface DatabaseFetchCallback {
         void onDatabaseFetched(TrackOuterClass.MusicDatabase db);
@@ -38,11 +114,38 @@ public class NetworkManager {
         void onAbort();
     }
 
-    // Callback for fetchTrack / fetchImage.
+    public interface DatabaseDeltaFetchCallback {
+        void onDatabaseDeltaFetched(TrackOuterClass.MusicDatabaseDelta delta);
+
+        void onAbort();
+    }
+
+    // Every method is called on the background thread, in order, so that writing the records
+    // never holds up the network thread
+    public interface DatabaseStreamCallback {
+        // Called once the server starts sending records
+        void onStreamStarted();
+
+        // Called with each batch of records as it is parsed
+        void onRecordBatch(List<TrackOuterClass.Track> tracks, List<TrackOuterClass.Image> images);
+
+        void onStreamComplete(long generation);
+
+        void onAbort();
+    }
+
+    // Callback for fetchTrack / fetchImage / fetchThumbnail.
+    // onContentReceived is called on a verifier thread, only once the content's checksum has
+    // matched and it has been committed to the content cache. Thumbnails aren't checked against a
+    // checksum, so theirs is called on the network thread.
     public interface ContentFetchCallback {
-        void onContentReceived(byte[] data);
+        void onContentReceived(File contentFile);
 
         void onAbort();
+
+        // Called on the network thread once the response starts arriving, for callers that want to read it progressively
+        default void onContentStarted(ContentSink sink) {
+        }
     }
 
     // Callback for requesting a rescan of the remote DB
@@ -58,32 +161,321 @@ public class NetworkManager {
         void onSuccess(Packet p);
 
         void onAbort();
+
+        // Transactions that want their response payload streamed rather than buffered return a sink here
+        default PayloadSink openPayloadSink(int opcode, int length) {
+            return null;
+        }
+    }
+
+    /**
+     * Handle for a single caller's interest in a content fetch. Cancelling it drops that caller's
+     * callback; once nobody is left waiting on the content, the request itself is withdrawn.
+     */
+    public static final class ContentFetchHandle {
+        private static final ContentFetchHandle NONE = new ContentFetchHandle(null, null);
+
+        private final PendingContentRequest _request;
+        private final ContentFetchCallback _callback;
+
+        private ContentFetchHandle(PendingContentRequest request, ContentFetchCallback callback) {
+            _request = request;
+            _callback = callback;
+        }
+
+        /**
+         * Stop waiting on this fetch. The callback will not be invoked after this returns, unless
+         * it is already running on the network thread.
+         */
+        public void cancel() {
+            if (_request != null) {
+                cancelContentFetch(_request, _callback);
+            }
+        }
+    }
+
+    // State for a content ID that has a request outstanding
+    private static class PendingContentRequest {
+        final byte[] checksum;
+        final String contentId;
+        final int opcode;
+        // Edge size for thumbnail requests, 0 for the original content
+        final int thumbnailSize;
+        final ContentSink sink;
+        final List<ContentFetchCallback> callbacks = new ArrayList<>();
+        // Most urgent priority any caller has asked for, and every packet sent on its behalf
+        int priority;
+        final List<Packet> packets = new ArrayList<>();
+        // Whether callbacks have been told the content is on its way
+        boolean started = false;
+        // Whether callbacks have been told the request succeeded or failed
+        boolean finished = false;
+        // Set while the received content is being checked, and how many times it has failed
+        boolean verifying = false;
+        int verifyRetries = 0;
+
+        // Batch this image was sent in, if any
+        ImageBatch batch;
+
+        // Chunk bookkeeping for ranged track fetches
+        final BitSet requestedChunks = new BitSet();
+        int outstandingChunks = 0;
+        int playheadChunk = 0;
+        // Times a dropped connection has cut off a send and it had to be made again. Track chunks
+        // that got some of their data first don't count
+        int sendRetries = 0;
+
+        PendingContentRequest(byte[] checksum, String contentId, int opcode, int thumbnailSize, int priority, ContentSink sink) {
+            this.checksum = checksum;
+            this.contentId = contentId;
+            this.opcode = opcode;
+            this.thumbnailSize = thumbnailSize;
+            this.priority = priority;
+            this.sink = sink;
+        }
+    }
+
+    // Image requests sent together in one FETCH_IMAGES_BATCH
+    private static class ImageBatch {
+        final List<PendingContentRequest> members;
+        final Packet packet;
+
+        ImageBatch(List<PendingContentRequest> members, Packet packet) {
+            this.members = members;
+            this.packet = packet;
+        }
+
+        // Must be called with the tx queue locked
+        boolean isFinished() {
+            for (PendingContentRequest member : members) {
+                if (!member.finished) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Parses a FETCH_IMAGES_BATCH response, routing each tagged image into its request's sink
+    private static class ImageBatchResponseSink implements PayloadSink {
+        private final ImageBatch batch;
+        private final ByteBuffer recordHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        // Request the current record belongs to, or null if it is being skipped
+        private PendingContentRequest current;
+        private int recordRemaining = 0;
+        private boolean inRecord = false;
+        private boolean corrupt = false;
+
+        ImageBatchResponseSink(ImageBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onPayloadData(ByteBuffer data) {
+            while (data.hasRemaining() && !corrupt) {
+                if (!inRecord) {
+                    while (recordHeader.hasRemaining() && data.hasRemaining()) {
+                        recordHeader.put(data.get());
+                    }
+                    if (recordHeader.hasRemaining()) {
+                        return;
+                    }
+                    startRecord(recordHeader.getInt(0), recordHeader.getInt(4));
+                    recordHeader.clear();
+                    continue;
+                }
+
+                // Hand the sink a view of just this record's bytes
+                int length = Math.min(recordRemaining, data.remaining());
+                if (current != null) {
+                    ByteBuffer chunk = data.slice();
+                    chunk.limit(length);
+                    current.sink.onPayloadData(chunk);
+                }
+                data.position(data.position() + length);
+                recordRemaining -= length;
+                if (recordRemaining == 0) {
+                    finishRecord();
+                }
+            }
+            data.position(data.limit());
+        }
+
+        private void startRecord(int index, int length) {
+            if (length < 0) {
+                Log.e(TAG, "Invalid image batch record length " + length);
+                corrupt = true;
+                return;
+            }
+
+            current = index >= 0 && index < batch.members.size() ? batch.members.get(index) : null;
+            recordRemaining = length;
+            inRecord = true;
+            if (current == null) {
+                Log.w(TAG, "Image batch record with invalid index " + index);
+            } else if (length > 0) {
+                current.sink.setExpectedLength(length);
+                onContentStarted(current);
+            }
+
+            if (length == 0) {
+                finishRecord();
+            }
+        }
+
+        private void finishRecord() {
+            inRecord = false;
+            if (current == null) {
+                return;
+            }
+
+            // Empty record means the server doesn't have this one
+            if (current.sink.getExpectedLength() < 0) {
+                failContentRequest(current);
+            } else {
+                current.sink.onPayloadComplete();
+                completeContentRequest(current);
+            }
+            current = null;
+        }
+
+        @Override
+        public void onPayloadComplete() {
+        }
+    }
+
+    // A sent packet awaiting its response
+    private static class InFlightPacket {
+        final Packet packet;
+        final int priority;
+        // How much of the in-flight window the response is expected to take up
+        final long expectedBytes;
+        int attempts = 1;
+        // When the latest attempt was written and when its response started arriving, for metrics
+        long sentAtNanos = 0;
+        long firstByteAtNanos = 0;
+
+        InFlightPacket(Packet packet, int priority) {
+            this.packet = packet;
+            this.priority = priority;
+            this.expectedBytes = estimateResponseBytes(packet);
+        }
+    }
+
+    // Parses a FETCH_TRACK_RANGE response and writes the range into the track's content sink
+    private static class RangeResponseSink implements PayloadSink {
+        private final PendingContentRequest request;
+        private final ByteBuffer sizeHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+        long bytesReceived = 0;
+
+        RangeResponseSink(PendingContentRequest request, long position) {
+            this.request = request;
+            this.position = position;
+        }
+
+        boolean hasSize() {
+            return !sizeHeader.hasRemaining();
+        }
+
+        @Override
+        public void onPayloadData(ByteBuffer data) {
+            // Response leads with the total size of the track
+            if (!hasSize()) {
+                while (sizeHeader.hasRemaining() && data.hasRemaining()) {
+                    sizeHeader.put(data.get());
+                }
+                if (!hasSize()) {
+                    return;
+                }
+                onTrackSizeKnown(request, sizeHeader.getLong(0));
+            }
+
+            int length = data.remaining();
+            request.sink.write(position, data);
+            position += length;
+            bytesReceived += length;
+        }
+
+        @Override
+        public void onPayloadComplete() {
+        }
     }
 
     // Has the manager been initialized
     private static boolean initialized = false;
     // Background thread for networking IO
     private static Thread _network_thread;
+    // Selector used to multiplex socket readiness and wakeups from request callers
+    private static Selector _selector;
     // Socket handle
-    private static Socket _server_socket = null;
+    private static SocketChannel _server_channel = null;
+    // Connection state, only touched by the network thread
+    private static int _connection_state = STATE_IDLE;
+    // When the current state times out - connect timeout, end of backoff or end of drain
+    private static long _state_deadline = 0;
+    // Consecutive failed connections, for backoff
+    private static int _connect_failures = 0;
+    private static final Random _random = new Random();
     // Timeout counter for disconnecting the socket
     private static long _socket_last_activity = 0;
+    // Packets that have been sent but not answered, so they can be re-sent on a new connection
+    private static final Map<Integer, InFlightPacket> _in_flight = new LinkedHashMap<>();
+    // Total expected response size of everything in _in_flight
+    private static long _in_flight_bytes = 0;
+    // Current in-flight window limits
+    private static volatile int _max_in_flight_requests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private static volatile long _max_in_flight_bytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+    // Packets put back on the queue after losing a connection, so their attempts are remembered
+    private static final Map<Integer, InFlightPacket> _requeued = new HashMap<>();
+    // This connection's HELLO, which mustn't be re-sent on another, and when it was queued
+    private static Packet _hello_packet = null;
+    private static long _hello_sent_at = 0;
+    // Outstanding ping on this connection, if any, and when it was sent
+    private static Packet _ping_packet = null;
+    private static long _ping_sent_at = 0;
+    // KEEP_WARM_* reasons currently in effect
+    private static volatile int _keep_warm_reasons = 0;
+    // Optional features the server agreed to use on the current connection
+    private static volatile int _server_features = 0;
+    // Image requests waiting for the batch window to close
+    private static final List<PendingContentRequest> _image_batch = new ArrayList<>();
+    private static long _image_batch_deadline = 0;
     // Internal callback map
     private static final Map<Integer, TxnCalllback> _callbacks = new HashMap<>();
-    private static final Set<byte[]> _active_content_requests = new HashSet<>();
-    private static final Map<byte[], List<ContentFetchCallback>> _chained_content_request_callbacks = new HashMap<>();
-    // Transmit queue of pending requests
-    private static final LinkedList<Packet> _packet_tx_queue = new LinkedList<>();
-    // Receive queue
-    private static final ByteArrayOutputStream _incoming_data_slab = new ByteArrayOutputStream();
+    // Outstanding content requests, keyed by hex content ID so that callers can piggy-back on them
+    private static final Map<String, PendingContentRequest> _content_requests = new HashMap<>();
+    // Transmit queue of pending requests, ordered by priority class
+    private static final PacketQueue _packet_tx_queue = new PacketQueue();
+    // Serialized form of the packet currently being written to the socket
+    private static ByteBuffer[] _tx_buffers = null;
+    // Receive buffer, reused for every read
+    private static final ByteBuffer _rx_buffer = ByteBuffer.allocate(64 * 1024);
+    // Incremental decoder for packets arriving in the receive buffer
+    private static final PacketDecoder _packet_decoder = new PacketDecoder(NetworkManager::openPayloadSink);
+    // Database batches handed to the background thread and not yet written, under the batch lock
+    private static final Object _batch_lock = new Object();
+    private static int _queued_batches = 0;
+    // Whether we've stopped reading until the background thread catches up, and since when
+    private static volatile boolean _reads_paused = false;
+    private static long _reads_paused_at = 0;
 
     // Nonce management
     private static final int NO_NONCE = 0xFFFFFFFF;
-    private static int _nonce_counter = 0;
+    // Taken from by callers and the network thread alike
+    private static final AtomicInteger _nonce_counter = new AtomicInteger();
 
     private static int nextNonce() {
-        while (++_nonce_counter == NO_NONCE) ;
-        return _nonce_counter;
+        while (true) {
+            int current = _nonce_counter.get();
+            int next = current + 1;
+            if (next == NO_NONCE) {
+                next++;
+            }
+            if (_nonce_counter.compareAndSet(current, next)) {
+                return next;
+            }
+        }
     }
 
     public static void init() {
@@ -96,6 +488,13 @@ public class NetworkManager {
                 return;
             }
 
+            // Open the selector before the thread starts so that callers can always wake it
+            try {
+                _selector = Selector.open();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open network selector", e);
+            }
+
             // Create network IO thread
             _network_thread = new Thread(NetworkManager::networkLoop);
             _network_thread.start();
@@ -106,21 +505,146 @@ public class NetworkManager {
         }
     }
 
-    private static void reset_connection() {
-        // Disconnect socket
-        _server_socket = null;
+    /**
+     * Point the manager at a different server. If that changes the address, any open connection is
+     * closed and its unanswered requests are sent again to the new server.
+     */
+    public static void setServerAddress(String host, int port) {
+        synchronized (NetworkManager.class) {
+            if (host.equals(_server_host) && port == _server_port) {
+                return;
+            }
+            _server_host = host;
+            _server_port = port;
+            _server_address_changed = true;
+        }
+        if (initialized) {
+            wakeNetworkLoop();
+        }
+    }
+
+    /**
+     * Keep the connection open while something is likely to need it soon, so that the next request
+     * doesn't have to wait for a connect. A connection is opened straight away if there isn't one,
+     * and while it sits idle it is pinged now and then to keep it alive and to measure the round
+     * trip time for {@link LinkEstimator}.
+     *
+     * @param reason One of the KEEP_WARM_* reasons. The connection is kept warm while any is set
+     */
+    public static void setKeepWarm(int reason, boolean enabled) {
+        synchronized (NetworkManager.class) {
+            _keep_warm_reasons = enabled ? _keep_warm_reasons | reason : _keep_warm_reasons & ~reason;
+        }
+        init();
+        wakeNetworkLoop();
+    }
+
+    private static void setConnectionState(int state, long deadline) {
+        _connection_state = state;
+        _state_deadline = deadline;
+    }
 
+    /**
+     * Close the socket after an error. Requests that never got an answer are put back on the
+     * transmit queue for the next connection, and we back off before reconnecting.
+     */
+    private static void failConnection() {
+        closeChannel();
+        _connect_failures++;
+        NetworkMetrics.recordConnectFailure();
+
+        // Jitter keeps a crowd of clients from reconnecting in lock step
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(_connect_failures - 1, 16));
+        long delay = ceiling / 2 + (long) (_random.nextDouble() * (ceiling / 2));
+        Log.d(TAG, "Connection failed " + _connect_failures + " times, retrying in " + delay + "ms");
+        setConnectionState(STATE_BACKOFF, System.currentTimeMillis() + delay);
+
+        // Server looks to be unreachable, so let callers know rather than leaving them waiting
+        if (_connect_failures >= CONNECT_FAILURES_BEFORE_ABORT) {
+            abortAllRequests();
+        }
+    }
 
-        // Abort any pending callbacks
+    private static void abortAllRequests() {
+        List<TxnCalllback> aborted;
         synchronized (_packet_tx_queue) {
-            for (TxnCalllback callback : _callbacks.values()) {
-                callback.onAbort();
-            }
+            aborted = new ArrayList<>(_callbacks.values());
             _callbacks.clear();
-            _active_content_requests.clear();
+            _packet_tx_queue.clear();
+            _requeued.clear();
+            _in_flight.clear();
+            _in_flight_bytes = 0;
+        }
+        NetworkMetrics.recordAborts(aborted.size());
+        for (TxnCalllback callback : aborted) {
+            callback.onAbort();
+        }
+    }
+
+    private static void closeChannel() {
+        // Disconnect socket
+        if (_server_channel != null) {
+            try {
+                _server_channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            _server_channel = null;
+        }
+        _tx_buffers = null;
+        _rx_buffer.clear();
+        _server_features = 0;
+
+        // A response we had started streaming to someone can't be resumed, so that one is aborted.
+        // Everything else unanswered goes back on the queue
+        List<TxnCalllback> aborted = new ArrayList<>();
+        synchronized (_packet_tx_queue) {
+            // Each connection says hello and is pinged for itself
+            if (_hello_packet != null) {
+                _callbacks.remove(_hello_packet.nonce);
+                _packet_tx_queue.remove(_hello_packet);
+                _hello_packet = null;
+            }
+            if (_ping_packet != null) {
+                _callbacks.remove(_ping_packet.nonce);
+                _packet_tx_queue.remove(_ping_packet);
+                _ping_packet = null;
+            }
+
+            // Walk backwards so that re-queued packets keep their original order
+            int streamingNonce = _packet_decoder.isStreamingPayload() ? _packet_decoder.getCurrentNonce() : NO_NONCE;
+            List<InFlightPacket> inFlight = new ArrayList<>(_in_flight.values());
+            _in_flight.clear();
+            _in_flight_bytes = 0;
+            for (int i = inFlight.size() - 1; i >= 0; i--) {
+                InFlightPacket sent = inFlight.get(i);
+                int nonce = sent.packet.nonce;
+                if (!_callbacks.containsKey(nonce)) {
+                    continue;
+                }
+
+                if (nonce == streamingNonce || sent.attempts >= MAX_SEND_ATTEMPTS) {
+                    aborted.add(_callbacks.remove(nonce));
+                } else {
+                    sent.attempts++;
+                    _requeued.put(nonce, sent);
+                    _packet_tx_queue.addFirst(sent.packet, sent.priority);
+                }
+            }
+        }
+        _packet_decoder.reset();
+
+        NetworkMetrics.recordAborts(aborted.size());
+        for (TxnCalllback callback : aborted) {
+            callback.onAbort();
         }
     }
 
+    // Wake the network thread so that it notices newly queued packets
+    private static void wakeNetworkLoop() {
+        _selector.wakeup();
+    }
+
     public static boolean isOnWifi(Context context) {
         ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         return connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI).isConnected();
@@ -129,234 +653,1331 @@ public class NetworkManager {
     private static void networkLoop() {
         Log.d(TAG, "Starting network loop");
         while (true) {
-            // If there are no outstanding networking operations, check to see if the connection has been idle long enough to be worth closing
-            if (_server_socket != null && _callbacks.size() == 0 && _packet_tx_queue.size() == 0) {
-                if (System.currentTimeMillis() > _socket_last_activity + SOCKET_KEEPALIVE_MS) {
-                    // Socket is in timeout, close it down
-                    Log.d(TAG, "Connection timeout reached, closing socket");
-                    reset_connection();
-                }
-            }
-
-            // If socket is live, check for incoming data
-            boolean did_rx_new_data = false;
+            // Sleep until the socket is ready, a packet is queued or the next deadline passes
             try {
-                byte[] buffer = new byte[1024];
-                while (_server_socket != null && _server_socket.getInputStream().available() > 0) {
-                    // Update activity counter
-                    _socket_last_activity = System.currentTimeMillis();
-
-                    // Ingest data from socket
-                    int read =
-                            _server_socket.getInputStream().read(buffer, 0, buffer.length);
-                    _incoming_data_slab.write(buffer, 0, read);
-                    did_rx_new_data = true;
-                }
+                _selector.select(nextSelectTimeout());
             } catch (IOException e) {
                 e.printStackTrace();
-                reset_connection();
+                failConnection();
                 continue;
             }
 
             try {
-                // Attempt to deserialize packets out of the buffered incoming data
-                while (did_rx_new_data && _incoming_data_slab.size() >= 12) {
-
-                    // If there are at least enough bytes for a header in the rx buffer, test to see if we can resolve an incoming packet
-                    Packet p = Packet.deserialize(_incoming_data_slab);
-                    if (p != null) {
-                        synchronized (_packet_tx_queue) {
-                            TxnCalllback callback = _callbacks.get(p.nonce);
-                            _callbacks.remove(p.nonce);
-                            Log.d(TAG, "Resolved callback with nonce " + p.nonce);
-                            if (callback != null) {
-                                callback.onSuccess(p);
-                            }
-                        }
-                    } else {
-                        break;
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
                     }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                reset_connection();
-                continue;
-            }
-
-            // If there are incoming data to be sent, handle them
-            try {
-                synchronized (_packet_tx_queue) {
-                    while (!_packet_tx_queue.isEmpty()) {
-                        // Connect socket if not already connected
-                        if (!ensureConnected()) {
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            break;
-                        }
-
-                        // Update activity counter
-                        _socket_last_activity = System.currentTimeMillis();
 
-                        // Serialize the head packet
-                        Packet p = _packet_tx_queue.pop();
-                        Log.d(TAG, "Sending packet with nonce " + p.nonce);
-                        p.serialize(_server_socket.getOutputStream());
-                        Log.d(TAG, "Packet tx queue now " + _packet_tx_queue.size());
+                    if (key.isConnectable()) {
+                        finishConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        readIncoming();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        writeOutgoing();
                     }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
-                reset_connection();
-                continue;
+                failConnection();
             }
 
-            // Hideous. Please, just let me select()
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            // Send off any image requests whose batch window has closed
+            flushImageBatchIfDue();
+
+            updateConnectionState();
+            updateInterestOps();
         }
     }
 
-    private static boolean ensureConnected() {
-        // Is the socket initialized?
-        if (_server_socket == null) {
-            try {
-                _server_socket = new Socket(SERVER_HOST, SERVER_PORT);
-                _server_socket.setKeepAlive(true);
-                _socket_last_activity = System.currentTimeMillis();
-                Log.d(TAG, "Created new server socket");
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
+    private static void updateConnectionState() {
+        // A connection to the old address is no use any more, so start over with the new one
+        if (_server_address_changed) {
+            _server_address_changed = false;
+            if (_connection_state != STATE_IDLE) {
+                Log.d(TAG, "Server address changed, reconnecting");
+                closeChannel();
+                _connect_failures = 0;
+                setConnectionState(STATE_IDLE, 0);
             }
         }
 
-        return _server_socket.isConnected();
+        long now = System.currentTimeMillis();
+
+        // Answers can sit unread behind a stalled stream, so the hello and ping clocks stop while
+        // reads are paused
+        if (!_reads_paused && _reads_paused_at != 0) {
+            _hello_sent_at += now - _reads_paused_at;
+            _ping_sent_at += now - _reads_paused_at;
+            _reads_paused_at = 0;
+        }
+
+        switch (_connection_state) {
+            case STATE_IDLE:
+                // If there is data waiting to be sent, make sure we have a connection to send it on.
+                // If we're being kept warm, get one ready for whatever comes next
+                if (hasQueuedPackets() || _keep_warm_reasons != 0) {
+                    startConnect();
+                }
+                break;
+
+            case STATE_CONNECTING:
+                if (now >= _state_deadline) {
+                    Log.w(TAG, "Timed out connecting to server");
+                    failConnection();
+                }
+                break;
+
+            case STATE_CONNECTED:
+                if (_reads_paused) {
+                    break;
+                }
+
+                // An unanswered ping means the connection is dead, even if the socket doesn't know it yet
+                if (_ping_packet != null && now > _ping_sent_at + pingTimeoutMs()) {
+                    Log.w(TAG, "Ping went unanswered, dropping connection");
+                    failConnection();
+                    break;
+                }
+
+                // A server that doesn't understand HELLO may never answer it. Carry on without
+                // any optional features rather than waiting on it forever
+                if (_hello_packet != null && now > _hello_sent_at + pingTimeoutMs()) {
+                    Log.w(TAG, "Hello went unanswered, continuing without optional features");
+                    abandonHello();
+                }
+
+                // If there are no outstanding networking operations, check to see if the connection has
+                // been idle long enough to be worth closing, or pinging if we're keeping it warm
+                if (!hasPendingWork()) {
+                    long deadline = nextIdleDeadline();
+                    if (deadline >= 0 && now >= deadline) {
+                        if (_keep_warm_reasons != 0) {
+                            sendPing();
+                        } else {
+                            Log.d(TAG, "Connection timeout reached, closing socket");
+                            startDrain();
+                        }
+                    }
+                }
+                break;
+
+            case STATE_BACKOFF:
+                if (now >= _state_deadline) {
+                    setConnectionState(STATE_IDLE, 0);
+                    if (hasQueuedPackets() || _keep_warm_reasons != 0) {
+                        startConnect();
+                    }
+                }
+                break;
+
+            case STATE_DRAINING:
+                if (now >= _state_deadline) {
+                    Log.d(TAG, "Server didn't close connection, dropping it");
+                    finishDrain();
+                }
+                break;
+        }
     }
 
-    public static void fetchDatabase(DatabaseFetchCallback cb) {
-        init();
+    // When an idle connection next needs attention - time to ping it if we're keeping it warm, or
+    // to close it if not. -1 if never, i.e. kept warm but the server can't be pinged
+    private static long nextIdleDeadline() {
+        if (_keep_warm_reasons == 0) {
+            return _socket_last_activity + SOCKET_KEEPALIVE_MS;
+        }
+        if ((_server_features & Packet.FEATURE_PING) != 0) {
+            return _socket_last_activity + PING_INTERVAL_MS;
+        }
+        return -1;
+    }
 
-        // Wrap packet
-        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_DB, new byte[0]);
+    private static long pingTimeoutMs() {
+        return Math.max(PING_TIMEOUT_MIN_MS, 2 * LinkEstimator.getRequestTimeoutMs());
+    }
 
-        // Lock tx queue
+    private static void abandonHello() {
         synchronized (_packet_tx_queue) {
-            // Queue packet to be sent
-            _packet_tx_queue.add(packet);
+            if (_hello_packet == null) {
+                return;
+            }
+            _callbacks.remove(_hello_packet.nonce);
+            _packet_tx_queue.remove(_hello_packet);
+            removeInFlight(_hello_packet.nonce);
+            _hello_packet = null;
+        }
+    }
 
-            // Put the callback handler in the map
+    private static void sendPing() {
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.PING, new byte[0]);
+        synchronized (_packet_tx_queue) {
+            _ping_packet = packet;
+            _ping_sent_at = System.currentTimeMillis();
+            _packet_tx_queue.addFirst(packet, RequestPriority.INTERACTIVE);
             _callbacks.put(packet.nonce, new TxnCalllback() {
                 @Override
                 public void onSuccess(Packet p) {
-                    if (p.opcode != NetworkOpcode.FETCH_DB) {
-                        Log.e(TAG, "Unexpected return opcode for fetch db call - wanted " + NetworkOpcode.FETCH_DB + " got " + p.opcode);
-                        cb.onAbort();
-                        return;
-                    }
-
-                    try {
-                        TrackOuterClass.MusicDatabase db = TrackOuterClass.MusicDatabase.parseFrom(p.data);
-                        cb.onDatabaseFetched(db);
-                    } catch (InvalidProtocolBufferException e) {
-                        e.printStackTrace();
-                        cb.onAbort();
-                    }
+                    // Round trip time is picked up in dispatchPacket, like the HELLO's
                 }
 
                 @Override
                 public void onAbort() {
-                    cb.onAbort();
                 }
             });
         }
     }
 
-    public static void fetchTrack(byte[] checksum, ContentFetchCallback cb) {
-        fetchContent(checksum, cb, NetworkOpcode.FETCH_TRACK);
+    private static void startDrain() {
+        // Let the server know we're done and wait for it to close its side, so that nothing it
+        // already sent is cut off
+        try {
+            _server_channel.shutdownOutput();
+        } catch (IOException e) {
+            e.printStackTrace();
+            finishDrain();
+            return;
+        }
+        setConnectionState(STATE_DRAINING, System.currentTimeMillis() + DRAIN_TIMEOUT_MS);
     }
 
-    public static void fetchImage(byte[] checksum, ContentFetchCallback cb) {
-        fetchContent(checksum, cb, NetworkOpcode.FETCH_IMAGE);
+    private static void finishDrain() {
+        closeChannel();
+        setConnectionState(STATE_IDLE, 0);
     }
 
-    private static void fetchContent(byte[] checksum, ContentFetchCallback cb, int op) {
-        if (checksum == null) {
-            cb.onAbort();
-            return;
+    private static boolean hasQueuedPackets() {
+        synchronized (_packet_tx_queue) {
+            return _tx_buffers != null || !_packet_tx_queue.isEmpty();
         }
+    }
 
-        init();
+    // Whether writeOutgoing() has anything it is allowed to send right now
+    private static boolean hasSendablePackets() {
+        synchronized (_packet_tx_queue) {
+            return _tx_buffers != null || canSendNext();
+        }
+    }
 
-        Packet packet = new Packet(nextNonce(), op, checksum);
+    // Must be called with the tx queue locked
+    private static boolean canSendNext() {
+        Packet next = _packet_tx_queue.peek();
+        if (next == null) {
+            return false;
+        }
 
-        // Lock tx queue
-        synchronized (_packet_tx_queue) {
-            // Queue this callback to piggy-back the existing request
-            if (!_chained_content_request_callbacks.containsKey(checksum)) {
-                _chained_content_request_callbacks.put(checksum, new ArrayList<>());
-            }
-            _chained_content_request_callbacks.get(checksum).add(cb);
+        // Interactive requests (and cancels) are never held back. Beyond that there is always room
+        // for one request, however large, so that an oversized response can't wedge the queue
+        if (_packet_tx_queue.peekPriority() == RequestPriority.INTERACTIVE || _in_flight.isEmpty()) {
+            return true;
+        }
+        return _in_flight.size() < _max_in_flight_requests
+                && _in_flight_bytes + estimateResponseBytes(next) <= _max_in_flight_bytes;
+    }
 
-            // Do we already have an active request for this content ID?
-            if (_active_content_requests.contains(checksum)) {
-                return;
+    private static long estimateResponseBytes(Packet packet) {
+        switch (packet.opcode) {
+            case NetworkOpcode.FETCH_TRACK_RANGE:
+                // Ranged requests end with the u32 length they want
+                return packet.data.length >= 4
+                        ? ByteBuffer.wrap(packet.data).order(ByteOrder.LITTLE_ENDIAN).getInt(packet.data.length - 4) & 0xFFFFFFFFL
+                        : TRACK_CHUNK_SIZE;
+            case NetworkOpcode.FETCH_TRACK:
+                return TRACK_CHUNK_SIZE;
+            case NetworkOpcode.FETCH_IMAGE:
+                return IMAGE_RESPONSE_ESTIMATE;
+            case NetworkOpcode.FETCH_IMAGE_THUMB:
+                // Thumbnail requests end with the edge size
+                return packet.data.length >= 4
+                        ? estimateImageBytes(ByteBuffer.wrap(packet.data).order(ByteOrder.LITTLE_ENDIAN).getInt(packet.data.length - 4))
+                        : IMAGE_RESPONSE_ESTIMATE;
+            case NetworkOpcode.FETCH_IMAGES_BATCH: {
+                // Edge size and count lead the request
+                if (packet.data.length < 8) {
+                    return DEFAULT_RESPONSE_ESTIMATE;
+                }
+                ByteBuffer args = ByteBuffer.wrap(packet.data).order(ByteOrder.LITTLE_ENDIAN);
+                return (args.getInt(4) & 0xFFFFFFFFL) * estimateImageBytes(args.getInt(0));
             }
+            default:
+                return DEFAULT_RESPONSE_ESTIMATE;
+        }
+    }
 
-            // Add this content ID to the active request set
-            _active_content_requests.add(checksum);
-
-            // Add our proxy content callback callback to the main callback map
-            _callbacks.put(packet.nonce, new TxnCalllback() {
-                @Override
-                public void onSuccess(Packet p) {
-                    // Extract the list of callbacks for this content ID
-                    List<ContentFetchCallback> cbs;
-                    synchronized (_packet_tx_queue) {
-                        cbs = _chained_content_request_callbacks.get(checksum);
-                        _chained_content_request_callbacks.remove(checksum);
-                    }
+    private static long estimateImageBytes(int edgeSize) {
+        // Originals could be anything. Thumbnails come in at roughly two bits per pixel
+        if (edgeSize <= 0) {
+            return IMAGE_RESPONSE_ESTIMATE;
+        }
+        return Math.max(DEFAULT_RESPONSE_ESTIMATE, Math.min(IMAGE_RESPONSE_ESTIMATE, (long) edgeSize * edgeSize / 4));
+    }
 
-                    // Check response packet is good
-                    if (p.opcode != op) {
-                        // If it isn't, abort all pending callbacks
-                        Log.e(TAG, "Unexpected return opcode for call - wanted " + op + " got " + p.opcode);
-                        for (ContentFetchCallback cb : cbs) {
-                            cb.onAbort();
-                        }
-                        return;
-                    }
+    // Must be called with the tx queue locked
+    private static InFlightPacket removeInFlight(int nonce) {
+        InFlightPacket sent = _in_flight.remove(nonce);
+        if (sent != null) {
+            _in_flight_bytes -= sent.expectedBytes;
+        }
+        return sent;
+    }
 
-                    // Invoke success callbacks
-                    for (ContentFetchCallback cb : cbs) {
-                        cb.onContentReceived(p.data);
-                    }
-                    _chained_content_request_callbacks.remove(checksum);
-                }
+    /**
+     * Change the limits on outstanding requests per connection. Requests already sent are not
+     * affected, but nothing more is sent until the window has room under the new limits.
+     *
+     * @param maxRequests Most requests that may be awaiting a response at once
+     * @param maxBytes    Most response data that may be outstanding at once, by estimate
+     */
+    public static void setInFlightWindow(int maxRequests, long maxBytes) {
+        _max_in_flight_requests = Math.max(1, maxRequests);
+        _max_in_flight_bytes = Math.max(1, maxBytes);
+        if (initialized) {
+            wakeNetworkLoop();
+        }
+    }
 
-                @Override
-                public void onAbort() {
-                    // Extract the list of callbacks for this content ID
-                    List<ContentFetchCallback> cbs;
-                    synchronized (_packet_tx_queue) {
-                        cbs = _chained_content_request_callbacks.get(checksum);
-                        _chained_content_request_callbacks.remove(checksum);
-                    }
+    /**
+     * How full the in-flight window is, from 0 (idle) to 1 (further requests are being held back).
+     * Background work like prefetching should hold off while this is high, leaving room for
+     * requests the user is actually waiting on.
+     */
+    public static float getWindowOccupancy() {
+        synchronized (_packet_tx_queue) {
+            // Anything stuck in the queue means the window is effectively full
+            if (!_packet_tx_queue.isEmpty() && !canSendNext()) {
+                return 1f;
+            }
+            float requests = (float) _in_flight.size() / _max_in_flight_requests;
+            float bytes = (float) _in_flight_bytes / _max_in_flight_bytes;
+            return Math.min(1f, Math.max(requests, bytes));
+        }
+    }
 
-                    for (ContentFetchCallback cb : cbs) {
+    private static boolean hasPendingWork() {
+        synchronized (_packet_tx_queue) {
+            return _tx_buffers != null || !_packet_tx_queue.isEmpty() || !_callbacks.isEmpty();
+        }
+    }
+
+    private static long nextSelectTimeout() {
+        long timeout = nextConnectionTimeout();
+
+        // Wake up in time to send any batched image requests
+        synchronized (_packet_tx_queue) {
+            if (!_image_batch.isEmpty()) {
+                long untilBatch = Math.max(1, _image_batch_deadline - System.currentTimeMillis());
+                timeout = timeout == 0 ? untilBatch : Math.min(timeout, untilBatch);
+            }
+        }
+        return timeout;
+    }
+
+    private static long nextConnectionTimeout() {
+        long now = System.currentTimeMillis();
+        switch (_connection_state) {
+            case STATE_CONNECTING:
+            case STATE_BACKOFF:
+            case STATE_DRAINING:
+                return Math.max(1, _state_deadline - now);
+
+            case STATE_CONNECTED:
+                // The background thread wakes us when it wants reading to resume
+                if (_reads_paused) {
+                    return 0;
+                }
+                // Waiting on a ping or hello - wake in time to give up on it
+                if (_ping_packet != null || _hello_packet != null) {
+                    long deadline = Long.MAX_VALUE;
+                    if (_ping_packet != null) {
+                        deadline = _ping_sent_at + pingTimeoutMs();
+                    }
+                    if (_hello_packet != null) {
+                        deadline = Math.min(deadline, _hello_sent_at + pingTimeoutMs());
+                    }
+                    return Math.max(1, deadline - now);
+                }
+                // Connected but idle - wake when it's time to ping or close it
+                if (!hasPendingWork()) {
+                    long deadline = nextIdleDeadline();
+                    return deadline < 0 ? 0 : Math.max(1, deadline - now);
+                }
+                // Busy - socket readiness will wake us
+                return 0;
+
+            default:
+                // Nothing to do until someone queues a packet
+                return 0;
+        }
+    }
+
+    private static void updateInterestOps() {
+        if (_server_channel == null) {
+            return;
+        }
+
+        SelectionKey key = _server_channel.keyFor(_selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        int read = _reads_paused ? 0 : SelectionKey.OP_READ;
+        if (_connection_state == STATE_CONNECTING) {
+            key.interestOps(SelectionKey.OP_CONNECT);
+        } else if (_connection_state == STATE_CONNECTED && hasSendablePackets()) {
+            key.interestOps(read | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(read);
+        }
+    }
+
+    private static void startConnect() {
+        try {
+            _server_channel = SocketChannel.open();
+            _server_channel.configureBlocking(false);
+            _server_channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            _server_channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (_server_channel.connect(new InetSocketAddress(_server_host, _server_port))) {
+                _server_channel.register(_selector, SelectionKey.OP_READ);
+                onConnected();
+            } else {
+                _server_channel.register(_selector, SelectionKey.OP_CONNECT);
+                setConnectionState(STATE_CONNECTING, System.currentTimeMillis() + CONNECT_TIMEOUT_MS);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failConnection();
+        }
+    }
+
+    private static void finishConnect() throws IOException {
+        if (_server_channel.finishConnect()) {
+            onConnected();
+        }
+    }
+
+    private static void onConnected() {
+        setConnectionState(STATE_CONNECTED, 0);
+        _connect_failures = 0;
+        _socket_last_activity = System.currentTimeMillis();
+        NetworkMetrics.recordConnect();
+        Log.d(TAG, "Created new server socket");
+
+        // Offer our optional features before anything else goes out. Until the server answers it
+        // won't use any of them, but nothing needs to wait on that
+        ByteBuffer args = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        args.putInt(Packet.FEATURE_DEFLATE | Packet.FEATURE_PING);
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.HELLO, args.array());
+        synchronized (_packet_tx_queue) {
+            _hello_packet = packet;
+            _hello_sent_at = System.currentTimeMillis();
+            _packet_tx_queue.addFirst(packet, RequestPriority.INTERACTIVE);
+            _callbacks.put(packet.nonce, new TxnCalllback() {
+                @Override
+                public void onSuccess(Packet p) {
+                    if (p.opcode != NetworkOpcode.HELLO || p.data.length < 4) {
+                        Log.w(TAG, "Unexpected response to hello - opcode " + p.opcode + ", " + p.data.length + " bytes");
+                        return;
+                    }
+                    _server_features = ByteBuffer.wrap(p.data).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                    Log.d(TAG, "Server accepted features " + _server_features);
+                }
+
+                @Override
+                public void onAbort() {
+                }
+            });
+        }
+    }
+
+    private static void readIncoming() throws IOException {
+        // Ingest everything the socket has for us, unless whoever we're reading for can't keep up
+        int read = 0;
+        while (!_reads_paused && (read = _server_channel.read(_rx_buffer)) > 0) {
+            // Update activity counter
+            _socket_last_activity = System.currentTimeMillis();
+            NetworkMetrics.recordBytesReceived(read);
+
+            // Decode as many packets as the buffered data allows, then recycle the buffer
+            _rx_buffer.flip();
+            Packet p;
+            while ((p = _packet_decoder.decode(_rx_buffer)) != null) {
+                dispatchPacket(p);
+            }
+            _rx_buffer.clear();
+        }
+
+        if (read < 0) {
+            // Expected if we asked for the close, otherwise anything unanswered needs re-sending
+            if (_connection_state == STATE_DRAINING) {
+                finishDrain();
+                return;
+            }
+            throw new IOException("Connection closed by server");
+        }
+    }
+
+    // Sink for payloads nobody is waiting on any more
+    private static final PayloadSink DISCARD_SINK = new PayloadSink() {
+        @Override
+        public void onPayloadData(ByteBuffer data) {
+            data.position(data.limit());
+        }
+
+        @Override
+        public void onPayloadComplete() {
+        }
+    };
+
+    private static PayloadSink openPayloadSink(int nonce, int opcode, int length) {
+        TxnCalllback callback;
+        synchronized (_packet_tx_queue) {
+            callback = _callbacks.get(nonce);
+            InFlightPacket sent = _in_flight.get(nonce);
+            if (sent != null) {
+                sent.firstByteAtNanos = System.nanoTime();
+                NetworkMetrics.recordFirstByte(sent.packet.opcode, sent.firstByteAtNanos - sent.sentAtNanos);
+            }
+        }
+        if (callback == null) {
+            // Most likely the tail of a cancelled request - don't bother buffering it
+            return DISCARD_SINK;
+        }
+        return callback.openPayloadSink(opcode, length);
+    }
+
+    private static void dispatchPacket(Packet p) {
+        TxnCalllback callback;
+        synchronized (_packet_tx_queue) {
+            callback = _callbacks.remove(p.nonce);
+            InFlightPacket sent = removeInFlight(p.nonce);
+            if (sent != null) {
+                long now = System.nanoTime();
+                NetworkMetrics.recordResponse(sent.packet.opcode, now - sent.sentAtNanos, _packet_decoder.getLastPacketSize());
+
+                // The server answers these without doing any work, so they time the link itself.
+                // Anything big enough times its bandwidth
+                if (sent.packet.opcode == NetworkOpcode.HELLO || sent.packet.opcode == NetworkOpcode.PING) {
+                    LinkEstimator.recordRtt(now - sent.sentAtNanos);
+                } else if (sent.firstByteAtNanos > 0) {
+                    LinkEstimator.recordTransfer(_packet_decoder.getLastPacketSize(), now - sent.firstByteAtNanos);
+                }
+            }
+            if (_hello_packet != null && _hello_packet.nonce == p.nonce) {
+                _hello_packet = null;
+            }
+            if (_ping_packet != null && _ping_packet.nonce == p.nonce) {
+                _ping_packet = null;
+            }
+        }
+        Log.d(TAG, "Resolved callback with nonce " + p.nonce);
+        if (callback != null) {
+            callback.onSuccess(p);
+        }
+    }
+
+    private static void writeOutgoing() throws IOException {
+        while (true) {
+            // Pick up the next packet if we aren't part way through one
+            if (_tx_buffers == null) {
+                Packet p;
+                synchronized (_packet_tx_queue) {
+                    // Hold off if the window is full - a response arriving will wake us again
+                    if (!canSendNext()) {
+                        return;
+                    }
+                    int priority = _packet_tx_queue.peekPriority();
+                    p = _packet_tx_queue.poll();
+                    _tx_buffers = p.serialize();
+                    long now = System.nanoTime();
+                    NetworkMetrics.recordQueueWait(p.opcode, now - p.queuedAtNanos);
+
+                    // Remember it until it's answered in case the connection drops. Nobody waits on
+                    // a response to a cancel
+                    InFlightPacket sent = _requeued.remove(p.nonce);
+                    if (_callbacks.containsKey(p.nonce)) {
+                        sent = sent != null ? sent : new InFlightPacket(p, priority);
+                        sent.sentAtNanos = now;
+                        sent.firstByteAtNanos = 0;
+                        _in_flight.put(p.nonce, sent);
+                        _in_flight_bytes += sent.expectedBytes;
+                    }
+                }
+                Log.d(TAG, "Sending packet with nonce " + p.nonce);
+            }
+
+            // Update activity counter
+            _socket_last_activity = System.currentTimeMillis();
+
+            // Write as much as the socket will take - if it fills up, wait for the next OP_WRITE
+            NetworkMetrics.recordBytesSent(_server_channel.write(_tx_buffers));
+            if (_tx_buffers[_tx_buffers.length - 1].hasRemaining()) {
+                return;
+            }
+            synchronized (_packet_tx_queue) {
+                _tx_buffers = null;
+                Log.d(TAG, "Packet tx queue now " + _packet_tx_queue.size());
+            }
+        }
+    }
+
+    public static void fetchDatabase(DatabaseFetchCallback cb) {
+        init();
+
+        // Wrap packet
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_DB, new byte[0]);
+
+        // Lock tx queue
+        synchronized (_packet_tx_queue) {
+            // Queue packet to be sent
+            _packet_tx_queue.add(packet, RequestPriority.VISIBLE);
+
+            // Put the callback handler in the map
+            _callbacks.put(packet.nonce, new TxnCalllback() {
+                @Override
+                public void onSuccess(Packet p) {
+                    if (p.opcode != NetworkOpcode.FETCH_DB) {
+                        Log.e(TAG, "Unexpected return opcode for fetch db call - wanted " + NetworkOpcode.FETCH_DB + " got " + p.opcode);
                         cb.onAbort();
+                        return;
                     }
+
+                    try {
+                        TrackOuterClass.MusicDatabase db = TrackOuterClass.MusicDatabase.parseFrom(p.data);
+                        cb.onDatabaseFetched(db);
+                    } catch (InvalidProtocolBufferException e) {
+                        e.printStackTrace();
+                        cb.onAbort();
+                    }
+                }
+
+                @Override
+                public void onAbort() {
+                    cb.onAbort();
                 }
             });
+        }
+        wakeNetworkLoop();
+    }
 
+    /**
+     * Fetch the whole database as a stream of records, which are handed to the callback in batches
+     * as they arrive rather than being buffered up into one message.
+     */
+    public static void fetchDatabaseStream(DatabaseStreamCallback cb) {
+        init();
+
+        // Wrap packet
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_DB_STREAM, new byte[0]);
+
+        // Lock tx queue
+        synchronized (_packet_tx_queue) {
             // Queue packet to be sent
-            _packet_tx_queue.add(packet);
+            _packet_tx_queue.add(packet, RequestPriority.VISIBLE);
+
+            // Put the callback handler in the map
+            _callbacks.put(packet.nonce, new TxnCalllback() {
+                private DatabaseStreamSink sink;
+
+                @Override
+                public PayloadSink openPayloadSink(int opcode, int length) {
+                    if (opcode != NetworkOpcode.FETCH_DB_STREAM) {
+                        return null;
+                    }
+
+                    ThreadManager.runOnBgThread(cb::onStreamStarted);
+                    // The sink reuses its lists, so each batch gets copies
+                    sink = new DatabaseStreamSink((tracks, images) -> queueBatch(cb, new ArrayList<>(tracks), new ArrayList<>(images)));
+                    return sink;
+                }
+
+                @Override
+                public void onSuccess(Packet p) {
+                    if (p.opcode != NetworkOpcode.FETCH_DB_STREAM || sink == null) {
+                        Log.e(TAG, "Unexpected return opcode for fetch db stream call - wanted " + NetworkOpcode.FETCH_DB_STREAM + " got " + p.opcode);
+                        ThreadManager.runOnBgThread(cb::onAbort);
+                        return;
+                    }
+
+                    if (!sink.isComplete()) {
+                        ThreadManager.runOnBgThread(cb::onAbort);
+                        return;
+                    }
+                    long generation = sink.getGeneration();
+                    ThreadManager.runOnBgThread(() -> cb.onStreamComplete(generation));
+                }
+
+                @Override
+                public void onAbort() {
+                    ThreadManager.runOnBgThread(cb::onAbort);
+                }
+            });
+        }
+        wakeNetworkLoop();
+    }
+
+    /**
+     * Hand a parsed batch of records to the background thread. While too many are waiting there we
+     * stop reading from the socket, so that a slow database holds the download back rather than
+     * the records piling up in memory.
+     */
+    private static void queueBatch(DatabaseStreamCallback cb, List<TrackOuterClass.Track> tracks, List<TrackOuterClass.Image> images) {
+        synchronized (_batch_lock) {
+            if (++_queued_batches >= MAX_QUEUED_BATCHES && !_reads_paused) {
+                _reads_paused = true;
+                _reads_paused_at = System.currentTimeMillis();
+            }
+        }
+
+        ThreadManager.runOnBgThread(() -> {
+            cb.onRecordBatch(tracks, images);
+
+            boolean resume;
+            synchronized (_batch_lock) {
+                resume = --_queued_batches < MAX_QUEUED_BATCHES && _reads_paused;
+                if (resume) {
+                    _reads_paused = false;
+                }
+            }
+            if (resume) {
+                wakeNetworkLoop();
+            }
+        });
+    }
+
+    /**
+     * Fetch the changes to the library since the given database generation.
+     */
+    public static void fetchDatabaseDelta(long generation, DatabaseDeltaFetchCallback cb) {
+        init();
+
+        // Wrap packet
+        ByteBuffer args = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        args.putLong(generation);
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_DB_DELTA, args.array());
+
+        // Lock tx queue
+        synchronized (_packet_tx_queue) {
+            // Queue packet to be sent
+            _packet_tx_queue.add(packet, RequestPriority.VISIBLE);
+
+            // Put the callback handler in the map
+            _callbacks.put(packet.nonce, new TxnCalllback() {
+                @Override
+                public void onSuccess(Packet p) {
+                    if (p.opcode != NetworkOpcode.FETCH_DB_DELTA) {
+                        Log.e(TAG, "Unexpected return opcode for fetch db delta call - wanted " + NetworkOpcode.FETCH_DB_DELTA + " got " + p.opcode);
+                        cb.onAbort();
+                        return;
+                    }
+
+                    try {
+                        TrackOuterClass.MusicDatabaseDelta delta = TrackOuterClass.MusicDatabaseDelta.parseFrom(p.data);
+                        cb.onDatabaseDeltaFetched(delta);
+                    } catch (InvalidProtocolBufferException e) {
+                        e.printStackTrace();
+                        cb.onAbort();
+                    }
+                }
+
+                @Override
+                public void onAbort() {
+                    cb.onAbort();
+                }
+            });
+        }
+        wakeNetworkLoop();
+    }
+
+    /**
+     * Fetch a track into the content cache.
+     *
+     * @param priority One of the {@link RequestPriority} classes
+     * @return Handle that can be used to cancel the fetch
+     */
+    public static ContentFetchHandle fetchTrack(Context context, byte[] checksum, int priority, ContentFetchCallback cb) {
+        return fetchContent(context, checksum, 0, cb, NetworkOpcode.FETCH_TRACK, priority);
+    }
+
+    /**
+     * Fetch an image into the content cache at its original size. Prefer
+     * {@link #fetchThumbnail} for anything that isn't shown full screen.
+     *
+     * @param priority One of the {@link RequestPriority} classes
+     * @return Handle that can be used to cancel the fetch
+     */
+    public static ContentFetchHandle fetchImage(Context context, byte[] checksum, int priority, ContentFetchCallback cb) {
+        return fetchContent(context, checksum, 0, cb, NetworkOpcode.FETCH_IMAGE, priority);
+    }
+
+    /**
+     * Fetch a downscaled copy of an image into the content cache. It is cached under
+     * {@link StorageManager#thumbnailKey}, separately from the original.
+     *
+     * @param edgeSize Longest edge of the thumbnail, see {@link StorageManager#thumbnailSize}
+     * @param priority One of the {@link RequestPriority} classes
+     * @return Handle that can be used to cancel the fetch
+     */
+    public static ContentFetchHandle fetchThumbnail(Context context, byte[] checksum, int edgeSize, int priority, ContentFetchCallback cb) {
+        return fetchContent(context, checksum, edgeSize, cb, NetworkOpcode.FETCH_IMAGE_THUMB, priority);
+    }
+
+    private static ContentFetchHandle fetchContent(Context context, byte[] checksum, int thumbnailSize, ContentFetchCallback cb, int op, int priority) {
+        if (checksum == null) {
+            cb.onAbort();
+            return ContentFetchHandle.NONE;
+        }
+
+        init();
+
+        // Thumbnails are cached under their own key
+        byte[] cacheKey = thumbnailSize > 0 ? StorageManager.thumbnailKey(checksum, thumbnailSize) : checksum;
+        String contentId = StorageManager.bytesToHex(cacheKey);
+
+        // Lock tx queue
+        PendingContentRequest request;
+        boolean isNewRequest = false;
+        boolean catchUp;
+        synchronized (_packet_tx_queue) {
+            // Do we already have an active request for this content ID? If not, queue one
+            request = _content_requests.get(contentId);
+            if (request == null) {
+                request = queueContentRequest(context, checksum, cacheKey, contentId, op, thumbnailSize, priority);
+                if (request == null) {
+                    cb.onAbort();
+                    return ContentFetchHandle.NONE;
+                }
+                isNewRequest = true;
+            } else if (priority < request.priority) {
+                // A more urgent caller wants this too - bump anything still waiting to be sent
+                Log.d(TAG, "Promoting request for " + contentId + " from priority " + request.priority + " to " + priority);
+                request.priority = priority;
+                for (Packet packet : request.packets) {
+                    _packet_tx_queue.promote(packet, priority);
+                }
+            }
+
+            // Queue this callback to piggy-back the request
+            request.callbacks.add(cb);
+            catchUp = request.started;
+        }
+
+        if (isNewRequest) {
+            wakeNetworkLoop();
+        } else if (catchUp) {
+            // Transfer is already under way - let the new caller catch up
+            cb.onContentStarted(request.sink);
+        }
+        return new ContentFetchHandle(request, cb);
+    }
+
+    private static void cancelContentFetch(PendingContentRequest request, ContentFetchCallback cb) {
+        synchronized (_packet_tx_queue) {
+            // Nothing to do if the request already finished or this caller was already cancelled
+            if (request.finished || !request.callbacks.remove(cb)) {
+                return;
+            }
+
+            // Keep the request going if anyone else still wants it
+            if (!request.callbacks.isEmpty()) {
+                return;
+            }
+
+            Log.d(TAG, "Cancelling request for " + request.contentId);
+            request.finished = true;
+            _content_requests.remove(request.contentId);
+            if (_image_batch.remove(request)) {
+                // Hadn't been sent yet
+            } else if (request.batch != null) {
+                // Batches are shared, so only withdraw once nobody in it is still waiting
+                if (request.batch.isFinished()) {
+                    withdrawPacket(request.batch.packet);
+                }
+            } else {
+                for (Packet packet : request.packets) {
+                    withdrawPacket(packet);
+                }
+            }
+            request.packets.clear();
+        }
+
+        // Resumable content keeps what it has for next time
+        request.sink.abort();
+        wakeNetworkLoop();
+    }
+
+    // Must be called with the tx queue locked
+    private static void withdrawPacket(Packet packet) {
+        // Responses that already arrived need no cleanup
+        if (_callbacks.remove(packet.nonce) == null) {
+            return;
+        }
+        _requeued.remove(packet.nonce);
+        removeInFlight(packet.nonce);
+
+        // If the request never made it out, just drop it. Otherwise ask the server to stop
+        if (!_packet_tx_queue.remove(packet)) {
+            ByteBuffer args = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            args.putInt(packet.nonce);
+            _packet_tx_queue.addFirst(new Packet(nextNonce(), NetworkOpcode.CANCEL, args.array()), RequestPriority.INTERACTIVE);
+        }
+    }
+
+    // Must be called with the tx queue locked
+    private static PendingContentRequest queueContentRequest(Context context, byte[] checksum, byte[] cacheKey, String contentId, int op, int thumbnailSize, int priority) {
+        // Tracks are fetched in resumable ranges, everything else in one go
+        boolean ranged = op == NetworkOpcode.FETCH_TRACK;
+
+        // Get somewhere to stream the response to
+        // Thumbnails are made by the server, so only the originals can be checked against their checksum
+        ContentSink sink = StorageManager.openContentSink(context, cacheKey, ranged, thumbnailSize == 0);
+        if (sink == null) {
+            return null;
+        }
+
+        PendingContentRequest request = new PendingContentRequest(checksum, contentId, op, thumbnailSize, priority, sink);
+        _content_requests.put(contentId, request);
+
+        if (ranged) {
+            // Readers that seek past what we have get their range fetched first
+            sink.setRangeWantedListener((s, position) -> prioritizeTrackRange(request, position));
+            scheduleTrackChunks(request);
+            return request;
+        }
+
+        batchImageRequest(request);
+        return request;
+    }
+
+    // Must be called with the tx queue locked
+    private static void batchImageRequest(PendingContentRequest request) {
+        // Hold images back briefly so that they can share a request with their neighbours. Everything
+        // in a batch is fetched at the same size
+        if (!_image_batch.isEmpty() && _image_batch.get(0).thumbnailSize != request.thumbnailSize) {
+            flushImageBatch();
+        }
+        if (_image_batch.isEmpty()) {
+            _image_batch_deadline = System.currentTimeMillis() + IMAGE_BATCH_WINDOW_MS;
+        }
+        _image_batch.add(request);
+        if (_image_batch.size() >= IMAGE_BATCH_MAX_SIZE) {
+            flushImageBatch();
+        }
+    }
+
+    private static void flushImageBatchIfDue() {
+        synchronized (_packet_tx_queue) {
+            if (!_image_batch.isEmpty() && System.currentTimeMillis() >= _image_batch_deadline) {
+                flushImageBatch();
+            }
+        }
+    }
+
+    // Must be called with the tx queue locked
+    private static void flushImageBatch() {
+        List<PendingContentRequest> members = new ArrayList<>(_image_batch);
+        _image_batch.clear();
+
+        // Nothing to gain from batching a single image
+        if (members.size() == 1) {
+            queueImageRequest(members.get(0));
+            return;
+        }
+
+        // Request is u32 edge size, u32 count, then the checksums. The batch goes out at its most
+        // urgent member's priority
+        int argsLength = 8;
+        int priority = RequestPriority.COUNT - 1;
+        for (PendingContentRequest member : members) {
+            argsLength += member.checksum.length;
+            priority = Math.min(priority, member.priority);
+        }
+        ByteBuffer args = ByteBuffer.allocate(argsLength).order(ByteOrder.LITTLE_ENDIAN);
+        args.putInt(members.get(0).thumbnailSize);
+        args.putInt(members.size());
+        for (PendingContentRequest member : members) {
+            args.put(member.checksum);
+        }
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_IMAGES_BATCH, args.array());
+
+        ImageBatch batch = new ImageBatch(members, packet);
+        for (PendingContentRequest member : members) {
+            member.batch = batch;
+            member.packets.add(packet);
+        }
+
+        Log.d(TAG, "Sending batch of " + members.size() + " image requests");
+        _callbacks.put(packet.nonce, new TxnCalllback() {
+            @Override
+            public PayloadSink openPayloadSink(int opcode, int length) {
+                if (opcode != NetworkOpcode.FETCH_IMAGES_BATCH) {
+                    return null;
+                }
+                return new ImageBatchResponseSink(batch);
+            }
+
+            @Override
+            public void onSuccess(Packet p) {
+                if (p.opcode != NetworkOpcode.FETCH_IMAGES_BATCH) {
+                    Log.e(TAG, "Unexpected return opcode for image batch - wanted " + NetworkOpcode.FETCH_IMAGES_BATCH + " got " + p.opcode);
+                }
+
+                // Anything the response didn't include isn't coming. Members being fetched again
+                // on their own are no longer ours to fail
+                for (PendingContentRequest member : members) {
+                    if (member.batch == batch) {
+                        failContentRequest(member);
+                    }
+                }
+            }
+
+            @Override
+            public void onAbort() {
+                // The connection dropped partway through the response. Members that already
+                // arrived are done with, and the rest are batched up again. Unless the server
+                // looks to be gone, or they keep getting cut off
+                List<PendingContentRequest> failed = new ArrayList<>();
+                synchronized (_packet_tx_queue) {
+                    for (PendingContentRequest member : members) {
+                        if (member.batch != batch || member.finished || member.verifying) {
+                            continue;
+                        }
+                        member.batch = null;
+                        if (_connect_failures < CONNECT_FAILURES_BEFORE_ABORT && member.sendRetries++ < MAX_SEND_ATTEMPTS) {
+                            // Whatever of its record came through is no use without the rest
+                            member.sink.restart();
+                            member.packets.removeIf(sent -> !_callbacks.containsKey(sent.nonce));
+                            batchImageRequest(member);
+                        } else {
+                            failed.add(member);
+                        }
+                    }
+                }
+                for (PendingContentRequest member : failed) {
+                    failContentRequest(member);
+                }
+            }
+        });
+        _packet_tx_queue.add(packet, priority);
+    }
+
+    // Must be called with the tx queue locked
+    private static void queueImageRequest(PendingContentRequest request) {
+        final int op = request.opcode;
+
+        // Thumbnail requests carry the size we want after the checksum
+        ByteBuffer args = ByteBuffer.allocate(request.checksum.length + (request.thumbnailSize > 0 ? 4 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        args.put(request.checksum);
+        if (request.thumbnailSize > 0) {
+            args.putInt(request.thumbnailSize);
+        }
+
+        // Add our proxy content callback callback to the main callback map
+        Packet packet = new Packet(nextNonce(), op, args.array());
+        _callbacks.put(packet.nonce, new TxnCalllback() {
+            @Override
+            public PayloadSink openPayloadSink(int opcode, int length) {
+                // Only stream payloads that are actually the content we asked for
+                if (opcode != op) {
+                    return null;
+                }
+
+                // Length is unknown if the server chose to compress the payload
+                if (length >= 0) {
+                    request.sink.setExpectedLength(length);
+                }
+                onContentStarted(request);
+                return request.sink;
+            }
+
+            @Override
+            public void onSuccess(Packet p) {
+                // Check response packet is good
+                if (p.opcode != op) {
+                    // If it isn't, abort all pending callbacks
+                    Log.e(TAG, "Unexpected return opcode for call - wanted " + op + " got " + p.opcode);
+                    failContentRequest(request);
+                    return;
+                }
+
+                completeContentRequest(request);
+            }
+
+            @Override
+            public void onAbort() {
+                failContentRequest(request);
+            }
+        });
+
+        // Queue packet to be sent
+        request.packets.add(packet);
+        _packet_tx_queue.add(packet, request.priority);
+    }
+
+    private static void onContentStarted(PendingContentRequest request) {
+        // Let any progressive readers know the content is on its way
+        List<ContentFetchCallback> cbs;
+        synchronized (_packet_tx_queue) {
+            if (request.started) {
+                return;
+            }
+            request.started = true;
+            cbs = new ArrayList<>(request.callbacks);
+        }
+        for (ContentFetchCallback cb : cbs) {
+            cb.onContentStarted(request.sink);
+        }
+    }
+
+    private static void completeContentRequest(PendingContentRequest request) {
+        // Only the first response to finish the content gets to check it
+        synchronized (_packet_tx_queue) {
+            if (request.finished || request.verifying) {
+                return;
+            }
+            request.verifying = true;
+        }
+
+        // Make sure we got what we asked for before it goes in the cache
+        request.sink.verify(matches -> {
+            if (!matches && retryContentRequest(request)) {
+                return;
+            }
+            finishContentRequest(request, matches);
+        });
+    }
+
+    private static void finishContentRequest(PendingContentRequest request, boolean verified) {
+        // Stop new callers piggy-backing on this request. It may have been cancelled while verifying
+        synchronized (_packet_tx_queue) {
+            if (request.finished) {
+                return;
+            }
+            request.finished = true;
+            _content_requests.remove(request.contentId);
+        }
+
+        // Move the streamed content into the cache
+        if (!verified) {
+            request.sink.discard();
+        }
+        if (!verified || !request.sink.commit()) {
+            for (ContentFetchCallback cb : request.callbacks) {
+                cb.onAbort();
+            }
+            return;
+        }
+
+        // Invoke success callbacks
+        for (ContentFetchCallback cb : request.callbacks) {
+            cb.onContentReceived(request.sink.getContentFile());
+        }
+    }
+
+    private static boolean retryContentRequest(PendingContentRequest request) {
+        synchronized (_packet_tx_queue) {
+            if (request.finished || request.verifyRetries >= MAX_CONTENT_VERIFY_RETRIES) {
+                return false;
+            }
+            request.verifyRetries++;
+            request.verifying = false;
+            NetworkMetrics.recordVerifyRetry();
+            Log.w(TAG, "Refetching " + request.contentId + " after checksum mismatch, retry " + request.verifyRetries);
+
+            // Start over in the same sink, so that anyone reading from it picks up the new data
+            request.sink.restart();
+            request.packets.removeIf(sent -> !_callbacks.containsKey(sent.nonce));
+            if (request.opcode == NetworkOpcode.FETCH_TRACK) {
+                request.requestedChunks.clear();
+                scheduleTrackChunks(request);
+            } else {
+                // No point holding a retry back for a batch
+                request.batch = null;
+                queueImageRequest(request);
+            }
+        }
+        wakeNetworkLoop();
+        return true;
+    }
+
+    private static void failContentRequest(PendingContentRequest request) {
+        // Stop new callers piggy-backing on this request. Content that has all arrived and is being
+        // checked is past failing
+        synchronized (_packet_tx_queue) {
+            if (request.finished || request.verifying) {
+                return;
+            }
+            request.finished = true;
+            _content_requests.remove(request.contentId);
+        }
+
+        // Resumable content keeps what it has for next time
+        request.sink.abort();
+        for (ContentFetchCallback cb : request.callbacks) {
+            cb.onAbort();
+        }
+    }
+
+    private static long trackChunkStart(int chunk) {
+        return (long) chunk * TRACK_CHUNK_SIZE;
+    }
+
+    private static long trackChunkEnd(int chunk, long totalSize) {
+        long end = trackChunkStart(chunk + 1);
+        return totalSize >= 0 ? Math.min(end, totalSize) : end;
+    }
+
+    // Must be called with the tx queue locked
+    private static void scheduleTrackChunks(PendingContentRequest request) {
+        if (request.finished) {
+            return;
+        }
+
+        // Until the first response tells us how big the track is, only ask for the chunk we resume from
+        long totalSize = request.sink.getExpectedLength();
+        if (totalSize < 0) {
+            if (request.outstandingChunks == 0) {
+                queueTrackChunk(request, (int) (request.sink.getBytesWritten() / TRACK_CHUNK_SIZE), false);
+            }
+            return;
+        }
+
+        // Keep the pipeline full, working forwards from the playhead and then filling in anything skipped
+        int chunkCount = (int) ((totalSize + TRACK_CHUNK_SIZE - 1) / TRACK_CHUNK_SIZE);
+        for (int i = 0; i < chunkCount && request.outstandingChunks < TRACK_CHUNK_PIPELINE_DEPTH; i++) {
+            int chunk = (request.playheadChunk + i) % chunkCount;
+            if (request.requestedChunks.get(chunk) || request.sink.isRangeAvailable(trackChunkStart(chunk), trackChunkEnd(chunk, totalSize))) {
+                continue;
+            }
+            queueTrackChunk(request, chunk, false);
+        }
+    }
+
+    // Must be called with the tx queue locked
+    private static void queueTrackChunk(PendingContentRequest request, int chunk, boolean urgent) {
+        long totalSize = request.sink.getExpectedLength();
+        long start = trackChunkStart(chunk);
+        long end = trackChunkEnd(chunk, totalSize);
+
+        // If we resumed, or an earlier attempt was cut off, part way into this chunk, only ask for
+        // the rest of it
+        long available = request.sink.getBytesAvailableFrom(start);
+        if (available > 0 && start + available < end) {
+            start += available;
+        }
+        final long rangeStart = start;
+        final long rangeEnd = end;
+
+        // Request is checksum, u64 offset, u32 length
+        ByteBuffer args = ByteBuffer.allocate(request.checksum.length + 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        args.put(request.checksum);
+        args.putLong(rangeStart);
+        args.putInt((int) (rangeEnd - rangeStart));
+        Packet packet = new Packet(nextNonce(), NetworkOpcode.FETCH_TRACK_RANGE, args.array());
+
+        request.requestedChunks.set(chunk);
+        request.outstandingChunks++;
+        _callbacks.put(packet.nonce, new TxnCalllback() {
+            private RangeResponseSink responseSink;
+
+            @Override
+            public PayloadSink openPayloadSink(int opcode, int length) {
+                if (opcode != NetworkOpcode.FETCH_TRACK_RANGE) {
+                    return null;
+                }
+                responseSink = new RangeResponseSink(request, rangeStart);
+                return responseSink;
+            }
+
+            @Override
+            public void onSuccess(Packet p) {
+                if (p.opcode != NetworkOpcode.FETCH_TRACK_RANGE || !responseSink.hasSize()) {
+                    Log.e(TAG, "Unexpected return opcode for ranged track fetch - wanted " + NetworkOpcode.FETCH_TRACK_RANGE + " got " + p.opcode);
+                    failContentRequest(request);
+                    return;
+                }
+
+                synchronized (_packet_tx_queue) {
+                    request.outstandingChunks--;
+                    if (!request.sink.isComplete()) {
+                        boolean chunkDone = request.sink.isRangeAvailable(rangeStart, Math.min(rangeEnd, request.sink.getExpectedLength()));
+                        if (!chunkDone && responseSink.bytesReceived == 0) {
+                            // Server has nothing more to give us for this range - give up rather than asking forever
+                            Log.e(TAG, "Empty response for range " + rangeStart + "-" + rangeEnd + " of " + request.contentId);
+                        } else {
+                            // A short response means the rest of this chunk needs asking for again
+                            if (!chunkDone) {
+                                request.requestedChunks.clear(chunk);
+                            }
+                            scheduleTrackChunks(request);
+                            return;
+                        }
+                    }
+                }
+
+                if (request.sink.isComplete()) {
+                    completeContentRequest(request);
+                } else {
+                    failContentRequest(request);
+                }
+            }
+
+            @Override
+            public void onAbort() {
+                // What arrived before the connection dropped is kept, so ask for the rest of the
+                // chunk on the next one. Unless the server looks to be gone, or retries are getting
+                // nowhere
+                synchronized (_packet_tx_queue) {
+                    request.outstandingChunks--;
+                    boolean progressed = responseSink != null && responseSink.bytesReceived > 0;
+                    if (_connect_failures < CONNECT_FAILURES_BEFORE_ABORT && (progressed || request.sendRetries++ < MAX_SEND_ATTEMPTS)) {
+                        request.requestedChunks.clear(chunk);
+                        scheduleTrackChunks(request);
+                        return;
+                    }
+                }
+                failContentRequest(request);
+            }
+        });
+
+        // Queue packet to be sent - chunks a reader is blocked on jump the queue
+        request.packets.removeIf(sent -> !_callbacks.containsKey(sent.nonce));
+        request.packets.add(packet);
+        if (urgent) {
+            _packet_tx_queue.addFirst(packet, request.priority);
+        } else {
+            _packet_tx_queue.add(packet, request.priority);
+        }
+    }
+
+    private static void onTrackSizeKnown(PendingContentRequest request, long totalSize) {
+        if (request.sink.getExpectedLength() >= 0) {
+            return;
+        }
+
+        // Now that we know how many chunks there are, fill the pipeline
+        request.sink.setExpectedLength(totalSize);
+        synchronized (_packet_tx_queue) {
+            scheduleTrackChunks(request);
+        }
+        onContentStarted(request);
+    }
+
+    private static void prioritizeTrackRange(PendingContentRequest request, long position) {
+        synchronized (_packet_tx_queue) {
+            int chunk = (int) (position / TRACK_CHUNK_SIZE);
+            request.playheadChunk = chunk;
+            if (request.finished || request.sink.getExpectedLength() < 0 || request.requestedChunks.get(chunk)) {
+                return;
+            }
+
+            // Fetch the chunk the reader is waiting on ahead of everything else
+            Log.d(TAG, "Prioritizing chunk " + chunk + " of " + request.contentId);
+            queueTrackChunk(request, chunk, true);
         }
+        wakeNetworkLoop();
     }
 
     public static void rescanDatabase(DatabaseRescanCallback cb) {
@@ -368,7 +1989,7 @@ public class NetworkManager {
         // Lock tx queue
         synchronized (_packet_tx_queue) {
             // Queue packet to be sent
-            _packet_tx_queue.add(packet);
+            _packet_tx_queue.add(packet, RequestPriority.INTERACTIVE);
 
             // Put the callback handler in the map
             _callbacks.put(packet.nonce, new TxnCalllback() {
@@ -389,6 +2010,7 @@ public class NetworkManager {
                 }
             });
         }
+        wakeNetworkLoop();
     }
 
 }
@@ -0,0 +1,182 @@
+package com.schlaikjer.music.utility;
+
+import com.schlaikjer.music.model.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the network layer. Everything here is lock-free so that
+ * NetworkManager can record on every packet without adding contention, and the stats screen can
+ * read it at any time.
+ * <p>
+ * Latencies are recorded in microseconds.
+ */
+public class NetworkMetrics {
+
+    // Opcodes at or above this share the last slot
+    public static final int OPCODE_SLOTS = 16;
+
+    // Throughput is averaged over this many whole seconds
+    private static final int THROUGHPUT_WINDOW_S = 4;
+    private static final int THROUGHPUT_RING_SIZE = 8;
+
+    public static class OpcodeMetrics {
+        // From being queued to being written to the socket
+        public final Histogram queueWait = new Histogram();
+        // From being written to the response header arriving
+        public final Histogram timeToFirstByte = new Histogram();
+        // From being written to the whole response arriving
+        public final Histogram transferTime = new Histogram();
+        // Response bytes, as they came over the wire
+        public final AtomicLong bytesReceived = new AtomicLong();
+        public final AtomicLong responses = new AtomicLong();
+    }
+
+    private static final OpcodeMetrics[] _opcodes = new OpcodeMetrics[OPCODE_SLOTS];
+
+    static {
+        for (int i = 0; i < OPCODE_SLOTS; i++) {
+            _opcodes[i] = new OpcodeMetrics();
+        }
+    }
+
+    private static final AtomicLong _connects = new AtomicLong();
+    private static final AtomicLong _connect_failures = new AtomicLong();
+    private static final AtomicLong _aborts = new AtomicLong();
+    private static final AtomicLong _bytes_sent = new AtomicLong();
+    private static final AtomicLong _bytes_received = new AtomicLong();
+
+    // Checksum verification of downloaded content. Lag is from the last byte arriving to the
+    // result being known, which is what verification adds to a fetch
+    private static final Histogram _verify_lag = new Histogram();
+    private static final AtomicLong _bytes_verified = new AtomicLong();
+    private static final AtomicLong _verify_nanos = new AtomicLong();
+    private static final AtomicLong _verify_failures = new AtomicLong();
+    private static final AtomicLong _verify_retries = new AtomicLong();
+
+    // Bytes received in each recent second, and which second each slot currently holds
+    private static final AtomicLongArray _second_bytes = new AtomicLongArray(THROUGHPUT_RING_SIZE);
+    private static final AtomicLongArray _second_stamps = new AtomicLongArray(THROUGHPUT_RING_SIZE);
+
+    public static OpcodeMetrics forOpcode(int opcode) {
+        return _opcodes[Math.max(0, Math.min(opcode, OPCODE_SLOTS - 1))];
+    }
+
+    static void recordQueueWait(int opcode, long nanos) {
+        forOpcode(opcode).queueWait.record(nanos / 1000);
+    }
+
+    static void recordFirstByte(int opcode, long nanos) {
+        forOpcode(opcode).timeToFirstByte.record(nanos / 1000);
+    }
+
+    static void recordResponse(int opcode, long nanos, long bytes) {
+        OpcodeMetrics metrics = forOpcode(opcode);
+        metrics.transferTime.record(nanos / 1000);
+        metrics.bytesReceived.addAndGet(bytes);
+        metrics.responses.incrementAndGet();
+    }
+
+    static void recordConnect() {
+        _connects.incrementAndGet();
+    }
+
+    static void recordConnectFailure() {
+        _connect_failures.incrementAndGet();
+    }
+
+    static void recordAborts(int count) {
+        _aborts.addAndGet(count);
+    }
+
+    static void recordBytesSent(long bytes) {
+        _bytes_sent.addAndGet(bytes);
+    }
+
+    static void recordBytesReceived(long bytes) {
+        _bytes_received.addAndGet(bytes);
+
+        // Slots are reused as the ring comes round, so the first write in a new second resets it
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % THROUGHPUT_RING_SIZE);
+        long stamp = _second_stamps.get(slot);
+        if (stamp != second && _second_stamps.compareAndSet(slot, stamp, second)) {
+            _second_bytes.set(slot, 0);
+        }
+        _second_bytes.addAndGet(slot, bytes);
+    }
+
+    static void recordVerification(long bytes, long hashNanos, long lagNanos, boolean matched) {
+        _verify_lag.record(lagNanos / 1000);
+        _bytes_verified.addAndGet(bytes);
+        _verify_nanos.addAndGet(hashNanos);
+        if (!matched) {
+            _verify_failures.incrementAndGet();
+        }
+    }
+
+    static void recordVerifyRetry() {
+        _verify_retries.incrementAndGet();
+    }
+
+    public static long getConnects() {
+        return _connects.get();
+    }
+
+    public static long getConnectFailures() {
+        return _connect_failures.get();
+    }
+
+    public static long getAborts() {
+        return _aborts.get();
+    }
+
+    public static long getBytesSent() {
+        return _bytes_sent.get();
+    }
+
+    public static long getBytesReceived() {
+        return _bytes_received.get();
+    }
+
+    public static Histogram getVerifyLag() {
+        return _verify_lag;
+    }
+
+    public static long getBytesVerified() {
+        return _bytes_verified.get();
+    }
+
+    public static long getVerifyFailures() {
+        return _verify_failures.get();
+    }
+
+    public static long getVerifyRetries() {
+        return _verify_retries.get();
+    }
+
+    /**
+     * @return Hashing rate in bytes per second of time spent hashing, or 0 if nothing has been verified
+     */
+    public static long getVerifyThroughput() {
+        long nanos = _verify_nanos.get();
+        return nanos == 0 ? 0 : (long) (_bytes_verified.get() * 1e9 / nanos);
+    }
+
+    /**
+     * @return Receive rate in bytes per second, averaged over the last few whole seconds
+     */
+    public static long getReceiveThroughput() {
+        long second = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (long s = second - THROUGHPUT_WINDOW_S; s < second; s++) {
+            int slot = (int) (s % THROUGHPUT_RING_SIZE);
+            if (_second_stamps.get(slot) == s) {
+                total += _second_bytes.get(slot);
+            }
+        }
+        return total / THROUGHPUT_WINDOW_S;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.schlaikjer.music.utility;
+
+import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.RequestPriority;
+
+import java.util.ArrayDeque;
+
+/**
+ * Transmit queue with one FIFO per {@link RequestPriority} class. Packets are always taken from the
+ * most urgent non-empty class, so interactive requests never wait behind bulk prefetching.
+ * <p>
+ * Not thread safe - callers synchronize externally.
+ */
+class PacketQueue {
+
+    private final ArrayDeque<Packet>[] _queues;
+    private int _size = 0;
+
+    @SuppressWarnings("unchecked")
+    PacketQueue() {
+        _queues = new ArrayDeque[RequestPriority.COUNT];
+        for (int i = 0; i < _queues.length; i++) {
+            _queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    void add(Packet packet, int priority) {
+        packet.queuedAtNanos = System.nanoTime();
+        _queues[clamp(priority)].addLast(packet);
+        _size++;
+    }
+
+    // Queue a packet ahead of everything else in its class
+    void addFirst(Packet packet, int priority) {
+        packet.queuedAtNanos = System.nanoTime();
+        _queues[clamp(priority)].addFirst(packet);
+        _size++;
+    }
+
+    Packet poll() {
+        for (ArrayDeque<Packet> queue : _queues) {
+            Packet packet = queue.pollFirst();
+            if (packet != null) {
+                _size--;
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    // Packet poll() would return next, without removing it
+    Packet peek() {
+        for (ArrayDeque<Packet> queue : _queues) {
+            Packet packet = queue.peekFirst();
+            if (packet != null) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    // Priority class of the packet poll() would return next
+    int peekPriority() {
+        for (int i = 0; i < _queues.length; i++) {
+            if (!_queues[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move a still-queued packet up to a more urgent class. Does nothing if the packet has already
+     * been sent or is already at least that urgent.
+     */
+    void promote(Packet packet, int priority) {
+        priority = clamp(priority);
+        for (int i = priority + 1; i < _queues.length; i++) {
+            if (_queues[i].remove(packet)) {
+                _queues[priority].addLast(packet);
+                return;
+            }
+        }
+    }
+
+    boolean remove(Packet packet) {
+        for (ArrayDeque<Packet> queue : _queues) {
+            if (queue.remove(packet)) {
+                _size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    int size() {
+        return _size;
+    }
+
+    void clear() {
+        for (ArrayDeque<Packet> queue : _queues) {
+            queue.clear();
+        }
+        _size = 0;
+    }
+
+    private static int clamp(int priority) {
+        return Math.max(0, Math.min(RequestPriority.COUNT - 1, priority));
+    }
+
+}
@@ -4,8 +4,10 @@ import android.content.Context;
 import android.util.Log;
 
 import com.schlaikjer.music.db.TrackDatabase;
+import com.schlaikjer.music.model.RequestPriority;
 import com.schlaikjer.music.model.Track;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -18,6 +20,11 @@ public class PlaylistManager {
     private static List<byte[]> currentPlaylist = null;
 
     public static final int TRACK_PREFETCH_LEN = 4;
+    // How many tracks to prefetch at once
+    private static final int TRACK_PREFETCH_CONCURRENCY = 2;
+    // Prefetching pauses while the network's in-flight window is at least this full
+    private static final float PREFETCH_BACKOFF_OCCUPANCY = 0.5f;
+    private static final long PREFETCH_BACKOFF_MS = 500;
 
     private static List<WeakReference<PlaylistChangedListener>> playlistChangedListeners = new ArrayList<>();
 
@@ -166,25 +173,54 @@ public class PlaylistManager {
     }
 
     public static void prefetchTracks(Context context, int prefetch_lookahead, int offset) {
+        // Collect everything in range that still needs fetching
+        final Context appContext = context.getApplicationContext();
+        final List<byte[]> checksums = new ArrayList<>();
         for (int i = offset; i < currentPlaylist.size() && i < offset + prefetch_lookahead; i++) {
-            final byte[] checksum = currentPlaylist.get(i);
-            if (!StorageManager.hasContentFile(context, checksum)) {
-                Log.d(TAG, "Prefetching track " + StorageManager.bytesToHex(checksum));
-                NetworkManager.fetchTrack(checksum, new NetworkManager.ContentFetchCallback() {
-                    @Override
-                    public void onContentReceived(byte[] data) {
-                        Log.d(TAG, "Saving data for track " + StorageManager.bytesToHex(checksum));
-                        StorageManager.saveContentFile(context, checksum, data);
-                    }
-
-                    @Override
-                    public void onAbort() {
-                        // Don't care
-                        Log.w(TAG, "Failed to fetch data for track " + StorageManager.bytesToHex(checksum));
-                    }
-                });
+            byte[] checksum = currentPlaylist.get(i);
+            if (!StorageManager.hasContentFile(appContext, checksum)) {
+                checksums.add(checksum);
             }
         }
+
+        // Work through them a few at a time, so that prefetching a long playlist doesn't bury
+        // everything else in the network queue
+        for (int i = 0; i < TRACK_PREFETCH_CONCURRENCY; i++) {
+            prefetchTrackContinuation(appContext, checksums);
+        }
+    }
+
+    private static void prefetchTrackContinuation(Context context, List<byte[]> checksums) {
+        // If the network is busy, give it a chance to catch up first
+        if (NetworkManager.getWindowOccupancy() >= PREFETCH_BACKOFF_OCCUPANCY) {
+            ThreadManager.runOnBgThreadDelayed(() -> prefetchTrackContinuation(context, checksums), PREFETCH_BACKOFF_MS);
+            return;
+        }
+
+        // Fetch next hash, if there are any left
+        final byte[] checksum;
+        synchronized (checksums) {
+            if (checksums.size() == 0) {
+                return;
+            }
+            checksum = checksums.remove(0);
+        }
+
+        Log.d(TAG, "Prefetching track " + StorageManager.bytesToHex(checksum));
+        NetworkManager.fetchTrack(context, checksum, RequestPriority.PREFETCH, new NetworkManager.ContentFetchCallback() {
+            @Override
+            public void onContentReceived(File contentFile) {
+                Log.d(TAG, "Saved data for track " + StorageManager.bytesToHex(checksum));
+                prefetchTrackContinuation(context, checksums);
+            }
+
+            @Override
+            public void onAbort() {
+                // Don't care
+                Log.w(TAG, "Failed to fetch data for track " + StorageManager.bytesToHex(checksum));
+                prefetchTrackContinuation(context, checksums);
+            }
+        });
     }
 
 }
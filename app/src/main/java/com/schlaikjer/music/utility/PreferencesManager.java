@@ -10,6 +10,7 @@ public class PreferencesManager {
     public static class Keys {
         public static final String LIMIT_CACHE_SIZE = "LIMIT_CACHE_SIZE";
         public static final String MAX_CACHE_SIZE_BYTES = "MAX_CACHE_SIZE_BYTES";
+        public static final String DATABASE_GENERATION = "DATABASE_GENERATION";
     }
 
     public static SharedPreferences getSharedPreferences(Context context) {
@@ -3,41 +3,43 @@ package com.schlaikjer.music.utility;
 import android.content.Context;
 import android.util.Log;
 
+import com.schlaikjer.music.R;
 import com.schlaikjer.music.db.TrackDatabase;
 import com.schlaikjer.music.model.CacheEntry;
+import com.schlaikjer.music.model.RequestPriority;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class StorageManager {
 
     public static final String TAG = StorageManager.class.getSimpleName();
 
-    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-
     private static final long GIGABYTE = 1024 * 1024 * 1024;
     public static final long DEFAULT_MAX_CACHE_SIZE_BYTES = 4 * GIGABYTE;
 
+    // Range of thumbnail edge sizes we ask the server for
+    private static final int MIN_THUMBNAIL_SIZE = 64;
+    private static final int MAX_THUMBNAIL_SIZE = 2048;
+
+    // How many art fetches to keep outstanding while prefetching
+    private static final int ART_PREFETCH_CONCURRENCY = 32;
+    // Prefetching pauses while the network's in-flight window is at least this full
+    private static final float ART_PREFETCH_BACKOFF_OCCUPANCY = 0.5f;
+    private static final long ART_PREFETCH_BACKOFF_MS = 500;
+
     public static String bytesToHex(byte[] data) {
-        char[] hexChars = new char[data.length * 2];
-        for (int j = 0; j < data.length; j++) {
-            int v = data[j] & 0xFF;
-            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
-            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
-        }
-        return new String(hexChars);
+        return ContentIds.bytesToHex(data);
     }
 
     public static File getContentFile(Context context, byte[] checksum) {
         // Convert the checksum to hex for use as a filename
-        String filename = bytesToHex(checksum);
+        String filename = ContentIds.bytesToHex(checksum);
 
         // Bucket filename after first byte for FS pressure
-        String dirPrefix = filename.substring(0, 2);
-        String dirPostfix = filename.substring(2);
+        String dirPrefix = ContentIds.bucketName(filename);
+        String dirPostfix = ContentIds.fileName(filename);
 
         // Ensure filepath exists
         File dir = new File(context.getFilesDir(), dirPrefix);
@@ -50,28 +52,53 @@ public class StorageManager {
         return new File(dir, dirPostfix);
     }
 
-    public static void saveContentFile(Context context, byte[] checksum, byte[] data) {
+    /**
+     * Cache key for a thumbnail of an image. Thumbnails are stored alongside everything else in the
+     * content cache, under the image checksum extended with the edge size.
+     */
+    public static byte[] thumbnailKey(byte[] checksum, int edgeSize) {
+        return ByteBuffer.allocate(checksum.length + 4).put(checksum).putInt(edgeSize).array();
+    }
+
+    /**
+     * Round a view size up to the thumbnail size to request for it, so that views of similar size
+     * share cache entries.
+     */
+    public static int thumbnailSize(int edgePx) {
+        int size = MIN_THUMBNAIL_SIZE;
+        while (size < edgePx && size < MAX_THUMBNAIL_SIZE) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * Find the best cached copy of an image to show at the given thumbnail size - the thumbnail if
+     * we have one, otherwise the original.
+     */
+    public static File getCachedArtFile(Context context, byte[] checksum, int thumbnailSize) {
+        byte[] key = thumbnailKey(checksum, thumbnailSize);
+        if (hasContentFile(context, key)) {
+            return getContentFile(context, key);
+        }
+        if (hasContentFile(context, checksum)) {
+            return getContentFile(context, checksum);
+        }
+        return null;
+    }
+
+    /**
+     * @param verify Whether the content is stored under its own checksum, and so can be checked
+     *               against it once received
+     */
+    public static ContentSink openContentSink(Context context, byte[] checksum, boolean resumable, boolean verify) {
         // Get file handle
         File outputFile = getContentFile(context, checksum);
         if (outputFile == null) {
-            return;
+            return null;
         }
 
-        // Write out the data
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            fos.write(data);
-
-            // Add a cache entry to the DB on success
-            CacheEntry entry = new CacheEntry();
-            entry.checksum = checksum;
-            entry.path = getContentFilePath(context, checksum);
-            entry.sizeBytes = data.length;
-            TrackDatabase.getInstance(context).addCacheEntry(entry);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return new ContentSink(context, checksum, outputFile, resumable, verify);
     }
 
     public static boolean hasContentFile(Context context, byte[] checksum) {
@@ -115,42 +142,52 @@ public class StorageManager {
         final Context appContext = context.getApplicationContext();
         List<byte[]> imageChecksums = TrackDatabase.getInstance(appContext).getImageChecksumsForParentPath("");
 
-        // Spawn a series of continuations to fetch images one by one
-        // This is to prevent us queuing so many requests that we starve other traffic
+        // Art is only ever shown at grid size until it's opened, so that's what we prefetch
+        int thumbnailSize = thumbnailSize(appContext.getResources().getDimensionPixelSize(R.dimen.album_list_image_width));
+
+        // Spawn a few chains of continuations that work through the list together. Enough are in
+        // flight at once to fill an image batch, but not so many that we starve other traffic
         ThreadManager.runOnBgThread(() -> {
-            prefetchArtContinuation(appContext, imageChecksums);
+            for (int i = 0; i < ART_PREFETCH_CONCURRENCY; i++) {
+                prefetchArtContinuation(appContext, imageChecksums, thumbnailSize);
+            }
         });
     }
 
-    private static void prefetchArtContinuation(Context context, List<byte[]> checksums) {
+    private static void prefetchArtContinuation(Context context, List<byte[]> checksums, int thumbnailSize) {
+        // Leave room for anything more urgent if the network is already busy
+        if (NetworkManager.getWindowOccupancy() >= ART_PREFETCH_BACKOFF_OCCUPANCY) {
+            ThreadManager.runOnBgThreadDelayed(() -> prefetchArtContinuation(context, checksums, thumbnailSize), ART_PREFETCH_BACKOFF_MS);
+            return;
+        }
+
         do {
-            // Did we run out of hashes?
-            if (checksums.size() == 0) {
-                return;
+            // Fetch next hash, if there are any left
+            byte[] checksum;
+            synchronized (checksums) {
+                if (checksums.size() == 0) {
+                    return;
+                }
+                checksum = checksums.remove(0);
             }
 
-            // Fetch next hash
-            byte[] checksum = checksums.remove(0);
-
             // If we already have it, take the next one
-            if (StorageManager.hasContentFile(context, checksum)) {
+            if (getCachedArtFile(context, checksum, thumbnailSize) != null) {
                 continue;
             }
 
             // Initiate request
-            NetworkManager.fetchImage(checksum, new NetworkManager.ContentFetchCallback() {
+            NetworkManager.fetchThumbnail(context, checksum, thumbnailSize, RequestPriority.BACKGROUND, new NetworkManager.ContentFetchCallback() {
                 @Override
-                public void onContentReceived(byte[] data) {
-                    StorageManager.saveContentFile(context, checksum, data);
-
+                public void onContentReceived(File contentFile) {
                     // Daisy chain to next continuation
-                    prefetchArtContinuation(context, checksums);
+                    prefetchArtContinuation(context, checksums, thumbnailSize);
                 }
 
                 @Override
                 public void onAbort() {
                     // Daisy chain to next continuation
-                    prefetchArtContinuation(context, checksums);
+                    prefetchArtContinuation(context, checksums, thumbnailSize);
                 }
             });
 
@@ -21,6 +21,10 @@ public class ThreadManager {
         getBgThreadHandler().post(runnable);
     }
 
+    public static void runOnBgThreadDelayed(Runnable runnable, long delayMs) {
+        getBgThreadHandler().postDelayed(runnable, delayMs);
+    }
+
     public static boolean isOnUIThread() {
         return Looper.getMainLooper().equals(Looper.myLooper());
     }
@@ -0,0 +1,157 @@
+package com.schlaikjer.music.db;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.protobuf.ByteString;
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.Album;
+import com.schlaikjer.music.model.Track;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.schlaikjer.music.db.TestLibrary.image;
+import static com.schlaikjer.music.db.TestLibrary.track;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that browsing the directory tree sees the same totals and covers as the tracks and
+ * images themselves, after a full sync and after changes to it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class DirectoryTreeTest {
+
+    private static final TrackOuterClass.Track FIRST = track(1, "/music/Artist A/Album X", 100);
+    private static final TrackOuterClass.Track SECOND = track(2, "/music/Artist A/Album X", 200);
+    private static final TrackOuterClass.Track THIRD = track(3, "/music/Artist A/Album Y", 50);
+    // Doubled and trailing separators, as the server can report them
+    private static final TrackOuterClass.Track FOURTH = track(4, "/music//Artist B/", 7);
+    private static final TrackOuterClass.Image COVER = image(5, "/music/Artist A/Album X", "cover.jpg");
+    private static final TrackOuterClass.Image BACK = image(6, "/music/Artist A/Album X", "scan.jpg");
+
+    private TrackDatabase database;
+
+    @Before
+    public void setUp() {
+        database = TrackDatabase.getInstance(ApplicationProvider.getApplicationContext());
+        database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder()
+                .addTracks(FIRST)
+                .addTracks(SECOND)
+                .addTracks(THIRD)
+                .addTracks(FOURTH)
+                .addImages(COVER)
+                .addImages(BACK)
+                .build());
+    }
+
+    @Test
+    public void getDirectoryAlbums_totalsEverythingBelow() {
+        List<Album> root = database.getDirectoryAlbums("");
+        assertEquals(1, root.size());
+        assertDirectory(root.get(0), "music", 4, 357);
+
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(2, artists.size());
+        assertDirectory(artists.get(0), "music/Artist A", 3, 350);
+        assertDirectory(artists.get(1), "music/Artist B", 1, 7);
+    }
+
+    @Test
+    public void getDirectoryAlbums_takesCoversFromBelow() {
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertArrayEquals(COVER.getChecksum().toByteArray(), artists.get(0).coverImageChecksums.get(0));
+        assertTrue(artists.get(1).coverImageChecksums.isEmpty());
+
+        // The album itself offers its other images as fallbacks
+        List<Album> albums = database.getDirectoryAlbums("music/Artist A");
+        assertEquals(2, albums.size());
+        assertEquals(2, albums.get(0).coverImageChecksums.size());
+        assertArrayEquals(COVER.getChecksum().toByteArray(), albums.get(0).coverImageChecksums.get(0));
+        assertArrayEquals(BACK.getChecksum().toByteArray(), albums.get(0).coverImageChecksums.get(1));
+    }
+
+    @Test
+    public void applyDatabaseDelta_recountsChangedDirectories() {
+        // Empty one album, move a track out of the other and drop its images
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(2)
+                .addRemovedTrackChecksums(THIRD.getChecksum())
+                .addRemovedImageChecksums(COVER.getChecksum())
+                .addRemovedImageChecksums(BACK.getChecksum())
+                .addAddedTracks(track(2, "/music/Artist B/Singles", 200))
+                .build());
+
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(2, artists.size());
+        assertDirectory(artists.get(0), "music/Artist A", 1, 100);
+        assertTrue(artists.get(0).coverImageChecksums.isEmpty());
+        assertDirectory(artists.get(1), "music/Artist B", 2, 207);
+
+        List<Album> albums = database.getDirectoryAlbums("music/Artist A");
+        assertEquals(1, albums.size());
+        assertDirectory(albums.get(0), "music/Artist A/Album X", 1, 100);
+    }
+
+    @Test
+    public void setDatabase_dropsEmptiedDirectories() {
+        database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder()
+                .addTracks(FOURTH)
+                .build());
+
+        List<Album> root = database.getDirectoryAlbums("");
+        assertEquals(1, root.size());
+        assertDirectory(root.get(0), "music", 1, 7);
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(1, artists.size());
+        assertDirectory(artists.get(0), "music/Artist B", 1, 7);
+        assertTrue(database.getDirectoryAlbums("music/Artist A").isEmpty());
+    }
+
+    @Test
+    public void getTracksForDirectoryRecursive_followsTheTree() {
+        // A sibling whose path starts with another's
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(2)
+                .addAddedTracks(track(7, "/music/Artist A2", 10))
+                .build());
+
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(3, artists.size());
+        assertTracks(database.getTracksForDirectoryRecursive(artists.get(0).directoryId), FIRST, SECOND, THIRD);
+        assertTracks(database.getTracksForDirectoryRecursive(artists.get(1).directoryId), track(7, "/music/Artist A2", 10));
+        // Listed under its normalized path, but stored as the server sent it
+        assertDirectory(artists.get(2), "music/Artist B", 1, 7);
+        assertTracks(database.getTracksForDirectoryRecursive(artists.get(2).directoryId), FOURTH);
+    }
+
+    // Untagged, so in no particular order
+    private static void assertTracks(List<Track> tracks, TrackOuterClass.Track... expected) {
+        Set<ByteString> expectedChecksums = new HashSet<>();
+        for (TrackOuterClass.Track track : expected) {
+            expectedChecksums.add(track.getChecksum());
+        }
+        Set<ByteString> checksums = new HashSet<>();
+        for (Track track : tracks) {
+            checksums.add(ByteString.copyFrom(track.checksum));
+        }
+        assertEquals(expected.length, tracks.size());
+        assertEquals(expectedChecksums, checksums);
+    }
+
+    private static void assertDirectory(Album album, String path, long trackCount, long sizeBytes) {
+        assertEquals(path, album.parent_path);
+        assertEquals(trackCount, album.trackCount);
+        assertEquals(sizeBytes, album.sizeBytes);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.schlaikjer.music.db;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.Album;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.schlaikjer.music.db.TestLibrary.checksum;
+import static com.schlaikjer.music.db.TestLibrary.track;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Leaves a first sync unfinished, as if the process had been killed part way through, and checks
+ * that the next sync puts search and the directory totals right.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class InterruptedSyncTest {
+
+    @Test
+    public void sync_repairsAfterInterruptedBulkLoad() {
+        TrackDatabase database = TrackDatabase.getInstance(ApplicationProvider.getApplicationContext());
+        database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder().build());
+
+        // Loading into an empty library is a bulk load. Its batches are committed as they go, but
+        // it never gets to commit the load as a whole
+        TrackDatabase.Replacement interrupted = database.beginReplacement();
+        interrupted.addTracks(Arrays.asList(
+                track(1, "Come Together", "The Beatles", "Abbey Road", "Rock"),
+                track(2, "Something", "The Beatles", "Abbey Road", "Rock")));
+
+        // With rows already there, the retry isn't a bulk load itself
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(2)
+                .addAddedTracks(track(3, "Yellow", "Coldplay", "Parachutes", "Pop"))
+                .build());
+
+        assertEquals(1, database.searchTracks("come", 0, 10).size());
+        assertEquals(1, database.searchTracks("something", 0, 10).size());
+        assertEquals(1, database.searchTracks("yellow", 0, 10).size());
+
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(2, artists.size());
+        assertEquals("music/Coldplay", artists.get(0).parent_path);
+        assertEquals(1, artists.get(0).trackCount);
+        assertEquals("music/The Beatles", artists.get(1).parent_path);
+        assertEquals(2, artists.get(1).trackCount);
+
+        // Later changes are indexed as they happen again
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(3)
+                .addRemovedTrackChecksums(checksum(1))
+                .build());
+        assertEquals(0, database.searchTracks("come", 0, 10).size());
+    }
+
+}
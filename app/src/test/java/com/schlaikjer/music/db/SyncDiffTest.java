@@ -0,0 +1,126 @@
+package com.schlaikjer.music.db;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.Album;
+import com.schlaikjer.music.model.SyncResult;
+import com.schlaikjer.music.model.Track;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.schlaikjer.music.db.TestLibrary.image;
+import static com.schlaikjer.music.db.TestLibrary.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replaces a synced library with one that differs from it in every way a row can, and checks that
+ * only the rows that differ are written, and that what's stored afterwards matches the new one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class SyncDiffTest {
+
+    private static final TrackOuterClass.Track KEPT = track(1, "/music/Artist A/Album X", 100);
+    private static final TrackOuterClass.Track RETAGGED = track(2, "/music/Artist A/Album X", 200);
+    private static final TrackOuterClass.Track MOVED = track(3, "/music/Artist A/Album Y", 50);
+    private static final TrackOuterClass.Track DROPPED = track(4, "/music/Artist C", 7);
+    private static final TrackOuterClass.Image COVER = image(5, "/music/Artist A/Album X", "cover.jpg");
+
+    private TrackDatabase database;
+
+    @Before
+    public void setUp() {
+        database = TrackDatabase.getInstance(ApplicationProvider.getApplicationContext());
+        SyncResult result = database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder()
+                .addTracks(KEPT)
+                .addTracks(RETAGGED)
+                .addTracks(MOVED)
+                .addTracks(DROPPED)
+                .addImages(COVER)
+                .build());
+        assertCounts(result, 5, 0, 0, 0);
+    }
+
+    @Test
+    public void replacement_writesOnlyWhatChanged() {
+        TrackOuterClass.Track retagged = RETAGGED.toBuilder().setTagTitle("Renamed").build();
+        TrackOuterClass.Track moved = MOVED.toBuilder()
+                .setRawPath("/music/Artist B/Album Z/3.flac")
+                .setParentPath("/music/Artist B/Album Z")
+                .build();
+
+        // In more than one batch, as a streamed sync would send it
+        TrackDatabase.Replacement replacement = database.beginReplacement();
+        replacement.addTracks(Arrays.asList(KEPT, retagged));
+        replacement.addTracks(Collections.singletonList(moved));
+        replacement.addImages(Collections.singletonList(COVER));
+        assertCounts(replacement.commit(), 0, 2, 1, 2);
+
+        assertEquals("Track 1", database.getTrack(KEPT.getChecksum().toByteArray()).tag_title);
+        assertEquals("Renamed", database.getTrack(retagged.getChecksum().toByteArray()).tag_title);
+        Track stored = database.getTrack(moved.getChecksum().toByteArray());
+        assertEquals("/music/Artist B/Album Z", stored.parent_path);
+        assertEquals("/music/Artist B/Album Z/3.flac", stored.raw_path);
+        assertNull(database.getTrack(DROPPED.getChecksum().toByteArray()));
+
+        // The moved track's old album and the dropped track's artist are gone
+        List<Album> artists = database.getDirectoryAlbums("music");
+        assertEquals(2, artists.size());
+        assertDirectory(artists.get(0), "music/Artist A", 2, 300);
+        assertDirectory(artists.get(1), "music/Artist B", 1, 50);
+        List<Album> albums = database.getDirectoryAlbums("music/Artist A");
+        assertEquals(1, albums.size());
+        assertDirectory(albums.get(0), "music/Artist A/Album X", 2, 300);
+        assertDirectory(database.getDirectoryAlbums("").get(0), "music", 3, 350);
+    }
+
+    @Test
+    public void replacement_leavesSameLibraryAlone() {
+        SyncResult result = database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder()
+                .addTracks(KEPT)
+                .addTracks(RETAGGED)
+                .addTracks(MOVED)
+                .addTracks(DROPPED)
+                .addImages(COVER)
+                .build());
+
+        assertCounts(result, 0, 0, 0, 5);
+        assertEquals(0, result.getChangedRows());
+    }
+
+    @Test
+    public void replacement_changesNothingWhenAborted() {
+        TrackDatabase.Replacement replacement = database.beginReplacement();
+        replacement.addTracks(Collections.singletonList(KEPT));
+        replacement.abort();
+
+        // Unseen rows are only deleted on commit
+        assertEquals(4, database.getAllTracks().size());
+        assertDirectory(database.getDirectoryAlbums("").get(0), "music", 4, 357);
+    }
+
+    private static void assertCounts(SyncResult result, long inserted, long updated, long deleted, long unchanged) {
+        assertEquals(inserted, result.inserted);
+        assertEquals(updated, result.updated);
+        assertEquals(deleted, result.deleted);
+        assertEquals(unchanged, result.unchanged);
+    }
+
+    private static void assertDirectory(Album album, String path, long trackCount, long sizeBytes) {
+        assertEquals(path, album.parent_path);
+        assertEquals(trackCount, album.trackCount);
+        assertEquals(sizeBytes, album.sizeBytes);
+    }
+
+}
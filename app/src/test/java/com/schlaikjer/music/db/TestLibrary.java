@@ -0,0 +1,55 @@
+package com.schlaikjer.music.db;
+
+import com.google.protobuf.ByteString;
+import com.schlaikjer.msgs.TrackOuterClass;
+
+/**
+ * Builds the tracks and images that database tests sync in. Records are identified by a small
+ * integer, which is also their checksum, so that tests can refer back to them.
+ */
+final class TestLibrary {
+
+    private TestLibrary() {
+    }
+
+    static TrackOuterClass.Track track(int id, String parentPath, long sizeBytes) {
+        return TrackOuterClass.Track.newBuilder()
+                .setRawPath(parentPath + "/" + id + ".flac")
+                .setParentPath(parentPath)
+                .setChecksum(checksum(id))
+                .setTagTitle("Track " + id)
+                .setSizeBytes(sizeBytes)
+                .build();
+    }
+
+    // A tagged track, filed under its artist and album
+    static TrackOuterClass.Track track(int id, String title, String artist, String album, String genre) {
+        String parentPath = "/music/" + artist + "/" + album;
+        return TrackOuterClass.Track.newBuilder()
+                .setRawPath(parentPath + "/" + id + ".flac")
+                .setParentPath(parentPath)
+                .setChecksum(checksum(id))
+                .setTagTitle(title)
+                .setTagArtist(artist)
+                .setTagAlbum(album)
+                .setTagGenre(genre)
+                .setTagTrack(id)
+                .build();
+    }
+
+    static TrackOuterClass.Image image(int id, String parentPath, String name) {
+        return TrackOuterClass.Image.newBuilder()
+                .setRawPath(parentPath + "/" + name)
+                .setParentPath(parentPath)
+                .setChecksum(checksum(id))
+                .setSizeBytes(1024)
+                .build();
+    }
+
+    static ByteString checksum(int id) {
+        byte[] checksum = new byte[20];
+        checksum[19] = (byte) id;
+        return ByteString.copyFrom(checksum);
+    }
+
+}
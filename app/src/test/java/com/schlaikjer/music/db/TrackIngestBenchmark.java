@@ -0,0 +1,160 @@
+package com.schlaikjer.music.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.SyncResult;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Loads synthetic libraries of a few sizes into the track database and reports rows per second
+ * for each way a sync can go.
+ * <p>
+ * "contentvalues" is the load as it was before TrackDatabase had compiled statements: clear both
+ * tables and insert every row through a ContentValues map in one transaction, indexes and all.
+ * "bulk" is a first sync through {@link TrackDatabase#setDatabase}. "resync" syncs the same library
+ * again, and "resync-1%" one with every hundredth track retagged, both of which should write only
+ * what changed.
+ * <p>
+ * Slow, so excluded from the normal test run. Run with ./gradlew :app:testDebugUnitTest -Pbenchmarks
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class TrackIngestBenchmark {
+
+    private static final int[] LIBRARY_TRACKS = {1000, 20000, 100000};
+    // Retag one track in this many for the partial resync
+    private static final int RETAG_EVERY = 100;
+
+    private static class IngestResult {
+        final int libraryTracks;
+        final String scenario;
+        final long rows;
+        final long elapsedNanos;
+        // -1 where the path doesn't report it
+        final long changedRows;
+
+        IngestResult(int libraryTracks, String scenario, long rows, long elapsedNanos, long changedRows) {
+            this.libraryTracks = libraryTracks;
+            this.scenario = scenario;
+            this.rows = rows;
+            this.elapsedNanos = elapsedNanos;
+            this.changedRows = changedRows;
+        }
+
+        long rowsPerSecond() {
+            return elapsedNanos <= 0 ? 0 : rows * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+    }
+
+    @Test
+    public void runIngest() {
+        Context context = ApplicationProvider.getApplicationContext();
+        TrackDatabase trackDatabase = TrackDatabase.getInstance(context);
+        // A second helper on the same file, for the baseline and for clearing out between runs
+        SQLiteDatabase database = new TrackDatabaseHelper(context).getWritableDatabase();
+
+        List<IngestResult> results = new ArrayList<>();
+        for (int tracks : LIBRARY_TRACKS) {
+            TrackOuterClass.MusicDatabase library = new SyntheticLibrary(tracks, 1024, 1024).getDatabase();
+            TrackOuterClass.MusicDatabase retagged = retag(library);
+            long rows = library.getTracksCount() + library.getImagesCount();
+
+            clear(database);
+            long start = System.nanoTime();
+            loadWithContentValues(database, library);
+            results.add(new IngestResult(tracks, "contentvalues", rows, System.nanoTime() - start, -1));
+
+            clear(database);
+            start = System.nanoTime();
+            SyncResult bulk = trackDatabase.setDatabase(library);
+            results.add(new IngestResult(tracks, "bulk", rows, System.nanoTime() - start, bulk.getChangedRows()));
+            assertEquals(rows, bulk.inserted);
+
+            start = System.nanoTime();
+            SyncResult resync = trackDatabase.setDatabase(library);
+            results.add(new IngestResult(tracks, "resync", rows, System.nanoTime() - start, resync.getChangedRows()));
+            assertEquals(0, resync.getChangedRows());
+
+            start = System.nanoTime();
+            SyncResult partial = trackDatabase.setDatabase(retagged);
+            results.add(new IngestResult(tracks, "resync-1%", rows, System.nanoTime() - start, partial.getChangedRows()));
+            assertEquals((library.getTracksCount() + RETAG_EVERY - 1) / RETAG_EVERY, partial.updated);
+        }
+        report(results);
+    }
+
+    private static void loadWithContentValues(SQLiteDatabase database, TrackOuterClass.MusicDatabase library) {
+        database.beginTransaction();
+        database.delete(TrackDatabaseHelper.TracksTable.TABLE_NAME, null, null);
+        database.delete(TrackDatabaseHelper.ImagesTable.TABLE_NAME, null, null);
+        for (TrackOuterClass.Track record : library.getTracksList()) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_RAW_PATH, record.getRawPath());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_PARENT_PATH, record.getParentPath());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_CHECKSUM, record.getChecksum().toByteArray());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_TITLE, record.getTagTitle());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ARTIST, record.getTagArtist());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_ALBUM, record.getTagAlbum());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_YEAR, record.getTagYear());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_COMMENT, record.getTagComment());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_TRACK, record.getTagTrack());
+            contentValues.put(TrackDatabaseHelper.TracksTable.COLUMN_TAG_GENRE, record.getTagGenre());
+            database.insertWithOnConflict(TrackDatabaseHelper.TracksTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        for (TrackOuterClass.Image record : library.getImagesList()) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_RAW_PATH, record.getRawPath());
+            contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_PARENT_PATH, record.getParentPath());
+            contentValues.put(TrackDatabaseHelper.ImagesTable.COLUMN_CHECKSUM, record.getChecksum().toByteArray());
+            database.insertWithOnConflict(TrackDatabaseHelper.ImagesTable.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        database.setTransactionSuccessful();
+        database.endTransaction();
+    }
+
+    private static void clear(SQLiteDatabase database) {
+        database.delete(TrackDatabaseHelper.TracksTable.TABLE_NAME, null, null);
+        database.delete(TrackDatabaseHelper.ImagesTable.TABLE_NAME, null, null);
+    }
+
+    private static TrackOuterClass.MusicDatabase retag(TrackOuterClass.MusicDatabase library) {
+        TrackOuterClass.MusicDatabase.Builder builder = TrackOuterClass.MusicDatabase.newBuilder();
+        for (int i = 0; i < library.getTracksCount(); i++) {
+            TrackOuterClass.Track track = library.getTracks(i);
+            if (i % RETAG_EVERY == 0) {
+                track = track.toBuilder().setTagTitle(track.getTagTitle() + " (Remastered)").build();
+            }
+            builder.addTracks(track);
+        }
+        builder.addAllImages(library.getImagesList());
+        return builder.build();
+    }
+
+    private static void report(List<IngestResult> results) {
+        System.out.println(String.format(Locale.US, "%8s %-14s %8s %10s %12s %8s",
+                "tracks", "scenario", "rows", "elapsed", "rows/s", "changed"));
+        for (IngestResult result : results) {
+            System.out.println(String.format(Locale.US, "%8d %-14s %8d %8dms %12d %8s",
+                    result.libraryTracks, result.scenario, result.rows, TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos),
+                    result.rowsPerSecond(), result.changedRows < 0 ? "-" : String.valueOf(result.changedRows)));
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.schlaikjer.music.db;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.Track;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.schlaikjer.music.db.TestLibrary.checksum;
+import static com.schlaikjer.music.db.TestLibrary.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that prefix search finds tracks by their tags and paths as they are now, and not as they
+ * were.
+ * <p>
+ * The search table is FTS5 where the platform has it and FTS4 otherwise, and the two rank hits
+ * that match equally well in different orders. Order is only checked where one hit is a better
+ * match than the other under both.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class TrackSearchTest {
+
+    private TrackDatabase database;
+
+    @Before
+    public void setUp() {
+        database = TrackDatabase.getInstance(ApplicationProvider.getApplicationContext());
+        database.setDatabase(TrackOuterClass.MusicDatabase.newBuilder()
+                .addTracks(track(1, "Come Together", "The Beatles", "Abbey Road", "Rock"))
+                .addTracks(track(2, "Something", "The Beatles", "Abbey Road", "Rock"))
+                .addTracks(track(3, "Yellow", "Coldplay", "Parachutes", "Pop"))
+                .addTracks(track(4, "So What", "Miles Davis", "Kind of Blue", "Jazz"))
+                .addTracks(track(5, "Blue in Green", "Miles Davis", "Kind of Blue", "Jazz"))
+                .build());
+    }
+
+    @Test
+    public void searchTracks_matchesPrefixOfEveryTerm() {
+        assertTitles(database.searchTracks("come tog", 0, 10), "Come Together");
+        assertTitles(database.searchTracks("beatles some", 0, 10), "Something");
+        assertTrue(database.searchTracks("beatles pop", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void searchTracks_ignoresCaseAndPunctuation() {
+        assertTitlesInAnyOrder(database.searchTracks("BEAT", 0, 10), "Come Together", "Something");
+        // Paths are searched too
+        assertTitles(database.searchTracks("\"coldplay/parachutes*", 0, 10), "Yellow");
+        assertTrue(database.searchTracks(" - ", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void searchTracks_ranksTitleMatchesFirst() {
+        assertTitles(database.searchTracks("blue", 0, 10), "Blue in Green", "So What");
+    }
+
+    @Test
+    public void searchTracks_pagesThroughResults() {
+        // However ties are broken, pages must follow on from each other
+        List<Track> all = database.searchTracks("ab", 0, 10);
+        assertEquals(2, all.size());
+        List<Track> paged = new ArrayList<>();
+        paged.addAll(database.searchTracks("ab", 0, 1));
+        paged.addAll(database.searchTracks("ab", 1, 1));
+        assertEquals(titles(all), titles(paged));
+        assertTrue(database.searchTracks("ab", 2, 1).isEmpty());
+    }
+
+    @Test
+    public void applyDatabaseDelta_updatesSearch() {
+        // Retag one track and remove another
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(2)
+                .addRemovedTrackChecksums(checksum(3))
+                .addAddedTracks(track(2, "Here Comes the Sun", "The Beatles", "Abbey Road", "Rock"))
+                .build());
+
+        assertTitlesInAnyOrder(database.searchTracks("come", 0, 10), "Come Together", "Here Comes the Sun");
+        assertTrue(database.searchTracks("something", 0, 10).isEmpty());
+        assertTrue(database.searchTracks("yellow", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void searchTracks_survivesVacuum() {
+        // Leave gaps in the rowids for VACUUM to close up, if it were allowed to
+        database.applyDatabaseDelta(TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(2)
+                .addRemovedTrackChecksums(checksum(1))
+                .addRemovedTrackChecksums(checksum(3))
+                .build());
+        new TrackDatabaseHelper(ApplicationProvider.getApplicationContext()).getWritableDatabase().execSQL("VACUUM");
+
+        assertTitles(database.searchTracks("something", 0, 10), "Something");
+        assertTitles(database.searchTracks("blue", 0, 10), "Blue in Green", "So What");
+        assertTrue(database.searchTracks("come", 0, 10).isEmpty());
+    }
+
+    private static void assertTitles(List<Track> tracks, String... titles) {
+        assertEquals(Arrays.asList(titles), titles(tracks));
+    }
+
+    private static void assertTitlesInAnyOrder(List<Track> tracks, String... titles) {
+        List<String> expected = new ArrayList<>(Arrays.asList(titles));
+        List<String> actual = titles(tracks);
+        expected.sort(null);
+        actual.sort(null);
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> titles(List<Track> tracks) {
+        List<String> titles = new ArrayList<>();
+        for (Track track : tracks) {
+            titles.add(track.tag_title);
+        }
+        return titles;
+    }
+
+}
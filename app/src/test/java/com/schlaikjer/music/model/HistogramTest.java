@@ -0,0 +1,119 @@
+package com.schlaikjer.music.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that bucket boundaries leave no gaps, and that percentiles come back no lower than the
+ * true value and no more than an eighth above it - at the edges of buckets, at the smallest and
+ * largest values recorded, and across a spread of random ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class HistogramTest {
+
+    private static final double[] PERCENTILES = {0, 1, 10, 50, 90, 99, 99.9, 100};
+
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        assertEquals(0, Histogram.bucketIndex(0));
+        for (int i = 0; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long upper = Histogram.bucketUpperBound(i);
+            assertEquals(i, Histogram.bucketIndex(upper));
+            assertEquals(i + 1, Histogram.bucketIndex(upper + 1));
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void getPercentile_isExactForSmallValues() {
+        Histogram histogram = new Histogram();
+        for (int value = 0; value < 8; value++) {
+            histogram.record(value);
+        }
+
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, histogram.getPercentile(100.0 * (value + 1) / 8));
+        }
+    }
+
+    @Test
+    public void getPercentile_isWithinErrorAtBucketEdges() {
+        // Everything below the top bucket, which has no upper bound of its own
+        for (int i = 0; i < Histogram.BUCKET_COUNT - 2; i++) {
+            long upper = Histogram.bucketUpperBound(i);
+            // The top of a bucket comes back exactly, the bottom of the next as that bucket's top
+            assertEquals(upper, percentileUnderLargerValue(upper));
+            assertWithinError(upper + 1, percentileUnderLargerValue(upper + 1));
+        }
+    }
+
+    @Test
+    public void getPercentile_isWithinErrorAtMinAndMax() {
+        long[] values = {1_000, 1_234_567, 98_765_432_109L};
+        Histogram histogram = new Histogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+
+        assertWithinError(values[0], histogram.getPercentile(0));
+        assertEquals(values[2], histogram.getPercentile(100));
+        assertEquals(values[2], histogram.getMax());
+
+        // Past the top bucket the maximum is still reported as it is
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void getPercentile_isWithinErrorForRandomValues() {
+        Random random = new Random(42);
+        long[] values = new long[10_000];
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            // Spread over many orders of magnitude, as latencies in nanoseconds are
+            values[i] = (long) Math.pow(10, random.nextDouble() * 10);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : PERCENTILES) {
+            int rank = (int) Math.max(1, Math.ceil(values.length * percentile / 100));
+            assertWithinError(values[rank - 1], histogram.getPercentile(percentile));
+        }
+        assertEquals(values[values.length - 1], histogram.getPercentile(100));
+    }
+
+    @Test
+    public void record_treatsNegativeAsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+        assertEquals(0, histogram.getMax());
+    }
+
+    // Median of the value and something far bigger, so that the answer isn't just the maximum
+    private static long percentileUnderLargerValue(long value) {
+        Histogram histogram = new Histogram();
+        histogram.record(value);
+        histogram.record(1L << 50);
+        return histogram.getPercentile(50);
+    }
+
+    private static void assertWithinError(long expected, long actual) {
+        assertTrue("Expected at least " + expected + ", got " + actual, actual >= expected);
+        assertTrue("Expected at most " + (expected + expected / 8) + ", got " + actual, actual <= expected + expected / 8);
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.RequestPriority;
+import com.schlaikjer.music.stubserver.StubServer;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cancels content fetches at each stage a request can be in - waiting to be batched, queued
+ * behind a full window, and already sent - and checks that only the cancelled caller loses out.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class ContentCancellationTest {
+
+    private static final long TIMEOUT_S = 10;
+    private static final int IMAGE_COUNT = 60;
+    private static final int CHECKSUM_SIZE = 20;
+
+    private static StubServer server;
+    private static int nextImageIndex = 0;
+
+    // Every request the server has seen, in order
+    private final List<Packet> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StubServer(new SyntheticLibrary(IMAGE_COUNT * SyntheticLibrary.TRACKS_PER_ALBUM, 4 * 1024, 4 * 1024));
+        server.start(0);
+        NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void connect() throws Exception {
+        // Get the HELLO out of the way, so that holding responses only holds back what the test sends
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        NetworkManager.rescanDatabase(new NetworkManager.DatabaseRescanCallback() {
+            @Override
+            public void onSuccess() {
+                result.complete(true);
+            }
+
+            @Override
+            public void onAbort() {
+                result.complete(false);
+            }
+        });
+        assertTrue(result.get(TIMEOUT_S, TimeUnit.SECONDS));
+        server.setRequestListener(requests::add);
+    }
+
+    @After
+    public void resetServer() {
+        server.setRequestListener(null);
+        server.releaseResponses();
+    }
+
+    @Test
+    public void cancel_beforeSendNeverReachesServer() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        server.holdResponses();
+
+        // Fill the window, sizes alternating so that each goes out on its own
+        List<Fetch> sent = new ArrayList<>();
+        for (int i = 0; i < NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS; i++) {
+            sent.add(fetchThumbnail(context, nextImage(), 64 + i % 2, RequestPriority.PREFETCH));
+        }
+        assertTrue(waitFor(() -> countRequests(NetworkOpcode.FETCH_IMAGE_THUMB) == NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+
+        // This one can't go until something is answered, so it's still ours to drop
+        byte[] checksum = nextImage();
+        Fetch cancelled = fetchThumbnail(context, checksum, 66, RequestPriority.PREFETCH);
+        Thread.sleep(100);
+        cancelled.handle.cancel();
+
+        server.releaseResponses();
+        for (Fetch fetch : sent) {
+            fetch.assertReceived();
+        }
+        assertEquals(0, cancelled.calls.get());
+        assertFalse(requested(checksum));
+    }
+
+    @Test
+    public void cancel_afterSendSendsCancel() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        server.holdResponses();
+
+        Fetch cancelled = fetchThumbnail(context, nextImage(), 64, RequestPriority.INTERACTIVE);
+        assertTrue(waitFor(() -> countRequests(NetworkOpcode.FETCH_IMAGE_THUMB) == 1));
+        int nonce = findRequest(NetworkOpcode.FETCH_IMAGE_THUMB).nonce;
+        cancelled.handle.cancel();
+        assertTrue(waitFor(() -> {
+            Packet cancel = findRequest(NetworkOpcode.CANCEL);
+            return cancel != null && ByteBuffer.wrap(cancel.data).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == nonce;
+        }));
+
+        // Anything answered after it has been dealt with
+        server.releaseResponses();
+        fetchThumbnail(context, nextImage(), 64, RequestPriority.INTERACTIVE).assertReceived();
+        assertEquals(0, cancelled.calls.get());
+    }
+
+    @Test
+    public void cancel_batchMemberIsLeftOut() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+
+        // Still waiting for the batch to fill when it's cancelled
+        List<Fetch> fetches = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            fetches.add(fetchImage(context, nextImage()));
+        }
+        Fetch cancelled = fetches.remove(1);
+        cancelled.handle.cancel();
+
+        for (Fetch fetch : fetches) {
+            fetch.assertReceived();
+        }
+        assertEquals(0, cancelled.calls.get());
+        Packet batch = findRequest(NetworkOpcode.FETCH_IMAGES_BATCH);
+        assertNotNull(batch);
+        assertEquals(3, ByteBuffer.wrap(batch.data).order(ByteOrder.LITTLE_ENDIAN).getInt(4));
+        assertFalse(requested(cancelled.checksum));
+    }
+
+    @Test
+    public void cancel_oneOfSeveralCallersKeepsRequest() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        server.holdResponses();
+
+        byte[] checksum = nextImage();
+        Fetch cancelled = fetchImage(context, checksum);
+        Fetch kept = fetchImage(context, checksum);
+        cancelled.handle.cancel();
+
+        server.releaseResponses();
+        kept.assertReceived();
+        assertEquals(0, cancelled.calls.get());
+        assertEquals(1, countRequests(NetworkOpcode.FETCH_IMAGE));
+        assertEquals(0, countRequests(NetworkOpcode.CANCEL));
+    }
+
+    // A caller's fetch, and how many times its callback has been invoked either way
+    private static class Fetch {
+        final byte[] checksum;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+        NetworkManager.ContentFetchHandle handle;
+
+        Fetch(byte[] checksum) {
+            this.checksum = checksum;
+        }
+
+        NetworkManager.ContentFetchCallback callback() {
+            return new NetworkManager.ContentFetchCallback() {
+                @Override
+                public void onContentReceived(File contentFile) {
+                    calls.incrementAndGet();
+                    result.complete(contentFile);
+                }
+
+                @Override
+                public void onAbort() {
+                    calls.incrementAndGet();
+                    result.complete(null);
+                }
+            };
+        }
+
+        void assertReceived() throws Exception {
+            assertNotNull(result.get(TIMEOUT_S, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+        }
+    }
+
+    private static Fetch fetchImage(Context context, byte[] checksum) {
+        Fetch fetch = new Fetch(checksum);
+        fetch.handle = NetworkManager.fetchImage(context, checksum, RequestPriority.VISIBLE, fetch.callback());
+        return fetch;
+    }
+
+    private static Fetch fetchThumbnail(Context context, byte[] checksum, int edgeSize, int priority) {
+        Fetch fetch = new Fetch(checksum);
+        fetch.handle = NetworkManager.fetchThumbnail(context, checksum, edgeSize, priority, fetch.callback());
+        return fetch;
+    }
+
+    private int countRequests(int opcode) {
+        synchronized (requests) {
+            return (int) requests.stream().filter(request -> request.opcode == opcode).count();
+        }
+    }
+
+    private Packet findRequest(int opcode) {
+        synchronized (requests) {
+            return requests.stream().filter(request -> request.opcode == opcode).findFirst().orElse(null);
+        }
+    }
+
+    // Whether the checksum was asked for, on its own or in a batch
+    private boolean requested(byte[] checksum) {
+        synchronized (requests) {
+            for (Packet request : requests) {
+                int offset = request.opcode == NetworkOpcode.FETCH_IMAGES_BATCH ? 8 : 0;
+                for (; offset + CHECKSUM_SIZE <= request.data.length; offset += CHECKSUM_SIZE) {
+                    if (Arrays.equals(checksum, Arrays.copyOfRange(request.data, offset, offset + CHECKSUM_SIZE))) {
+                        return true;
+                    }
+                    if (request.opcode != NetworkOpcode.FETCH_IMAGES_BATCH) {
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static byte[] nextImage() {
+        return server.getLibrary().getDatabase().getImages(nextImageIndex++).getChecksum().toByteArray();
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+}
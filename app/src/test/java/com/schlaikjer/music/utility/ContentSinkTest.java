@@ -0,0 +1,238 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes content into a sink in and out of order, and checks what it reports as readable against
+ * what has actually been written.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class ContentSinkTest {
+
+    private static final int CONTENT_SIZE = 300 * 1024;
+
+    private Context context;
+    private byte[] content;
+    private File target;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        content = new byte[CONTENT_SIZE];
+        new Random(CONTENT_SIZE).nextBytes(content);
+        target = new File(context.getCacheDir(), "content");
+        target.delete();
+        new File(target.getPath() + ContentSink.PARTIAL_SUFFIX).delete();
+    }
+
+    @Test
+    public void write_rangesInAnyOrderBecomeContiguous() throws IOException {
+        for (int seed = 0; seed < 10; seed++) {
+            setUp();
+            ContentSink sink = openSink(false);
+            sink.setExpectedLength(CONTENT_SIZE);
+
+            // Fragments at their offsets, written in a random order
+            List<long[]> ranges = ranges(Fragments.random(content, new Random(seed)));
+            Collections.shuffle(ranges, new Random(seed));
+            boolean[] written = new boolean[CONTENT_SIZE + 1];
+            for (long[] range : ranges) {
+                assertFalse(sink.isComplete());
+                sink.write(range[0], ByteBuffer.wrap(content, (int) range[0], (int) (range[1] - range[0])));
+                for (long i = range[0]; i < range[1]; i++) {
+                    written[(int) i] = true;
+                }
+
+                assertEquals(contiguous(written), sink.getBytesWritten());
+                assertTrue(sink.isRangeAvailable(range[0], range[1]));
+            }
+
+            assertTrue(sink.isComplete());
+            assertArrayEquals(content, read(sink));
+        }
+    }
+
+    @Test
+    public void write_mergesOverlappingRanges() throws IOException {
+        ContentSink sink = openSink(false);
+        sink.setExpectedLength(400);
+
+        write(sink, 0, 100);
+        write(sink, 50, 150);
+        write(sink, 300, 400);
+        assertEquals(150, sink.getBytesWritten());
+        assertTrue(sink.isRangeAvailable(300, 400));
+        assertFalse(sink.isRangeAvailable(140, 310));
+        assertFalse(sink.isComplete());
+
+        // Bridging the gap joins everything up
+        write(sink, 140, 310);
+        assertEquals(400, sink.getBytesWritten());
+        assertTrue(sink.isComplete());
+    }
+
+    @Test
+    public void onPayloadData_appendsInOrder() throws IOException {
+        for (List<byte[]> fragments : Fragments.all(content)) {
+            setUp();
+            ContentSink sink = openSink(false);
+            long received = 0;
+            for (byte[] fragment : fragments) {
+                sink.onPayloadData(ByteBuffer.wrap(fragment));
+                received += fragment.length;
+                assertEquals(received, sink.getBytesWritten());
+            }
+
+            // A streamed payload ends when the packet does, whether or not the length was known
+            assertFalse(sink.isComplete());
+            sink.onPayloadComplete();
+            assertTrue(sink.isComplete());
+            assertEquals(CONTENT_SIZE, sink.getExpectedLength());
+            assertTrue(sink.commit());
+            assertArrayEquals(content, readFile(target));
+        }
+    }
+
+    @Test
+    public void abort_keepsContiguousPrefixForResume() throws IOException {
+        ContentSink sink = openSink(true);
+        sink.setExpectedLength(CONTENT_SIZE);
+        write(sink, 0, 1000);
+        write(sink, 2000, 3000);
+        sink.abort();
+
+        // Only the prefix survives, and the next attempt picks up from the end of it
+        ContentSink resumed = openSink(true);
+        assertEquals(1000, resumed.getBytesWritten());
+        resumed.setExpectedLength(CONTENT_SIZE);
+        write(resumed, 1000, CONTENT_SIZE);
+        assertTrue(resumed.isComplete());
+        assertTrue(resumed.commit());
+        assertArrayEquals(content, readFile(target));
+    }
+
+    @Test
+    public void discard_dropsEverything() throws IOException {
+        ContentSink sink = openSink(true);
+        sink.setExpectedLength(CONTENT_SIZE);
+        write(sink, 0, 1000);
+        sink.discard();
+
+        assertEquals(0, openSink(true).getBytesWritten());
+        assertFalse(sink.commit());
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void awaitAvailable_reportsReadableBytes() throws Exception {
+        ContentSink sink = openSink(false);
+        sink.setExpectedLength(400);
+        write(sink, 0, 100);
+        write(sink, 200, 300);
+
+        AtomicBoolean closed = new AtomicBoolean(false);
+        assertEquals(100, sink.awaitAvailable(0, closed));
+        assertEquals(50, sink.awaitAvailable(50, closed));
+        assertEquals(80, sink.awaitAvailable(220, closed));
+        // Past the end there is nothing to wait for
+        assertEquals(0, sink.awaitAvailable(400, closed));
+    }
+
+    @Test
+    public void awaitAvailable_givesUpWhenClosed() throws Exception {
+        ContentSink sink = openSink(false);
+        sink.setExpectedLength(400);
+        write(sink, 0, 100);
+
+        // Block a reader on bytes that will never come, then close it
+        AtomicBoolean closed = new AtomicBoolean(false);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                sink.awaitAvailable(200, closed);
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+
+        closed.set(true);
+        sink.wakeReaders();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue(thrown.get() instanceof IOException);
+    }
+
+    private ContentSink openSink(boolean resumable) {
+        return new ContentSink(context, new byte[20], target, resumable, false);
+    }
+
+    private void write(ContentSink sink, int start, int end) {
+        sink.write(start, ByteBuffer.wrap(content, start, end - start));
+    }
+
+    // Start and end offsets of consecutive fragments, leaving out empty ones
+    private static List<long[]> ranges(List<byte[]> fragments) {
+        List<long[]> ranges = new ArrayList<>();
+        long position = 0;
+        for (byte[] fragment : fragments) {
+            if (fragment.length > 0) {
+                ranges.add(new long[]{position, position + fragment.length});
+            }
+            position += fragment.length;
+        }
+        return ranges;
+    }
+
+    private static long contiguous(boolean[] written) {
+        int i = 0;
+        while (written[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static byte[] read(ContentSink sink) throws IOException {
+        try (RandomAccessFile file = sink.openForRead()) {
+            byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return data;
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+}
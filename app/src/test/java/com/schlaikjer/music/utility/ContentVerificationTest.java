@@ -0,0 +1,144 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.music.model.RequestPriority;
+import com.schlaikjer.music.stubserver.StubServer;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches content from a stub server that damages or cuts off some of its responses, and checks
+ * that only content matching its checksum makes it into the cache.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class ContentVerificationTest {
+
+    private static final long TIMEOUT_S = 10;
+    // Spans several range chunks, so that retries have to put a multi-chunk track back together
+    private static final long TRACK_SIZE = 3 * NetworkManager.TRACK_CHUNK_SIZE;
+
+    private static StubServer server;
+    private static int nextTrackIndex = 0;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StubServer(new SyntheticLibrary(100, TRACK_SIZE, 4 * 1024));
+        server.start(0);
+        NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void fetchTrack_refetchesCorruptContent() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        byte[] checksum = nextTrack();
+        long retriesBefore = NetworkMetrics.getVerifyRetries();
+
+        server.corruptNextResponses(1);
+        File file = fetchTrack(context, checksum);
+
+        assertNotNull(file);
+        assertArrayEquals(checksum, sha1(file));
+        assertEquals(1, NetworkMetrics.getVerifyRetries() - retriesBefore);
+    }
+
+    @Test
+    public void fetchTrack_givesUpOnPersistentlyCorruptContent() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        byte[] checksum = nextTrack();
+
+        // Every attempt, first and retries alike, gets a damaged chunk
+        server.corruptNextResponses(100);
+        File file = fetchTrack(context, checksum);
+        server.corruptNextResponses(0);
+
+        assertNull(file);
+        assertFalse(StorageManager.hasContentFile(context, checksum));
+    }
+
+    @Test
+    public void fetchTrack_resumesAcrossDroppedConnection() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        byte[] checksum = nextTrack();
+        long connectionsBefore = server.getConnectionCount();
+
+        // Cut the connection half way through the first chunk
+        File file = fetchTrack(context, checksum, sink -> sink.runWhenAvailable(NetworkManager.TRACK_CHUNK_SIZE / 2, server::dropConnections));
+
+        assertNotNull(file);
+        assertArrayEquals(checksum, sha1(file));
+        assertTrue(server.getConnectionCount() > connectionsBefore);
+    }
+
+    private static File fetchTrack(Context context, byte[] checksum) throws Exception {
+        return fetchTrack(context, checksum, sink -> {
+        });
+    }
+
+    private static File fetchTrack(Context context, byte[] checksum, Consumer<ContentSink> onStarted) throws Exception {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        NetworkManager.fetchTrack(context, checksum, RequestPriority.INTERACTIVE, new NetworkManager.ContentFetchCallback() {
+            @Override
+            public void onContentReceived(File contentFile) {
+                result.complete(contentFile);
+            }
+
+            @Override
+            public void onAbort() {
+                result.complete(null);
+            }
+
+            @Override
+            public void onContentStarted(ContentSink sink) {
+                onStarted.accept(sink);
+            }
+        });
+        return result.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    private static byte[] nextTrack() {
+        return server.getLibrary().getDatabase().getTracks(nextTrackIndex++).getChecksum().toByteArray();
+    }
+
+    private static byte[] sha1(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+}
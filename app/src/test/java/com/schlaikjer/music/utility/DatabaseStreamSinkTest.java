@@ -0,0 +1,193 @@
+package com.schlaikjer.music.utility;
+
+import com.google.protobuf.ByteString;
+import com.schlaikjer.msgs.TrackOuterClass;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds a database stream to the sink in every fragmentation, including ones that split the varint
+ * length prefixes, and checks that records come out whole, in order and in full batches.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class DatabaseStreamSinkTest {
+
+    private static final long GENERATION = 42;
+
+    // Collects what the sink hands over, copying the lists since they are reused
+    private static class Batches implements DatabaseStreamSink.BatchListener {
+        final List<Integer> sizes = new ArrayList<>();
+        final List<String> paths = new ArrayList<>();
+
+        @Override
+        public void onBatch(List<TrackOuterClass.Track> tracks, List<TrackOuterClass.Image> images) {
+            sizes.add(tracks.size() + images.size());
+            for (TrackOuterClass.Track track : tracks) {
+                paths.add(track.getRawPath());
+            }
+            for (TrackOuterClass.Image image : images) {
+                paths.add(image.getRawPath());
+            }
+        }
+    }
+
+    @Test
+    public void stream_deliversEveryRecordInBatches() throws IOException {
+        List<TrackOuterClass.DatabaseRecord> records = records(2 * DatabaseStreamSink.BATCH_SIZE + 37);
+        byte[] stream = stream(records);
+
+        for (List<byte[]> fragments : Fragments.all(stream)) {
+            Batches batches = new Batches();
+            DatabaseStreamSink sink = feed(new DatabaseStreamSink(batches), fragments);
+            sink.onPayloadComplete();
+
+            assertTrue(sink.isComplete());
+            assertEquals(GENERATION, sink.getGeneration());
+            assertEquals(Arrays.asList(DatabaseStreamSink.BATCH_SIZE, DatabaseStreamSink.BATCH_SIZE, 37), batches.sizes);
+            assertEquals(expectedPaths(records), batches.paths);
+        }
+    }
+
+    @Test
+    public void stream_handlesEveryVarintLength() throws IOException {
+        // Records whose length prefixes take one, two and three bytes, and an empty one
+        List<TrackOuterClass.DatabaseRecord> records = new ArrayList<>();
+        for (int pathLength : new int[]{1, 100, 125, 126, 127, 128, 16_000, 16_384, 70_000}) {
+            records.add(trackRecord(new String(new char[pathLength]).replace('\0', 'x'), 0));
+        }
+        records.add(TrackOuterClass.DatabaseRecord.getDefaultInstance());
+        records.add(TrackOuterClass.DatabaseRecord.newBuilder().setGeneration(GENERATION).build());
+        byte[] stream = stream(records);
+
+        for (List<byte[]> fragments : Fragments.all(stream)) {
+            Batches batches = new Batches();
+            DatabaseStreamSink sink = feed(new DatabaseStreamSink(batches), fragments);
+            sink.onPayloadComplete();
+
+            assertTrue(sink.isComplete());
+            assertEquals(expectedPaths(records), batches.paths);
+        }
+    }
+
+    @Test
+    public void stream_failsOnPartialRecord() throws IOException {
+        byte[] head = stream(records(10));
+        // Long enough to need a two byte length prefix
+        byte[] last = stream(Arrays.asList(trackRecord(new String(new char[200]).replace('\0', 'x'), 10)));
+
+        // Stop part way through the last record's length prefix, right after it, and part way
+        // through its body
+        for (int kept : new int[]{1, 2, last.length - 1}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(head);
+            out.write(last, 0, kept);
+
+            DatabaseStreamSink sink = feed(new DatabaseStreamSink(new Batches()), Fragments.whole(out.toByteArray()));
+            sink.onPayloadComplete();
+
+            assertFalse(sink.isComplete());
+        }
+    }
+
+    @Test
+    public void stream_failsOnOversizedRecord() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(stream(records(10)));
+        // 32MB length prefix, with nothing like that behind it
+        out.write(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10});
+        out.write(new byte[1024]);
+
+        Batches batches = new Batches();
+        DatabaseStreamSink sink = feed(new DatabaseStreamSink(batches), Fragments.fixedSize(out.toByteArray(), 100));
+        sink.onPayloadComplete();
+
+        assertFalse(sink.isComplete());
+        assertTrue(batches.sizes.isEmpty());
+    }
+
+    private static DatabaseStreamSink feed(DatabaseStreamSink sink, List<byte[]> fragments) {
+        for (byte[] fragment : fragments) {
+            ByteBuffer data = ByteBuffer.wrap(fragment);
+            sink.onPayloadData(data);
+            assertFalse(data.hasRemaining());
+        }
+        return sink;
+    }
+
+    // Tracks and images interleaved, ending with the generation
+    private static List<TrackOuterClass.DatabaseRecord> records(int count) {
+        List<TrackOuterClass.DatabaseRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i % 5 == 4) {
+                records.add(TrackOuterClass.DatabaseRecord.newBuilder().setImage(TrackOuterClass.Image.newBuilder()
+                        .setRawPath("/music/" + i + ".jpg")
+                        .setChecksum(ByteString.copyFromUtf8("image " + i))
+                        .build()).build());
+            } else {
+                records.add(trackRecord("/music/" + i + ".flac", i));
+            }
+        }
+        records.add(TrackOuterClass.DatabaseRecord.newBuilder().setGeneration(GENERATION).build());
+        return records;
+    }
+
+    private static TrackOuterClass.DatabaseRecord trackRecord(String rawPath, int id) {
+        return TrackOuterClass.DatabaseRecord.newBuilder().setTrack(TrackOuterClass.Track.newBuilder()
+                .setRawPath(rawPath)
+                .setChecksum(ByteString.copyFromUtf8("track " + id))
+                .build()).build();
+    }
+
+    private static byte[] stream(List<TrackOuterClass.DatabaseRecord> records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (TrackOuterClass.DatabaseRecord record : records) {
+            record.writeDelimitedTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    // Paths of the tracks and images among the records. A batch lists its tracks before its
+    // images, so order is compared per batch-sized run
+    private static List<String> expectedPaths(List<TrackOuterClass.DatabaseRecord> records) {
+        List<String> paths = new ArrayList<>();
+        List<String> tracks = new ArrayList<>();
+        List<String> images = new ArrayList<>();
+        for (TrackOuterClass.DatabaseRecord record : records) {
+            switch (record.getRecordCase()) {
+                case TRACK:
+                    tracks.add(record.getTrack().getRawPath());
+                    break;
+                case IMAGE:
+                    images.add(record.getImage().getRawPath());
+                    break;
+                default:
+                    break;
+            }
+            if (tracks.size() + images.size() >= DatabaseStreamSink.BATCH_SIZE) {
+                paths.addAll(tracks);
+                paths.addAll(images);
+                tracks.clear();
+                images.clear();
+            }
+        }
+        paths.addAll(tracks);
+        paths.addAll(images);
+        return paths;
+    }
+
+}
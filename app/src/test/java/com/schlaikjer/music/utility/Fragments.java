@@ -0,0 +1,53 @@
+package com.schlaikjer.music.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ways of cutting a byte stream up the way socket reads might, for feeding to sinks in tests.
+ */
+final class Fragments {
+
+    private Fragments() {
+    }
+
+    static List<byte[]> whole(byte[] data) {
+        return Arrays.asList(data);
+    }
+
+    static List<byte[]> fixedSize(byte[] data, int size) {
+        List<byte[]> fragments = new ArrayList<>();
+        for (int i = 0; i < data.length; i += size) {
+            fragments.add(Arrays.copyOfRange(data, i, Math.min(data.length, i + size)));
+        }
+        return fragments;
+    }
+
+    // Mostly small fragments with the odd large one, and some empty
+    static List<byte[]> random(byte[] data, Random random) {
+        List<byte[]> fragments = new ArrayList<>();
+        int i = 0;
+        while (i < data.length) {
+            int size = random.nextInt(8) == 0 ? random.nextInt(64 * 1024) : random.nextInt(32);
+            int end = Math.min(data.length, i + size);
+            fragments.add(Arrays.copyOfRange(data, i, end));
+            i = end;
+        }
+        return fragments;
+    }
+
+    // Every way of cutting the data that a test should get the same answer for
+    static List<List<byte[]>> all(byte[] data) {
+        List<List<byte[]>> cuts = new ArrayList<>();
+        cuts.add(whole(data));
+        cuts.add(fixedSize(data, 1));
+        cuts.add(fixedSize(data, 1460));
+        for (int seed = 0; seed < 10; seed++) {
+            cuts.add(random(data, new Random(seed)));
+        }
+        return cuts;
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.RequestPriority;
+import com.schlaikjer.music.stubserver.StubServer;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches images that go out together in one batch request, from a stub server that answers out
+ * of order, is missing some of them or drops the connection partway through, and checks that each
+ * member still ends up with its own image or fails on its own.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class ImageBatchTest {
+
+    private static final long TIMEOUT_S = 10;
+    private static final int IMAGE_COUNT = 40;
+
+    private static StubServer server;
+    private static int nextImageIndex = 0;
+
+    // Member count of each batch request the server has seen
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StubServer(new SyntheticLibrary(IMAGE_COUNT * SyntheticLibrary.TRACKS_PER_ALBUM, 4 * 1024, 16 * 1024));
+        server.start(0);
+        NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void watchBatches() {
+        server.setRequestListener(request -> {
+            if (request.opcode == NetworkOpcode.FETCH_IMAGES_BATCH) {
+                batchSizes.add(ByteBuffer.wrap(request.data).order(ByteOrder.LITTLE_ENDIAN).getInt(4));
+            }
+        });
+    }
+
+    @After
+    public void resetServer() {
+        server.setRequestListener(null);
+        server.setBatchRecordsReversed(false);
+        server.dropMidBatch(-1);
+    }
+
+    @Test
+    public void fetchImage_routesRecordsByIndex() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        List<byte[]> checksums = nextImages(4);
+
+        server.setBatchRecordsReversed(true);
+        List<CompletableFuture<File>> results = fetchImages(context, checksums);
+
+        for (int i = 0; i < checksums.size(); i++) {
+            assertImage(checksums.get(i), results.get(i));
+        }
+        assertEquals(Collections.singletonList(4), batchSizes);
+    }
+
+    @Test
+    public void fetchImage_failsOnlyMissingMember() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        List<byte[]> checksums = nextImages(3);
+        // The server answers for this one with an empty record
+        byte[] missing = new byte[20];
+        Arrays.fill(missing, (byte) 0x5A);
+        checksums.set(1, missing);
+
+        List<CompletableFuture<File>> results = fetchImages(context, checksums);
+
+        assertImage(checksums.get(0), results.get(0));
+        assertNull(results.get(1).get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertImage(checksums.get(2), results.get(2));
+        assertEquals(Collections.singletonList(3), batchSizes);
+    }
+
+    @Test
+    public void fetchImage_refetchesOnlyUnfinishedMembersAfterDrop() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        List<byte[]> checksums = nextImages(4);
+        long connectionsBefore = server.getConnectionCount();
+
+        server.dropMidBatch(2);
+        List<CompletableFuture<File>> results = fetchImages(context, checksums);
+
+        for (int i = 0; i < checksums.size(); i++) {
+            assertImage(checksums.get(i), results.get(i));
+        }
+        // The two that had arrived aren't asked for again
+        assertEquals(Arrays.asList(4, 2), batchSizes);
+        assertTrue(server.getConnectionCount() > connectionsBefore);
+    }
+
+    private static List<CompletableFuture<File>> fetchImages(Context context, List<byte[]> checksums) {
+        // All inside one batching window, so that they go out as a single request
+        List<CompletableFuture<File>> results = new ArrayList<>();
+        for (byte[] checksum : checksums) {
+            CompletableFuture<File> result = new CompletableFuture<>();
+            NetworkManager.fetchImage(context, checksum, RequestPriority.VISIBLE, new NetworkManager.ContentFetchCallback() {
+                @Override
+                public void onContentReceived(File contentFile) {
+                    result.complete(contentFile);
+                }
+
+                @Override
+                public void onAbort() {
+                    result.complete(null);
+                }
+            });
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static void assertImage(byte[] checksum, CompletableFuture<File> result) throws Exception {
+        File file = result.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull(file);
+        assertArrayEquals(checksum, sha1(file));
+    }
+
+    private static List<byte[]> nextImages(int count) {
+        List<byte[]> checksums = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            checksums.add(server.getLibrary().getDatabase().getImages(nextImageIndex++).getChecksum().toByteArray());
+        }
+        return checksums;
+    }
+
+    private static byte[] sha1(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.schlaikjer.music.utility;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds known sequences of round trip samples to the estimator and checks its smoothed RTT,
+ * variance and timeout against the RFC 6298 arithmetic worked by hand.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class LinkEstimatorTest {
+
+    private static final double DELTA_MS = 0.001;
+
+    @Before
+    public void setUp() {
+        LinkEstimator.reset();
+    }
+
+    @Test
+    public void estimates_areUnknownBeforeFirstSample() {
+        assertEquals(-1, LinkEstimator.getSmoothedRttMs(), DELTA_MS);
+        assertEquals(-1, LinkEstimator.getRttVarianceMs(), DELTA_MS);
+        assertEquals(0, LinkEstimator.getRttSampleCount());
+        assertEquals(10_000, LinkEstimator.getRequestTimeoutMs());
+        assertEquals(-1, LinkEstimator.getBandwidthEstimate());
+        assertEquals(-1, LinkEstimator.estimateTransferMs(1024));
+    }
+
+    @Test
+    public void recordRtt_followsRfc6298() {
+        // SRTT = R, RTTVAR = R / 2
+        recordRttMs(400);
+        assertRtt(400, 200, 1200);
+
+        // RTTVAR = 3/4 * 200 + 1/4 * |400 - 200| = 200, SRTT = 7/8 * 400 + 1/8 * 200 = 375
+        recordRttMs(200);
+        assertRtt(375, 200, 1175);
+
+        // RTTVAR = 3/4 * 200 + 1/4 * |375 - 600| = 206.25, SRTT = 7/8 * 375 + 1/8 * 600 = 403.125
+        recordRttMs(600);
+        assertRtt(403.125, 206.25, 1228);
+
+        assertEquals(3, LinkEstimator.getRttSampleCount());
+    }
+
+    @Test
+    public void recordRtt_steadySamplesSettleAtMinimumTimeout() {
+        for (int i = 0; i < 200; i++) {
+            recordRttMs(300);
+        }
+
+        // Variance decays by 3/4 a sample, leaving the timeout to the floor
+        assertEquals(300, LinkEstimator.getSmoothedRttMs(), DELTA_MS);
+        assertEquals(0, LinkEstimator.getRttVarianceMs(), DELTA_MS);
+        assertEquals(1_000, LinkEstimator.getRequestTimeoutMs());
+    }
+
+    @Test
+    public void getRequestTimeoutMs_isCappedForSlowLinks() {
+        // 30000 + 4 * 15000
+        recordRttMs(30_000);
+        assertEquals(60_000, LinkEstimator.getRequestTimeoutMs());
+    }
+
+    @Test
+    public void recordTransfer_ignoresSmallResponses() {
+        LinkEstimator.recordTransfer(LinkEstimator.BANDWIDTH_SAMPLE_MIN_BYTES - 1, TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(-1, LinkEstimator.getBandwidthEstimate());
+
+        // 1 MiB/s, then 2 MiB/s weighted in by 1/8
+        LinkEstimator.recordTransfer(1 << 20, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1 << 20, LinkEstimator.getBandwidthEstimate());
+        LinkEstimator.recordTransfer(2 << 20, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(9 << 17, LinkEstimator.getBandwidthEstimate());
+
+        // One round trip plus the time to receive 1 MiB at 1.125 MiB/s
+        recordRttMs(100);
+        assertEquals(100 + 888, LinkEstimator.estimateTransferMs(1 << 20));
+    }
+
+    private static void recordRttMs(long ms) {
+        LinkEstimator.recordRtt(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    private static void assertRtt(double srttMs, double rttvarMs, long timeoutMs) {
+        assertEquals(srttMs, LinkEstimator.getSmoothedRttMs(), DELTA_MS);
+        assertEquals(rttvarMs, LinkEstimator.getRttVarianceMs(), DELTA_MS);
+        assertEquals(timeoutMs, LinkEstimator.getRequestTimeoutMs());
+    }
+
+}
@@ -0,0 +1,384 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.RequestPriority;
+import com.schlaikjer.music.stubserver.StubServer;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs NetworkManager against a local stub server over a real socket.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class NetworkManagerIntegrationTest {
+
+    private static final int TRACK_COUNT = 2000;
+    private static final long TIMEOUT_S = 10;
+    private static final int CHECKSUM_SIZE = 20;
+
+    private static StubServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StubServer(new SyntheticLibrary(TRACK_COUNT, 64 * 1024, 4 * 1024));
+        server.start(0);
+        NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void rescanDatabase_succeeds() throws Exception {
+        assertTrue(rescanDatabase());
+    }
+
+    @Test
+    public void setServerAddress_reconnectsToNewServer() throws Exception {
+        StubServer other = new StubServer(new SyntheticLibrary(10, 4 * 1024, 4 * 1024));
+        try {
+            other.start(0);
+            // Make sure there's a connection to the old server to be dropped
+            assertTrue(rescanDatabase());
+
+            NetworkManager.setServerAddress("127.0.0.1", other.getPort());
+            long requestsBefore = other.getRequestCount();
+            assertTrue(rescanDatabase());
+            assertEquals(1, other.getConnectionCount());
+            assertTrue(other.getRequestCount() > requestsBefore);
+        } finally {
+            NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+            other.close();
+        }
+    }
+
+    @Test
+    public void fetchDatabase_returnsWholeLibrary() throws Exception {
+        CompletableFuture<TrackOuterClass.MusicDatabase> result = new CompletableFuture<>();
+        NetworkManager.fetchDatabase(new NetworkManager.DatabaseFetchCallback() {
+            @Override
+            public void onDatabaseFetched(TrackOuterClass.MusicDatabase db) {
+                result.complete(db);
+            }
+
+            @Override
+            public void onAbort() {
+                result.completeExceptionally(new AssertionError("Database fetch aborted"));
+            }
+        });
+
+        TrackOuterClass.MusicDatabase db = result.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(TRACK_COUNT, db.getTracksCount());
+        assertEquals(server.getLibrary().getDatabase().getImagesCount(), db.getImagesCount());
+        assertEquals(server.getLibrary().getGeneration(), db.getGeneration());
+    }
+
+    @Test
+    public void fetchDatabaseStream_deliversEveryRecord() throws Exception {
+        AtomicInteger tracks = new AtomicInteger();
+        AtomicInteger images = new AtomicInteger();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        NetworkManager.fetchDatabaseStream(new NetworkManager.DatabaseStreamCallback() {
+            @Override
+            public void onStreamStarted() {
+            }
+
+            @Override
+            public void onRecordBatch(List<TrackOuterClass.Track> batchTracks, List<TrackOuterClass.Image> batchImages) {
+                tracks.addAndGet(batchTracks.size());
+                images.addAndGet(batchImages.size());
+            }
+
+            @Override
+            public void onStreamComplete(long generation) {
+                result.complete(generation);
+            }
+
+            @Override
+            public void onAbort() {
+                result.completeExceptionally(new AssertionError("Database stream aborted"));
+            }
+        });
+
+        assertEquals(server.getLibrary().getGeneration(), (long) result.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(TRACK_COUNT, tracks.get());
+        assertEquals(server.getLibrary().getDatabase().getImagesCount(), images.get());
+    }
+
+    @Test
+    public void fetchDatabaseStream_waitsForSlowConsumer() throws Exception {
+        // Slow enough that batches back up and reading has to pause for them
+        AtomicInteger tracks = new AtomicInteger();
+        AtomicInteger wrongThread = new AtomicInteger();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        NetworkManager.fetchDatabaseStream(new NetworkManager.DatabaseStreamCallback() {
+            @Override
+            public void onStreamStarted() {
+                checkThread();
+            }
+
+            @Override
+            public void onRecordBatch(List<TrackOuterClass.Track> batchTracks, List<TrackOuterClass.Image> batchImages) {
+                checkThread();
+                tracks.addAndGet(batchTracks.size());
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onStreamComplete(long generation) {
+                checkThread();
+                result.complete(generation);
+            }
+
+            @Override
+            public void onAbort() {
+                result.completeExceptionally(new AssertionError("Database stream aborted"));
+            }
+
+            private void checkThread() {
+                if (!Thread.currentThread().getName().equals("ThreadManager")) {
+                    wrongThread.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(server.getLibrary().getGeneration(), (long) result.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(TRACK_COUNT, tracks.get());
+        assertEquals(0, wrongThread.get());
+        // Reading picks up again afterwards
+        assertTrue(rescanDatabase());
+    }
+
+    @Test
+    public void keepWarm_measuresRoundTripTime() throws Exception {
+        // Keeping warm opens a connection with nothing queued, and its HELLO is timed
+        NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, true);
+        try {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+            while (LinkEstimator.getRttSampleCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, false);
+        }
+
+        assertTrue(LinkEstimator.getRttSampleCount() > 0);
+        assertTrue(LinkEstimator.getSmoothedRttMs() >= 0);
+        assertTrue(LinkEstimator.getRequestTimeoutMs() > 0);
+    }
+
+    @Test
+    public void keepWarm_skipsPingWhenServerDeclinesIt() throws Exception {
+        StubServer other = new StubServer(new SyntheticLibrary(10, 4 * 1024, 4 * 1024));
+        AtomicInteger pings = new AtomicInteger();
+        other.setPingEnabled(false);
+        other.setRequestListener(request -> {
+            if (request.opcode == NetworkOpcode.PING) {
+                pings.incrementAndGet();
+            }
+        });
+        try {
+            other.start(0);
+            NetworkManager.setServerAddress("127.0.0.1", other.getPort());
+            NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, true);
+
+            // Long enough that a ping would have been due, and the connection is simply kept open
+            Thread.sleep(NetworkManager.PING_INTERVAL_MS + 1_000);
+            assertEquals(0, pings.get());
+            assertEquals(1, other.getConnectionCount());
+            assertTrue(rescanDatabase());
+            assertEquals(1, other.getConnectionCount());
+        } finally {
+            NetworkManager.setKeepWarm(NetworkManager.KEEP_WARM_FOREGROUND, false);
+            NetworkManager.setServerAddress("127.0.0.1", server.getPort());
+            other.close();
+        }
+    }
+
+    @Test
+    public void fetchDatabaseDelta_isEmptyWhenUpToDate() throws Exception {
+        CompletableFuture<TrackOuterClass.MusicDatabaseDelta> result = new CompletableFuture<>();
+        NetworkManager.fetchDatabaseDelta(server.getLibrary().getGeneration(), new NetworkManager.DatabaseDeltaFetchCallback() {
+            @Override
+            public void onDatabaseDeltaFetched(TrackOuterClass.MusicDatabaseDelta delta) {
+                result.complete(delta);
+            }
+
+            @Override
+            public void onAbort() {
+                result.completeExceptionally(new AssertionError("Delta fetch aborted"));
+            }
+        });
+
+        TrackOuterClass.MusicDatabaseDelta delta = result.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertFalse(delta.getFull());
+        assertEquals(0, delta.getAddedTracksCount());
+        assertEquals(server.getLibrary().getGeneration(), delta.getGeneration());
+    }
+
+    @Test
+    public void fetchThumbnail_keepsPrefetchWithinWindow() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        int prefetchCount = NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS + 8;
+        // Make sure the connection is up, so that its HELLO isn't among the held responses
+        assertTrue(rescanDatabase());
+
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        server.setRequestListener(request -> {
+            if (request.opcode == NetworkOpcode.FETCH_IMAGE_THUMB) {
+                requested.add(StorageManager.bytesToHex(Arrays.copyOf(request.data, CHECKSUM_SIZE)));
+            }
+        });
+        server.holdResponses();
+        try {
+            // Alternate sizes so that every fetch is a request of its own rather than a batch
+            List<CompletableFuture<File>> results = new ArrayList<>();
+            for (int i = 0; i < prefetchCount; i++) {
+                results.add(fetchThumbnail(context, imageChecksum(i), 64 + i % 2, RequestPriority.PREFETCH));
+            }
+            assertTrue(waitFor(() -> requested.size() >= NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+            // With nothing answered, nothing more should follow
+            Thread.sleep(500);
+            assertEquals(NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS, requested.size());
+
+            // Something the user is waiting on goes straight past the queued prefetch
+            byte[] urgent = imageChecksum(prefetchCount);
+            results.add(fetchThumbnail(context, urgent, 128, RequestPriority.INTERACTIVE));
+            assertTrue(waitFor(() -> requested.size() > NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+            assertEquals(StorageManager.bytesToHex(urgent), requested.get(NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+
+            server.releaseResponses();
+            for (CompletableFuture<File> result : results) {
+                assertTrue(result.get(TIMEOUT_S, TimeUnit.SECONDS).exists());
+            }
+            assertEquals(prefetchCount + 1, requested.size());
+        } finally {
+            server.setRequestListener(null);
+            server.releaseResponses();
+        }
+    }
+
+    @Test
+    public void fetchThumbnail_promotesWhenAskedForMoreUrgently() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        int first = 100;
+        assertTrue(rescanDatabase());
+
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        server.setRequestListener(request -> {
+            if (request.opcode == NetworkOpcode.FETCH_IMAGE_THUMB) {
+                requested.add(StorageManager.bytesToHex(Arrays.copyOf(request.data, CHECKSUM_SIZE)));
+            }
+        });
+        server.holdResponses();
+        try {
+            List<CompletableFuture<File>> results = new ArrayList<>();
+            for (int i = 0; i < NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS; i++) {
+                results.add(fetchThumbnail(context, imageChecksum(first + i), 64 + i % 2, RequestPriority.BACKGROUND));
+            }
+            assertTrue(waitFor(() -> requested.size() >= NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+
+            // Both stuck behind the window, until one is wanted right away
+            byte[] waiting = imageChecksum(first + NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+            byte[] wanted = imageChecksum(first + NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS + 1);
+            results.add(fetchThumbnail(context, waiting, 66, RequestPriority.PREFETCH));
+            results.add(fetchThumbnail(context, wanted, 67, RequestPriority.PREFETCH));
+            Thread.sleep(100);
+            assertEquals(NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS, requested.size());
+            results.add(fetchThumbnail(context, wanted, 67, RequestPriority.INTERACTIVE));
+
+            assertTrue(waitFor(() -> requested.size() > NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+            assertEquals(StorageManager.bytesToHex(wanted), requested.get(NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+
+            server.releaseResponses();
+            for (CompletableFuture<File> result : results) {
+                assertTrue(result.get(TIMEOUT_S, TimeUnit.SECONDS).exists());
+            }
+            // Both callers shared the one request
+            assertEquals(NetworkManager.DEFAULT_MAX_IN_FLIGHT_REQUESTS + 2, requested.size());
+        } finally {
+            server.setRequestListener(null);
+            server.releaseResponses();
+        }
+    }
+
+    private static boolean rescanDatabase() throws Exception {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        NetworkManager.rescanDatabase(new NetworkManager.DatabaseRescanCallback() {
+            @Override
+            public void onSuccess() {
+                result.complete(true);
+            }
+
+            @Override
+            public void onAbort() {
+                result.complete(false);
+            }
+        });
+        return result.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    private static byte[] imageChecksum(int index) {
+        return server.getLibrary().getDatabase().getImages(index).getChecksum().toByteArray();
+    }
+
+    private static CompletableFuture<File> fetchThumbnail(Context context, byte[] checksum, int edgeSize, int priority) {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        NetworkManager.fetchThumbnail(context, checksum, edgeSize, priority, new NetworkManager.ContentFetchCallback() {
+            @Override
+            public void onContentReceived(File contentFile) {
+                result.complete(contentFile);
+            }
+
+            @Override
+            public void onAbort() {
+                result.completeExceptionally(new AssertionError("Thumbnail fetch aborted"));
+            }
+        });
+        return result;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.schlaikjer.music.utility;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.schlaikjer.music.model.RequestPriority;
+import com.schlaikjer.music.service.MediaService;
+import com.schlaikjer.music.service.ProgressiveDataSource;
+import com.schlaikjer.music.stubserver.FaultInjectingProxy;
+import com.schlaikjer.music.stubserver.FaultProfile;
+import com.schlaikjer.music.stubserver.StubServer;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Plays and prefetches tracks from a stub server through a fault-injecting proxy under each
+ * {@link FaultProfile}, and reports how long playback took to start and how many bytes were
+ * transferred beyond the content itself.
+ * <p>
+ * "Play" follows MediaService.play: an interactive fetch, read back through a
+ * {@link ProgressiveDataSource} from the point {@link MediaService#PROGRESSIVE_START_BYTES} have
+ * arrived, as the player would be. Playback counts as starting once the source has handed over that
+ * many bytes, and as complete once it has handed over the last. "Prefetch" runs
+ * PlaylistManager.prefetchTracks over a fresh playlist and waits for every track to land.
+ * <p>
+ * Slow, so excluded from the normal test run. Run with ./gradlew :app:testDebugUnitTest -Pbenchmarks
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class NetworkScenarioBenchmark {
+
+    private static final int LIBRARY_TRACKS = 1000;
+    private static final long TRACK_SIZE = 4 * 1024 * 1024;
+    private static final long SCENARIO_TIMEOUT_S = 300;
+    private static final long FAULT_SEED = 5959;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static StubServer server;
+    private static FaultInjectingProxy proxy;
+    // Each scenario uses tracks nobody has fetched before, so the cache is always cold
+    private static int nextTrackIndex = 0;
+
+    private static class ScenarioResult {
+        final String profile;
+        final String scenario;
+        // -1 if playback never started
+        final long timeToFirstPlayMs;
+        // -1 if the content never fully arrived
+        final long completeMs;
+        final long contentBytes;
+        final long wireBytes;
+        final long disconnects;
+
+        ScenarioResult(String profile, String scenario, long timeToFirstPlayMs, long completeMs, long contentBytes, long wireBytes, long disconnects) {
+            this.profile = profile;
+            this.scenario = scenario;
+            this.timeToFirstPlayMs = timeToFirstPlayMs;
+            this.completeMs = completeMs;
+            this.contentBytes = contentBytes;
+            this.wireBytes = wireBytes;
+            this.disconnects = disconnects;
+        }
+
+        long bytesWasted() {
+            return Math.max(0, wireBytes - contentBytes);
+        }
+    }
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StubServer(new SyntheticLibrary(LIBRARY_TRACKS, TRACK_SIZE, 64 * 1024));
+        server.start(0);
+        proxy = new FaultInjectingProxy(new InetSocketAddress("127.0.0.1", server.getPort()), FAULT_SEED);
+        proxy.start(0);
+        NetworkManager.setServerAddress("127.0.0.1", proxy.getPort());
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void runScenarios() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        List<ScenarioResult> results = new ArrayList<>();
+        for (FaultProfile profile : FaultProfile.ALL) {
+            proxy.setProfile(profile);
+            // Start each profile on a fresh connection, so that it applies from the handshake on
+            proxy.dropConnections();
+            results.add(runPlay(context, profile));
+            results.add(runPrefetch(context, profile));
+        }
+        report(results);
+    }
+
+    private ScenarioResult runPlay(Context context, FaultProfile profile) throws Exception {
+        byte[] checksum = nextTrack();
+        long contentBytes = server.getLibrary().getTrack(checksum).size;
+        long wireBefore = proxy.getBytesToClient();
+        long disconnectsBefore = proxy.getDisconnects();
+        long start = System.nanoTime();
+
+        CompletableFuture<Long> firstPlay = new CompletableFuture<>();
+        CompletableFuture<Long> complete = new CompletableFuture<>();
+        NetworkManager.fetchTrack(context, checksum, RequestPriority.INTERACTIVE, new NetworkManager.ContentFetchCallback() {
+            @Override
+            public void onContentStarted(ContentSink sink) {
+                sink.runWhenAvailable(MediaService.PROGRESSIVE_START_BYTES, () -> playThrough(sink, firstPlay, complete));
+            }
+
+            @Override
+            public void onContentReceived(File contentFile) {
+                // Playback finishes when the reader gets to the end
+            }
+
+            @Override
+            public void onAbort() {
+                firstPlay.complete(-1L);
+                complete.complete(-1L);
+            }
+        });
+
+        long firstPlayMs = elapsedMs(start, await(firstPlay));
+        long completeMs = elapsedMs(start, await(complete));
+        return new ScenarioResult(profile.name, "play", firstPlayMs, completeMs, contentBytes,
+                proxy.getBytesToClient() - wireBefore, proxy.getDisconnects() - disconnectsBefore);
+    }
+
+    // Read the track through the data source the player is given, as fast as it will hand data over
+    private static void playThrough(ContentSink sink, CompletableFuture<Long> firstPlay, CompletableFuture<Long> complete) {
+        Thread player = new Thread(() -> {
+            byte[] buffer = new byte[READ_SIZE];
+            long position = 0;
+            try (ProgressiveDataSource source = new ProgressiveDataSource(sink)) {
+                int read;
+                while ((read = source.readAt(position, buffer, 0, buffer.length)) > 0) {
+                    position += read;
+                    if (position >= MediaService.PROGRESSIVE_START_BYTES) {
+                        firstPlay.complete(System.nanoTime());
+                    }
+                }
+                if (position == source.getSize()) {
+                    long now = System.nanoTime();
+                    firstPlay.complete(now);
+                    complete.complete(now);
+                }
+            } catch (IOException e) {
+                // Transfer failed
+            }
+            firstPlay.complete(-1L);
+            complete.complete(-1L);
+        }, "ScenarioPlayer");
+        player.setDaemon(true);
+        player.start();
+    }
+
+    private ScenarioResult runPrefetch(Context context, FaultProfile profile) throws Exception {
+        List<byte[]> playlist = new ArrayList<>();
+        long contentBytes = 0;
+        for (int i = 0; i < PlaylistManager.TRACK_PREFETCH_LEN; i++) {
+            byte[] checksum = nextTrack();
+            playlist.add(checksum);
+            contentBytes += server.getLibrary().getTrack(checksum).size;
+        }
+        PlaylistManager.setPlaylist(context, playlist);
+
+        long wireBefore = proxy.getBytesToClient();
+        long disconnectsBefore = proxy.getDisconnects();
+        long start = System.nanoTime();
+        PlaylistManager.prefetchTracks(context, playlist.size(), 0);
+
+        // Prefetching doesn't report back, so watch the cache fill up
+        long deadline = start + TimeUnit.SECONDS.toNanos(SCENARIO_TIMEOUT_S);
+        long firstTrackMs = -1;
+        long completeMs = -1;
+        while (System.nanoTime() < deadline) {
+            int fetched = 0;
+            for (byte[] checksum : playlist) {
+                if (StorageManager.hasContentFile(context, checksum)) {
+                    fetched++;
+                }
+            }
+            if (fetched > 0 && firstTrackMs < 0) {
+                firstTrackMs = elapsedMs(start, System.nanoTime());
+            }
+            if (fetched == playlist.size()) {
+                completeMs = elapsedMs(start, System.nanoTime());
+                break;
+            }
+            Thread.sleep(10);
+        }
+
+        return new ScenarioResult(profile.name, "prefetch", firstTrackMs, completeMs, contentBytes,
+                proxy.getBytesToClient() - wireBefore, proxy.getDisconnects() - disconnectsBefore);
+    }
+
+    private static byte[] nextTrack() {
+        return server.getLibrary().getDatabase().getTracks(nextTrackIndex++).getChecksum().toByteArray();
+    }
+
+    private static long await(CompletableFuture<Long> future) throws InterruptedException, ExecutionException {
+        try {
+            return future.get(SCENARIO_TIMEOUT_S, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return -1;
+        }
+    }
+
+    private static long elapsedMs(long startNanos, long endNanos) {
+        return endNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+    }
+
+    private static void report(List<ScenarioResult> results) {
+        System.out.println(String.format(Locale.US, "%-10s %-9s %12s %12s %12s %12s %6s",
+                "profile", "scenario", "first-play", "complete", "content", "wasted", "drops"));
+        for (ScenarioResult result : results) {
+            System.out.println(String.format(Locale.US, "%-10s %-9s %12s %12s %12d %12d %6d",
+                    result.profile, result.scenario, formatMs(result.timeToFirstPlayMs), formatMs(result.completeMs),
+                    result.contentBytes, result.bytesWasted(), result.disconnects));
+        }
+    }
+
+    private static String formatMs(long ms) {
+        return ms < 0 ? "failed" : ms + "ms";
+    }
+
+}
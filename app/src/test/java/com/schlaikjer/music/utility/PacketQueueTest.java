@@ -0,0 +1,136 @@
+package com.schlaikjer.music.utility;
+
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.RequestPriority;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order packets leave the transmit queue in: most urgent class first, first in first out
+ * within a class, and promoted packets joining the back of their new class.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class PacketQueueTest {
+
+    @Test
+    public void poll_isFifoWithinClass() {
+        PacketQueue queue = new PacketQueue();
+        for (int nonce = 0; nonce < 5; nonce++) {
+            queue.add(packet(nonce), RequestPriority.VISIBLE);
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drain(queue));
+    }
+
+    @Test
+    public void poll_takesMostUrgentClassFirst() {
+        PacketQueue queue = new PacketQueue();
+        queue.add(packet(0), RequestPriority.BACKGROUND);
+        queue.add(packet(1), RequestPriority.PREFETCH);
+        queue.add(packet(2), RequestPriority.VISIBLE);
+        queue.add(packet(3), RequestPriority.INTERACTIVE);
+        queue.add(packet(4), RequestPriority.PREFETCH);
+        queue.add(packet(5), RequestPriority.INTERACTIVE);
+
+        assertEquals(RequestPriority.INTERACTIVE, queue.peekPriority());
+        assertEquals(3, queue.peek().nonce);
+        assertEquals(Arrays.asList(3, 5, 2, 1, 4, 0), drain(queue));
+        assertEquals(-1, queue.peekPriority());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void addFirst_jumpsOnlyItsOwnClass() {
+        PacketQueue queue = new PacketQueue();
+        queue.add(packet(0), RequestPriority.INTERACTIVE);
+        queue.add(packet(1), RequestPriority.PREFETCH);
+        queue.addFirst(packet(2), RequestPriority.PREFETCH);
+
+        assertEquals(Arrays.asList(0, 2, 1), drain(queue));
+    }
+
+    @Test
+    public void promote_movesToBackOfMoreUrgentClass() {
+        PacketQueue queue = new PacketQueue();
+        Packet promoted = packet(0);
+        queue.add(promoted, RequestPriority.BACKGROUND);
+        queue.add(packet(1), RequestPriority.VISIBLE);
+        queue.add(packet(2), RequestPriority.BACKGROUND);
+        queue.add(packet(3), RequestPriority.VISIBLE);
+
+        queue.promote(promoted, RequestPriority.VISIBLE);
+
+        assertEquals(4, queue.size());
+        assertEquals(Arrays.asList(1, 3, 0, 2), drain(queue));
+    }
+
+    @Test
+    public void promote_neverDemotes() {
+        PacketQueue queue = new PacketQueue();
+        Packet urgent = packet(0);
+        queue.add(urgent, RequestPriority.VISIBLE);
+        queue.add(packet(1), RequestPriority.VISIBLE);
+
+        queue.promote(urgent, RequestPriority.BACKGROUND);
+        queue.promote(urgent, RequestPriority.VISIBLE);
+
+        assertEquals(Arrays.asList(0, 1), drain(queue));
+    }
+
+    @Test
+    public void promote_ignoresSentPacket() {
+        PacketQueue queue = new PacketQueue();
+        Packet sent = packet(0);
+        queue.add(sent, RequestPriority.PREFETCH);
+        assertSame(sent, queue.poll());
+
+        queue.promote(sent, RequestPriority.INTERACTIVE);
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void remove_dropsOnlyThatPacket() {
+        PacketQueue queue = new PacketQueue();
+        Packet removed = packet(1);
+        queue.add(packet(0), RequestPriority.PREFETCH);
+        queue.add(removed, RequestPriority.PREFETCH);
+        queue.add(packet(2), RequestPriority.PREFETCH);
+
+        assertTrue(queue.remove(removed));
+        assertFalse(queue.remove(removed));
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList(0, 2), drain(queue));
+    }
+
+    private static Packet packet(int nonce) {
+        return new Packet(nonce, NetworkOpcode.FETCH_IMAGE, new byte[0]);
+    }
+
+    private static List<Integer> drain(PacketQueue queue) {
+        List<Integer> nonces = new ArrayList<>();
+        Packet packet;
+        while ((packet = queue.poll()) != null) {
+            nonces.add(packet.nonce);
+        }
+        assertTrue(queue.isEmpty());
+        return nonces;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.schlaikjer.music.benchmarks;
+
+import com.schlaikjer.music.utility.ContentIds;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning checksums into content IDs and cache file paths, which happens for every track and
+ * image shown, fetched or prefetched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContentIdBenchmark {
+
+    private static final int CHECKSUM_COUNT = 1024;
+
+    private final byte[][] _checksums = new byte[CHECKSUM_COUNT][20];
+    private final File _files_dir = new File("/data/user/0/com.schlaikjer.music/files");
+    private int _next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        for (byte[] checksum : _checksums) {
+            random.nextBytes(checksum);
+        }
+    }
+
+    private byte[] nextChecksum() {
+        _next = (_next + 1) & (CHECKSUM_COUNT - 1);
+        return _checksums[_next];
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return ContentIds.bytesToHex(nextChecksum());
+    }
+
+    // StorageManager.getContentFile, minus the mkdirs
+    @Benchmark
+    public File contentFile() {
+        String contentId = ContentIds.bytesToHex(nextChecksum());
+        File dir = new File(_files_dir, ContentIds.bucketName(contentId));
+        return new File(dir, ContentIds.fileName(contentId));
+    }
+
+}
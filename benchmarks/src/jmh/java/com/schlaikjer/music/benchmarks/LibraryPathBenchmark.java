@@ -0,0 +1,92 @@
+package com.schlaikjer.music.benchmarks;
+
+import com.schlaikjer.msgs.TrackOuterClass;
+import com.schlaikjer.music.stubserver.SyntheticLibrary;
+import com.schlaikjer.music.utility.LibraryPaths;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path handling for folder browsing, over the parent paths a library of each size produces.
+ * <p>
+ * normalize is what a sync now runs on each record's parent path to file it in the directory
+ * tree. The grouping loops are what TrackDatabase.getDirectoryAlbums used to run over the distinct
+ * parent paths on every folder tap, before there was a directory table: the {@link LibraryPaths}
+ * version, and the split-based one before that. Both are kept for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LibraryPathBenchmark {
+
+    @Param({"1000", "20000", "200000"})
+    public int trackCount;
+
+    // Browsing from the filesystem root, and from the library root the stub server uses
+    @Param({"", "/music"})
+    public String basedir;
+
+    // Every track's parent path, as a sync sees them, and the distinct ones
+    private List<String> _track_parent_paths;
+    private List<String> _parent_paths;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        _track_parent_paths = new ArrayList<>();
+        for (TrackOuterClass.Track track : new SyntheticLibrary(trackCount, 1024, 1024).getDatabase().getTracksList()) {
+            _track_parent_paths.add(track.getParentPath());
+        }
+        _parent_paths = new ArrayList<>(new LinkedHashSet<>(_track_parent_paths));
+    }
+
+    @Benchmark
+    public int normalize() {
+        int length = 0;
+        for (String parentPath : _track_parent_paths) {
+            length += LibraryPaths.normalize(parentPath).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public Set<String> groupByFirstComponent() {
+        Set<String> prefixSet = new HashSet<>();
+        for (String parentPath : _parent_paths) {
+            prefixSet.add(LibraryPaths.firstChildComponent(parentPath, basedir.length()));
+        }
+        return prefixSet;
+    }
+
+    @Benchmark
+    public Set<String> groupByFirstComponentSplit() {
+        Set<String> prefixSet = new HashSet<>();
+        for (String parentPath : _parent_paths) {
+            String[] childPathFragments = parentPath.substring(basedir.length()).split("/");
+            String baseChild = "";
+            for (String fragment : childPathFragments) {
+                if (fragment.length() > 0) {
+                    baseChild = fragment;
+                    break;
+                }
+            }
+            prefixSet.add(baseChild);
+        }
+        return prefixSet;
+    }
+
+}
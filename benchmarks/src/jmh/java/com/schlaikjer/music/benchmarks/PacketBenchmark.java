@@ -0,0 +1,97 @@
+package com.schlaikjer.music.benchmarks;
+
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.PacketDecoder;
+import com.schlaikjer.music.model.PayloadSink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packet framing, from a 1KB thumbnail up to a 60MB FLAC. Decoding is measured with the payload
+ * arriving in socket-read sized fragments, both buffered into the packet and streamed to a sink
+ * the way content downloads are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketBenchmark {
+
+    @Param({"1024", "65536", "1048576", "62914560"})
+    public int payloadSize;
+
+    // 1460 is a typical TCP segment, 65536 the size NetworkManager reads with
+    @Param({"1460", "65536"})
+    public int fragmentSize;
+
+    private Packet _packet;
+    private byte[] _wire;
+
+    // Sink that only touches the data, like a content sink minus the disk
+    private static final PayloadSink COUNTING_SINK = new PayloadSink() {
+        long received = 0;
+
+        @Override
+        public void onPayloadData(ByteBuffer data) {
+            received += data.remaining();
+            data.position(data.limit());
+        }
+
+        @Override
+        public void onPayloadComplete() {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Audio and images are already compressed, so random data is representative
+        byte[] payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        _packet = new Packet(1, NetworkOpcode.FETCH_TRACK, payload);
+
+        ByteBuffer[] buffers = _packet.serialize();
+        _wire = new byte[buffers[0].remaining() + buffers[1].remaining()];
+        ByteBuffer.wrap(_wire).put(buffers[0]).put(buffers[1]);
+    }
+
+    @Benchmark
+    public ByteBuffer[] serialize() {
+        return _packet.serialize();
+    }
+
+    @Benchmark
+    public void decodeBuffered(Blackhole bh) throws IOException {
+        decode(new PacketDecoder((nonce, opcode, length) -> null), bh);
+    }
+
+    @Benchmark
+    public void decodeStreamed(Blackhole bh) throws IOException {
+        decode(new PacketDecoder((nonce, opcode, length) -> COUNTING_SINK), bh);
+    }
+
+    private void decode(PacketDecoder decoder, Blackhole bh) throws IOException {
+        // Feed the packet in as a series of reads, as it would come off the socket
+        for (int offset = 0; offset < _wire.length; offset += fragmentSize) {
+            ByteBuffer fragment = ByteBuffer.wrap(_wire, offset, Math.min(fragmentSize, _wire.length - offset));
+            Packet p = decoder.decode(fragment);
+            if (p != null) {
+                bh.consume(p);
+            }
+        }
+    }
+
+}
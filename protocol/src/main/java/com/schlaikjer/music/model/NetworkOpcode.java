@@ -0,0 +1,105 @@
+package com.schlaikjer.music.model;
+
+public class NetworkOpcode {
+    // Trigger update of remote database
+    // No data arguments
+    // Zero-len response comes after update is complete
+    public static final int UPDATE_REMOTE_DB = 0;
+
+    // Fetch serialized database information
+    // No data arguments
+    // Response is protobuf-serialized db info
+    public static final int FETCH_DB = 1;
+
+    // Fetch track with specified checksum
+    // Data argument is checksum (20 bytes)
+    // Response is raw track data (variable size)
+    public static final int FETCH_TRACK = 2;
+
+    // Fetch image with specified checksum
+    // Data argument is checksum (20 bytes)
+    // Response is raw image data (variable size)
+    public static final int FETCH_IMAGE = 3;
+
+    // Fetch part of the track with specified checksum
+    // Data argument is checksum (20 bytes), u64 offset, u32 length
+    // Response is u64 total track size, followed by the track data in the requested range
+    // (truncated at the end of the track)
+    public static final int FETCH_TRACK_RANGE = 4;
+
+    // Withdraw an earlier request
+    // Data argument is the nonce of the request to cancel (u32)
+    // No response. The cancelled request gets no response either, unless the server had already
+    // started sending it, in which case that packet is completed
+    public static final int CANCEL = 5;
+
+    // Fetch the changes to the database since a given generation
+    // Data argument is the client's current generation (u64)
+    // Response is protobuf-serialized MusicDatabaseDelta
+    public static final int FETCH_DB_DELTA = 6;
+
+    // Stream the whole database
+    // No data arguments
+    // Response is a sequence of varint length-delimited protobuf DatabaseRecords, the last of
+    // which carries the database generation
+    public static final int FETCH_DB_STREAM = 7;
+
+    // Negotiate optional protocol features, sent first on every connection
+    // Data argument is the client's supported feature bits (u32, see Packet.FEATURE_*)
+    // Response is the subset of those bits the server will use on this connection (u32)
+    // With FEATURE_DEFLATE, database responses may be sent compressed. Track and image data is
+    // already compressed, so it never is
+    public static final int HELLO = 8;
+
+    // Fetch several images in one request
+    // Data argument is u32 thumbnail edge size (0 for the original images), u32 count, followed by
+    // that many checksums (20 bytes each)
+    // Response is a sequence of records, one per requested image in any order: u32 index into the
+    // requested checksums, u32 length, then the raw image data. A zero length means the image
+    // couldn't be found
+    public static final int FETCH_IMAGES_BATCH = 9;
+
+    // Fetch a downscaled copy of the image with specified checksum
+    // Data argument is checksum (20 bytes), u32 target edge size in pixels
+    // Response is the image re-encoded so that its longest edge is at most the target size
+    // (variable size). Images already smaller than the target are returned as-is
+    public static final int FETCH_IMAGE_THUMB = 10;
+
+    // Check the connection is alive and measure the round trip time. Only sent if the server
+    // agreed to Packet.FEATURE_PING in the HELLO handshake
+    // No data arguments
+    // Zero-len response
+    public static final int PING = 11;
+
+    // Readable name for logs and stats
+    public static String name(int opcode) {
+        switch (opcode) {
+            case UPDATE_REMOTE_DB:
+                return "UPDATE_REMOTE_DB";
+            case FETCH_DB:
+                return "FETCH_DB";
+            case FETCH_TRACK:
+                return "FETCH_TRACK";
+            case FETCH_IMAGE:
+                return "FETCH_IMAGE";
+            case FETCH_TRACK_RANGE:
+                return "FETCH_TRACK_RANGE";
+            case CANCEL:
+                return "CANCEL";
+            case FETCH_DB_DELTA:
+                return "FETCH_DB_DELTA";
+            case FETCH_DB_STREAM:
+                return "FETCH_DB_STREAM";
+            case HELLO:
+                return "HELLO";
+            case FETCH_IMAGES_BATCH:
+                return "FETCH_IMAGES_BATCH";
+            case FETCH_IMAGE_THUMB:
+                return "FETCH_IMAGE_THUMB";
+            case PING:
+                return "PING";
+            default:
+                return "OPCODE_" + opcode;
+        }
+    }
+}
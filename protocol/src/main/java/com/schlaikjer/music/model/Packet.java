@@ -0,0 +1,76 @@
+package com.schlaikjer.music.model;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+
+public class Packet {
+
+    // General packet format:
+    // u32 nonce
+    // u32 cmd
+    // u32 data len
+    // u8[data len] data
+
+    public static final int HEADER_SIZE = 3 * 4;
+
+    // High bit of the cmd marks a deflate-compressed payload. The data len is the compressed size
+    public static final int FLAG_COMPRESSED = 0x80000000;
+
+    // Feature bits exchanged in the HELLO handshake
+    public static final int FEATURE_DEFLATE = 1;
+    // Server answers PING, so an idle connection can be checked on and timed
+    public static final int FEATURE_PING = 2;
+
+    public int nonce;
+    public int opcode;
+    public byte[] data;
+
+    // When the packet was last put on a transmit queue, for metrics
+    public long queuedAtNanos = 0;
+
+
+    public Packet(int nonce, int opcode, byte[] data) {
+        this.nonce = nonce;
+        this.opcode = opcode;
+        this.data = data;
+    }
+
+    public ByteBuffer[] serialize() {
+        return serialize(false);
+    }
+
+    /**
+     * @param compress Whether to deflate the payload. Only worth it for data that isn't already
+     *                 compressed, and only if the other end negotiated {@link #FEATURE_DEFLATE}.
+     */
+    public ByteBuffer[] serialize(boolean compress) {
+        byte[] payload = compress ? deflate(this.data) : this.data;
+
+        // Allocate a byte buffer to pack the fixed size header
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(this.nonce);
+        bb.putInt(compress ? this.opcode | FLAG_COMPRESSED : this.opcode);
+        bb.putInt(payload.length);
+        bb.flip();
+
+        // Wrap the variable-size data rather than copying it, so it can be written with a single gathering write
+        return new ByteBuffer[]{bb, ByteBuffer.wrap(payload)};
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+}
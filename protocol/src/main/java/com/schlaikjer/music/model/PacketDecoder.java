@@ -0,0 +1,215 @@
+package com.schlaikjer.music.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class PacketDecoder {
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    // Refuse to buffer anything larger than this for a single packet. Streamed payloads have no
+    // such limit, as they are never held in memory whole
+    static final int MAX_BUFFERED_PAYLOAD = 16 * 1024 * 1024;
+
+    // Lets the owner of the decoder claim a payload for streaming as soon as its header is seen
+    public interface SinkProvider {
+        // Return a sink to stream the payload into, or null to have it buffered into the packet.
+        // Length is -1 if the payload is compressed, since its inflated size isn't known up front
+        PayloadSink openSink(int nonce, int opcode, int length);
+    }
+
+    private final SinkProvider _sink_provider;
+
+    // Partially received header for the next packet
+    private final ByteBuffer _header = ByteBuffer.allocate(Packet.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Packet whose header has been parsed but whose payload is still arriving
+    private Packet _current = null;
+    // Length of the current packet's payload, and how many bytes of it have been received
+    private int _payload_length = 0;
+    private int _payload_received = 0;
+    // Size on the wire of the last packet decode() returned, header included
+    private int _last_packet_size = 0;
+    // Destination for the current packet's payload, if it is being streamed rather than buffered
+    private PayloadSink _current_sink = null;
+    // Set while the current payload is compressed
+    private Inflater _inflater = null;
+    private final byte[] _inflate_buffer = new byte[64 * 1024];
+
+    public PacketDecoder(SinkProvider sinkProvider) {
+        _sink_provider = sinkProvider;
+    }
+
+    /**
+     * Consume bytes from the input buffer until a full packet has been decoded or the input is
+     * exhausted. Payload bytes are copied straight from the input into the packet's data array, so
+     * each received byte is copied exactly once regardless of how the packet was fragmented.
+     * <p>
+     * If the sink provider claims a payload, its bytes are handed to the sink instead and the
+     * returned packet carries an empty data array.
+     *
+     * @param in Buffer in read mode. Its position is advanced past any consumed bytes.
+     * @return The next complete packet, or null if more data is needed.
+     */
+    public Packet decode(ByteBuffer in) throws IOException {
+        // Still waiting on a header?
+        if (_current == null) {
+            while (_header.hasRemaining() && in.hasRemaining()) {
+                _header.put(in.get());
+            }
+            if (_header.hasRemaining()) {
+                return null;
+            }
+
+            // Parse the header exactly once
+            int nonce = _header.getInt(0);
+            int opcode = _header.getInt(4);
+            int data_len = _header.getInt(8);
+            _header.clear();
+            if (data_len < 0) {
+                throw new IOException("Invalid packet length " + data_len + " for nonce " + nonce);
+            }
+
+            // Compression is transparent to everything above the decoder
+            boolean compressed = (opcode & Packet.FLAG_COMPRESSED) != 0;
+            opcode &= ~Packet.FLAG_COMPRESSED;
+            _inflater = compressed ? new Inflater() : null;
+
+            _payload_length = data_len;
+            _payload_received = 0;
+            _current_sink = _sink_provider.openSink(nonce, opcode, compressed ? -1 : data_len);
+            if (_current_sink == null && data_len > MAX_BUFFERED_PAYLOAD) {
+                // The length comes straight off the wire, so don't let it size an allocation
+                throw new IOException("Packet of " + data_len + " bytes is too large to buffer for nonce " + nonce);
+            }
+            _current = new Packet(nonce, opcode, _current_sink == null ? new byte[data_len] : EMPTY_PAYLOAD);
+        }
+
+        // Copy or stream as much of the payload as is available
+        int wanted = _payload_length - _payload_received;
+        int available = Math.min(wanted, in.remaining());
+        if (_current_sink == null) {
+            in.get(_current.data, _payload_received, available);
+        } else if (available > 0) {
+            // Hand the sink a view of just this packet's bytes
+            ByteBuffer chunk = in.slice();
+            chunk.limit(available);
+            if (_inflater == null) {
+                _current_sink.onPayloadData(chunk);
+            } else {
+                inflateInto(chunk, _current_sink);
+            }
+            in.position(in.position() + available);
+        }
+        _payload_received += available;
+        if (_payload_received < _payload_length) {
+            return null;
+        }
+
+        // Packet complete
+        Packet p = _current;
+        if (_inflater != null) {
+            boolean finished = _inflater.finished();
+            if (_current_sink == null) {
+                // Buffered payloads are inflated in one go
+                p.data = inflate(p.data);
+                finished = true;
+            }
+            _inflater.end();
+            _inflater = null;
+            if (!finished) {
+                throw new IOException("Truncated compressed payload for nonce " + p.nonce);
+            }
+        }
+        if (_current_sink != null) {
+            _current_sink.onPayloadComplete();
+        }
+        _current = null;
+        _current_sink = null;
+        _last_packet_size = Packet.HEADER_SIZE + _payload_length;
+        return p;
+    }
+
+    private void inflateInto(ByteBuffer compressed, PayloadSink sink) throws IOException {
+        // Inflater only takes arrays on older platforms
+        if (compressed.hasArray()) {
+            _inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+        } else {
+            byte[] copy = new byte[compressed.remaining()];
+            compressed.get(copy);
+            _inflater.setInput(copy);
+        }
+
+        try {
+            while (!_inflater.needsInput() && !_inflater.finished()) {
+                int n = _inflater.inflate(_inflate_buffer);
+                if (n > 0) {
+                    sink.onPayloadData(ByteBuffer.wrap(_inflate_buffer, 0, n));
+                } else if (_inflater.needsDictionary()) {
+                    throw new IOException("Compressed payload needs a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+    }
+
+    private byte[] inflate(byte[] compressed) throws IOException {
+        _inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(compressed.length * 4, MAX_BUFFERED_PAYLOAD));
+        try {
+            while (!_inflater.finished()) {
+                int n = _inflater.inflate(_inflate_buffer);
+                if (n == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                out.write(_inflate_buffer, 0, n);
+                if (out.size() > MAX_BUFFERED_PAYLOAD) {
+                    throw new IOException("Compressed payload inflates to more than " + MAX_BUFFERED_PAYLOAD + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return Whether part of a payload has already been handed to a sink, so the packet with
+     * {@link #getCurrentNonce()} can't simply be asked for again
+     */
+    public boolean isStreamingPayload() {
+        return _current != null && _current_sink != null && _payload_received > 0;
+    }
+
+    /**
+     * @return Size of the last decoded packet as it was received, before any decompression
+     */
+    public int getLastPacketSize() {
+        return _last_packet_size;
+    }
+
+    public int getCurrentNonce() {
+        return _current == null ? 0 : _current.nonce;
+    }
+
+    /**
+     * Drop any partially decoded packet, e.g. after the connection has been reset.
+     */
+    public void reset() {
+        _header.clear();
+        if (_inflater != null) {
+            _inflater.end();
+            _inflater = null;
+        }
+        _current = null;
+        _current_sink = null;
+        _payload_length = 0;
+        _payload_received = 0;
+    }
+
+}
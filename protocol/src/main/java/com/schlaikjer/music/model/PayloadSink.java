@@ -0,0 +1,14 @@
+package com.schlaikjer.music.model;
+
+import java.nio.ByteBuffer;
+
+public interface PayloadSink {
+
+    // Called with each fragment of a packet payload, in order, as it comes off the socket.
+    // The buffer is only valid for the duration of the call.
+    void onPayloadData(ByteBuffer data);
+
+    // Called once every byte of the payload has been delivered
+    void onPayloadComplete();
+
+}
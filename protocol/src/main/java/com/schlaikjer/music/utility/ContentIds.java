@@ -0,0 +1,38 @@
+package com.schlaikjer.music.utility;
+
+/**
+ * Content IDs are the hex form of a track or image checksum, and name its file in the content
+ * cache. Kept free of Android dependencies so the JVM tools and benchmarks can use them.
+ */
+public class ContentIds {
+
+    private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+
+    // Cache files are bucketed into directories named after this many leading hex characters
+    public static final int BUCKET_PREFIX_LENGTH = 2;
+
+    public static String bytesToHex(byte[] data) {
+        char[] hexChars = new char[data.length * 2];
+        for (int j = 0; j < data.length; j++) {
+            int v = data[j] & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * @return Name of the cache bucket directory for a content ID
+     */
+    public static String bucketName(String contentId) {
+        return contentId.substring(0, BUCKET_PREFIX_LENGTH);
+    }
+
+    /**
+     * @return Name of the cache file for a content ID within its bucket
+     */
+    public static String fileName(String contentId) {
+        return contentId.substring(BUCKET_PREFIX_LENGTH);
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.schlaikjer.music.utility;
+
+/**
+ * Helpers for the slash-separated library paths the server reports tracks and images under.
+ */
+public class LibraryPaths {
+
+    /**
+     * Find the first path component below a base directory, e.g. the artist directory when
+     * browsing from the library root.
+     *
+     * @param path          Path at or below basedir
+     * @param basedirLength Length of the base directory prefix of path
+     * @return The first non-empty component after the prefix, or "" if there is none
+     */
+    public static String firstChildComponent(String path, int basedirLength) {
+        // Skip any run of separators, then take everything up to the next one
+        int start = basedirLength;
+        int length = path.length();
+        while (start < length && path.charAt(start) == '/') {
+            start++;
+        }
+        int end = path.indexOf('/', start);
+        return path.substring(start, end < 0 ? length : end);
+    }
+
+    /**
+     * Reduce a path to its non-empty components joined by single separators, e.g. "/music//a/" to
+     * "music/a". This is the form the directory tree is keyed by, with "" for the root.
+     */
+    public static String normalize(String path) {
+        // Paths are almost always normalized already, so check before copying
+        if (isNormalized(path)) {
+            return path;
+        }
+
+        StringBuilder normalized = new StringBuilder(path.length());
+        int length = path.length();
+        int start = 0;
+        while (true) {
+            while (start < length && path.charAt(start) == '/') {
+                start++;
+            }
+            if (start == length) {
+                return normalized.toString();
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(path, start, end);
+            start = end;
+        }
+    }
+
+    /**
+     * @param normalized Path as returned by {@link #normalize}
+     * @return The path of the directory containing it, or "" at the top level
+     */
+    public static String parent(String normalized) {
+        int separator = normalized.lastIndexOf('/');
+        return separator < 0 ? "" : normalized.substring(0, separator);
+    }
+
+    /**
+     * @param normalized Path as returned by {@link #normalize}
+     * @return Its last component
+     */
+    public static String name(String normalized) {
+        return normalized.substring(normalized.lastIndexOf('/') + 1);
+    }
+
+    // No leading, trailing or doubled separators
+    private static boolean isNormalized(String path) {
+        int length = path.length();
+        if (length == 0) {
+            return true;
+        }
+        if (path.charAt(0) == '/' || path.charAt(length - 1) == '/') {
+            return false;
+        }
+        return path.indexOf("//") < 0;
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.schlaikjer.music.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the decoder the same packets cut up every way a socket might deliver them, and checks it
+ * always hands back exactly what was sent.
+ */
+public class PacketDecoderTest {
+
+    // Opcode whose payloads the test sink provider claims for streaming
+    private static final int STREAMED_OPCODE = NetworkOpcode.FETCH_TRACK;
+
+    // A packet as sent, and whether it goes over the wire deflated
+    private static class Case {
+        final Packet packet;
+        final boolean compress;
+
+        Case(int nonce, int opcode, int length, boolean compress) {
+            byte[] payload = new byte[length];
+            // Text-like payloads so that deflate has something to do, random ones otherwise
+            if (compress) {
+                for (int i = 0; i < length; i++) {
+                    payload[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+                }
+            } else {
+                new Random(nonce).nextBytes(payload);
+            }
+            this.packet = new Packet(nonce, opcode, payload);
+            this.compress = compress;
+        }
+    }
+
+    private static final List<Case> CASES = Arrays.asList(
+            new Case(1, NetworkOpcode.HELLO, 0, false),
+            new Case(2, NetworkOpcode.FETCH_DB, 1, false),
+            new Case(3, NetworkOpcode.FETCH_DB, 100, false),
+            new Case(4, STREAMED_OPCODE, 0, false),
+            new Case(5, STREAMED_OPCODE, 5000, false),
+            new Case(6, NetworkOpcode.FETCH_DB, 70_000, true),
+            new Case(7, STREAMED_OPCODE, 200_000, true),
+            new Case(8, NetworkOpcode.FETCH_DB, Packet.HEADER_SIZE, false)
+    );
+
+    // Ways of cutting a byte stream into reads
+    private interface Fragmenter {
+        List<byte[]> split(byte[] wire);
+    }
+
+    private static final Fragmenter WHOLE = wire -> Arrays.asList(wire);
+    private static final Fragmenter BYTE_AT_A_TIME = wire -> fixedSize(wire, 1);
+    private static final Fragmenter HEADER_SIZED = wire -> fixedSize(wire, Packet.HEADER_SIZE - 1);
+    private static final Fragmenter SEGMENT_SIZED = wire -> fixedSize(wire, 1460);
+
+    @Test
+    public void decode_everyFragmentation() throws IOException {
+        byte[] wire = serialize(CASES);
+        for (Fragmenter fragmenter : Arrays.asList(WHOLE, BYTE_AT_A_TIME, HEADER_SIZED, SEGMENT_SIZED)) {
+            assertDecodes(CASES, fragmenter.split(wire));
+        }
+    }
+
+    @Test
+    public void decode_randomFragments() throws IOException {
+        byte[] wire = serialize(CASES);
+        for (int seed = 0; seed < 50; seed++) {
+            assertDecodes(CASES, randomFragments(wire, new Random(seed)));
+        }
+    }
+
+    @Test
+    public void decode_splitAtEveryBoundary() throws IOException {
+        // Small enough to try every split, and covering both the buffered and streamed paths
+        for (Case single : Arrays.asList(CASES.get(2), CASES.get(4))) {
+            List<Case> cases = Arrays.asList(single, CASES.get(1));
+            byte[] wire = serialize(cases);
+            for (int split = 0; split <= wire.length; split++) {
+                assertDecodes(cases, Arrays.asList(
+                        Arrays.copyOfRange(wire, 0, split),
+                        Arrays.copyOfRange(wire, split, wire.length)));
+            }
+        }
+    }
+
+    @Test
+    public void decode_returnsOnePacketPerCall() throws IOException {
+        PacketDecoder decoder = new PacketDecoder((nonce, opcode, length) -> null);
+        ByteBuffer in = ByteBuffer.wrap(serialize(CASES.subList(0, 3)));
+
+        assertEquals(1, decoder.decode(in).nonce);
+        assertTrue(in.hasRemaining());
+        assertEquals(2, decoder.decode(in).nonce);
+        assertEquals(3, decoder.decode(in).nonce);
+        assertFalse(in.hasRemaining());
+        assertNull(decoder.decode(in));
+    }
+
+    @Test
+    public void decode_reportsStreamingPayload() throws IOException {
+        PacketDecoder decoder = new PacketDecoder(new RecordingSinks());
+        byte[] wire = serialize(CASES.subList(4, 5));
+
+        // Header alone hasn't handed the sink anything yet
+        assertNull(decoder.decode(ByteBuffer.wrap(wire, 0, Packet.HEADER_SIZE)));
+        assertFalse(decoder.isStreamingPayload());
+        assertNull(decoder.decode(ByteBuffer.wrap(wire, Packet.HEADER_SIZE, 10)));
+        assertTrue(decoder.isStreamingPayload());
+        assertEquals(5, decoder.getCurrentNonce());
+
+        // And after a reset the next packet starts from scratch
+        decoder.reset();
+        assertFalse(decoder.isStreamingPayload());
+        Packet p = decoder.decode(ByteBuffer.wrap(serialize(CASES.subList(2, 3))));
+        assertEquals(3, p.nonce);
+        assertArrayEquals(CASES.get(2).packet.data, p.data);
+    }
+
+    @Test
+    public void decode_reportsWireSize() throws IOException {
+        PacketDecoder decoder = new PacketDecoder((nonce, opcode, length) -> null);
+        Case compressed = CASES.get(5);
+        byte[] wire = serialize(Arrays.asList(compressed));
+
+        Packet p = decoder.decode(ByteBuffer.wrap(wire));
+        assertArrayEquals(compressed.packet.data, p.data);
+        assertEquals(wire.length, decoder.getLastPacketSize());
+        assertTrue(wire.length < compressed.packet.data.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsNegativeLength() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Packet.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(NetworkOpcode.FETCH_DB).putInt(-1).flip();
+        new PacketDecoder((nonce, opcode, length) -> null).decode(header);
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsOversizedBufferedPayload() throws IOException {
+        // Fails on the header alone, before anything is allocated for the payload
+        ByteBuffer header = ByteBuffer.allocate(Packet.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(NetworkOpcode.FETCH_DB).putInt(PacketDecoder.MAX_BUFFERED_PAYLOAD + 1).flip();
+        new PacketDecoder((nonce, opcode, length) -> null).decode(header);
+    }
+
+    @Test
+    public void decode_streamsOversizedPayload() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Packet.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(STREAMED_OPCODE).putInt(Integer.MAX_VALUE).flip();
+        PacketDecoder decoder = new PacketDecoder(new RecordingSinks());
+        assertNull(decoder.decode(header));
+        assertEquals(1, decoder.getCurrentNonce());
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsOversizedInflatedPayload() throws IOException {
+        // Small on the wire, but too big to buffer once inflated
+        Case bomb = new Case(1, NetworkOpcode.FETCH_DB, PacketDecoder.MAX_BUFFERED_PAYLOAD + 1, true);
+        byte[] wire = serialize(Arrays.asList(bomb));
+        assertTrue(wire.length < PacketDecoder.MAX_BUFFERED_PAYLOAD);
+        new PacketDecoder((nonce, opcode, length) -> null).decode(ByteBuffer.wrap(wire));
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsTruncatedCompressedPayload() throws IOException {
+        // Claim less compressed data than the stream needs to finish
+        byte[] wire = serialize(CASES.subList(6, 7));
+        ByteBuffer in = ByteBuffer.wrap(wire);
+        int compressedLength = in.order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+        in.putInt(8, compressedLength / 2);
+        in.limit(Packet.HEADER_SIZE + compressedLength / 2);
+        new PacketDecoder(new RecordingSinks()).decode(in);
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsCorruptCompressedPayload() throws IOException {
+        byte[] wire = serialize(CASES.subList(5, 6));
+        Arrays.fill(wire, Packet.HEADER_SIZE, wire.length, (byte) 0xFF);
+        new PacketDecoder((nonce, opcode, length) -> null).decode(ByteBuffer.wrap(wire));
+    }
+
+    private static void assertDecodes(List<Case> cases, List<byte[]> reads) throws IOException {
+        RecordingSinks sinks = new RecordingSinks();
+        PacketDecoder decoder = new PacketDecoder(sinks);
+        List<Packet> decoded = new ArrayList<>();
+        for (byte[] read : reads) {
+            ByteBuffer in = ByteBuffer.wrap(read);
+            Packet p;
+            while ((p = decoder.decode(in)) != null) {
+                decoded.add(p);
+            }
+            assertFalse(in.hasRemaining());
+        }
+
+        assertEquals(cases.size(), decoded.size());
+        for (int i = 0; i < cases.size(); i++) {
+            Packet sent = cases.get(i).packet;
+            Packet received = decoded.get(i);
+            assertEquals(sent.nonce, received.nonce);
+            assertEquals(sent.opcode, received.opcode);
+            if (sent.opcode == STREAMED_OPCODE) {
+                // Streamed payloads go to the sink, and only once each
+                assertEquals(0, received.data.length);
+                assertArrayEquals(sent.data, sinks.completed.get(sent.nonce));
+            } else {
+                assertArrayEquals(sent.data, received.data);
+            }
+        }
+        assertEquals(sinks.opened, sinks.completed.size());
+    }
+
+    private static byte[] serialize(List<Case> cases) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Case c : cases) {
+            for (ByteBuffer buffer : c.packet.serialize(c.compress)) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> fixedSize(byte[] wire, int size) {
+        List<byte[]> reads = new ArrayList<>();
+        for (int i = 0; i < wire.length; i += size) {
+            reads.add(Arrays.copyOfRange(wire, i, Math.min(wire.length, i + size)));
+        }
+        return reads;
+    }
+
+    private static List<byte[]> randomFragments(byte[] wire, Random random) {
+        List<byte[]> reads = new ArrayList<>();
+        int i = 0;
+        while (i < wire.length) {
+            // Mostly small reads, with the odd large one, and some empty
+            int size = random.nextInt(8) == 0 ? random.nextInt(64 * 1024) : random.nextInt(32);
+            int end = Math.min(wire.length, i + size);
+            reads.add(Arrays.copyOfRange(wire, i, end));
+            i = end;
+        }
+        return reads;
+    }
+
+    // Claims STREAMED_OPCODE payloads, and keeps each one once it's complete
+    private static class RecordingSinks implements PacketDecoder.SinkProvider {
+        final Map<Integer, byte[]> completed = new HashMap<>();
+        int opened = 0;
+
+        @Override
+        public PayloadSink openSink(int nonce, int opcode, int length) {
+            if (opcode != STREAMED_OPCODE) {
+                return null;
+            }
+            opened++;
+            return new PayloadSink() {
+                final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+                @Override
+                public void onPayloadData(ByteBuffer data) {
+                    byte[] bytes = new byte[data.remaining()];
+                    data.get(bytes);
+                    received.write(bytes, 0, bytes.length);
+                }
+
+                @Override
+                public void onPayloadComplete() {
+                    assertNull(completed.put(nonce, received.toByteArray()));
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package com.schlaikjer.music.stubserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TCP proxy that sits between the client and a server and makes the link between them behave
+ * like a bad network, according to a {@link FaultProfile}. The profile can be changed at any
+ * time and applies to data forwarded from then on.
+ */
+public class FaultInjectingProxy implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(FaultInjectingProxy.class.getSimpleName());
+
+    private static final int READ_SIZE = 16 * 1024;
+    private static final long PACING_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final InetSocketAddress _upstream;
+    private volatile FaultProfile _profile = FaultProfile.NONE;
+    private final Random _random;
+
+    private ServerSocket _server_socket;
+    private final Set<Link> _links = ConcurrentHashMap.newKeySet();
+
+    // Totals across every connection
+    private final AtomicLong _bytes_to_client = new AtomicLong();
+    private final AtomicLong _bytes_to_server = new AtomicLong();
+    private final AtomicLong _disconnects = new AtomicLong();
+
+    /**
+     * @param seed Seed for the random faults, so that runs can be repeated
+     */
+    public FaultInjectingProxy(InetSocketAddress upstream, long seed) {
+        _upstream = upstream;
+        _random = new Random(seed);
+    }
+
+    public void setProfile(FaultProfile profile) {
+        _profile = profile;
+    }
+
+    public FaultProfile getProfile() {
+        return _profile;
+    }
+
+    /**
+     * Start listening on the loopback interface.
+     *
+     * @param port Port to listen on, or 0 for any free port
+     */
+    public void start(int port) throws IOException {
+        _server_socket = new ServerSocket();
+        _server_socket.setReuseAddress(true);
+        _server_socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread thread = new Thread(this::acceptLoop, "FaultProxy-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return _server_socket.getLocalPort();
+    }
+
+    public long getBytesToClient() {
+        return _bytes_to_client.get();
+    }
+
+    public long getBytesToServer() {
+        return _bytes_to_server.get();
+    }
+
+    public long getDisconnects() {
+        return _disconnects.get();
+    }
+
+    /**
+     * Drop every connection through the proxy, as if the network had gone away.
+     */
+    public void dropConnections() {
+        for (Link link : new ArrayList<>(_links)) {
+            link.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (_server_socket != null) {
+                _server_socket.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close proxy socket", e);
+        }
+        dropConnections();
+    }
+
+    private void acceptLoop() {
+        while (!_server_socket.isClosed()) {
+            try {
+                Socket client = _server_socket.accept();
+                Socket server = new Socket();
+                server.connect(_upstream);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                Link link = new Link(client, server);
+                _links.add(link);
+                link.start();
+            } catch (IOException e) {
+                if (!_server_socket.isClosed()) {
+                    LOG.log(Level.WARNING, "Failed to open proxied connection", e);
+                }
+            }
+        }
+    }
+
+    private synchronized long nextRandom(long bound) {
+        return bound <= 0 ? 0 : (long) (_random.nextDouble() * bound);
+    }
+
+    private synchronized boolean chance(double probability) {
+        return probability > 0 && _random.nextDouble() < probability;
+    }
+
+    // A chunk of data in transit, released once the link latency has passed
+    private static class Chunk implements Delayed {
+        final byte[] data;
+        final int length;
+        final long dueNanos;
+
+        Chunk(byte[] data, int length, long dueNanos) {
+            this.data = data;
+            this.length = length;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Chunk) other).dueNanos);
+        }
+    }
+
+    // One proxied connection: a client socket, its upstream socket, and a pump for each direction
+    private class Link {
+        private final Socket _client;
+        private final Socket _server;
+        // Downstream bytes left before this connection is dropped, or -1 for never
+        private long _disconnect_budget;
+        // When the data sent so far would have finished arriving at the capped bandwidth
+        private long _paced_until = 0;
+        private volatile boolean _closed = false;
+
+        Link(Socket client, Socket server) {
+            _client = client;
+            _server = server;
+            FaultProfile profile = _profile;
+            _disconnect_budget = profile.disconnectAfterMaxBytes <= 0 ? -1
+                    : profile.disconnectAfterMinBytes + nextRandom(profile.disconnectAfterMaxBytes - profile.disconnectAfterMinBytes);
+        }
+
+        void start() throws IOException {
+            startPump("up", _client.getInputStream(), _server.getOutputStream(), false);
+            startPump("down", _server.getInputStream(), _client.getOutputStream(), true);
+        }
+
+        void close() {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            _links.remove(this);
+            try {
+                _client.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to close client side", e);
+            }
+            try {
+                _server.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to close server side", e);
+            }
+        }
+
+        private void startPump(String name, InputStream in, OutputStream out, boolean downstream) {
+            DelayQueue<Chunk> inTransit = new DelayQueue<>();
+
+            // Reader stamps each chunk with when it should come out the other end
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!_closed) {
+                        byte[] buffer = new byte[READ_SIZE];
+                        int read = in.read(buffer);
+                        if (read < 0) {
+                            break;
+                        }
+                        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_profile.latencyMs);
+                        inTransit.put(new Chunk(buffer, read, due));
+                    }
+                } catch (IOException e) {
+                    // Socket closed
+                }
+                // Empty chunk marks the end of the stream
+                inTransit.put(new Chunk(new byte[0], -1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_profile.latencyMs)));
+            }, "FaultProxy-" + name + "-read");
+
+            // Writer releases chunks once due, mangling them on the way
+            Thread writer = new Thread(() -> {
+                try {
+                    while (!_closed) {
+                        Chunk chunk = inTransit.take();
+                        if (chunk.length < 0) {
+                            // Client finishing its side is passed on, so that the server can drain
+                            // its responses before closing. Anything else ends the connection
+                            if (!downstream && !_closed) {
+                                _server.shutdownOutput();
+                                return;
+                            }
+                            break;
+                        }
+                        if (downstream) {
+                            forwardWithFaults(chunk, out);
+                        } else {
+                            out.write(chunk.data, 0, chunk.length);
+                            out.flush();
+                            _bytes_to_server.addAndGet(chunk.length);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Socket closed
+                }
+                close();
+            }, "FaultProxy-" + name + "-write");
+
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void forwardWithFaults(Chunk chunk, OutputStream out) throws IOException, InterruptedException {
+            int position = 0;
+            while (position < chunk.length && !_closed) {
+                FaultProfile profile = _profile;
+
+                // Split into whatever size pieces the profile calls for
+                int length = chunk.length - position;
+                if (profile.maxFragmentSize > 0) {
+                    length = (int) Math.min(length, 1 + nextRandom(profile.maxFragmentSize));
+                }
+
+                // Drop the connection part way through if it's used up its budget
+                if (_disconnect_budget >= 0 && length >= _disconnect_budget) {
+                    out.write(chunk.data, position, (int) _disconnect_budget);
+                    out.flush();
+                    _bytes_to_client.addAndGet(_disconnect_budget);
+                    _disconnects.incrementAndGet();
+                    LOG.info("Dropping connection under profile " + profile.name);
+                    close();
+                    return;
+                }
+
+                if (chance(profile.stallProbability)) {
+                    Thread.sleep(profile.stallMs);
+                }
+
+                out.write(chunk.data, position, length);
+                out.flush();
+                _bytes_to_client.addAndGet(length);
+                if (_disconnect_budget >= 0) {
+                    _disconnect_budget -= length;
+                }
+                position += length;
+
+                // Pace to the bandwidth cap. Sleeps are batched up, since the pieces can be far
+                // smaller than the timer resolution
+                if (profile.bandwidthBytesPerSecond > 0) {
+                    long now = System.nanoTime();
+                    _paced_until = Math.max(_paced_until, now) + length * 1_000_000_000L / profile.bandwidthBytesPerSecond;
+                    if (_paced_until - now > PACING_GRANULARITY_NANOS) {
+                        TimeUnit.NANOSECONDS.sleep(_paced_until - now);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.schlaikjer.music.stubserver;
+
+/**
+ * How badly a {@link FaultInjectingProxy} should treat the traffic passing through it. Faults
+ * other than latency only apply to the server-to-client direction, which is where the bulk of the
+ * data goes.
+ */
+public class FaultProfile {
+
+    public final String name;
+    // Added to each direction of the link
+    public final long latencyMs;
+    // Cap on server-to-client throughput, or 0 for unlimited
+    public final long bandwidthBytesPerSecond;
+    // Writes are split into random pieces of at most this size, or 0 to forward reads whole
+    public final int maxFragmentSize;
+    // Chance of each forwarded piece stalling the link, and for how long
+    public final double stallProbability;
+    public final long stallMs;
+    // Each connection is dropped after a random amount of data in this range, or never if 0
+    public final long disconnectAfterMinBytes;
+    public final long disconnectAfterMaxBytes;
+
+    public FaultProfile(String name, long latencyMs, long bandwidthBytesPerSecond, int maxFragmentSize,
+                        double stallProbability, long stallMs,
+                        long disconnectAfterMinBytes, long disconnectAfterMaxBytes) {
+        this.name = name;
+        this.latencyMs = latencyMs;
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        this.maxFragmentSize = maxFragmentSize;
+        this.stallProbability = stallProbability;
+        this.stallMs = stallMs;
+        this.disconnectAfterMinBytes = disconnectAfterMinBytes;
+        this.disconnectAfterMaxBytes = disconnectAfterMaxBytes;
+    }
+
+    // Straight pass-through
+    public static final FaultProfile NONE = new FaultProfile("none", 0, 0, 0, 0, 0, 0, 0);
+
+    // Home wifi
+    public static final FaultProfile WIFI = new FaultProfile("wifi", 5, 10 * 1024 * 1024, 0, 0, 0, 0, 0);
+
+    // Decent cell signal - frames routinely split across reads
+    public static final FaultProfile LTE = new FaultProfile("lte", 40, 2 * 1024 * 1024, 1400, 0, 0, 0, 0);
+
+    // Weak signal - slow, tiny segments and the occasional multi-second stall
+    public static final FaultProfile WEAK_CELL = new FaultProfile("weak-cell", 150, 512 * 1024, 512, 0.002, 2000, 0, 0);
+
+    // Moving between cells - the connection drops every few megabytes
+    public static final FaultProfile FLAKY = new FaultProfile("flaky", 80, 1024 * 1024, 1400, 0.001, 1000, 1024 * 1024, 3 * 1024 * 1024);
+
+    public static final FaultProfile[] ALL = {NONE, WIFI, LTE, WEAK_CELL, FLAKY};
+
+}
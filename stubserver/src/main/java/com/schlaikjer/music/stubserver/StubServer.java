@@ -0,0 +1,548 @@
+package com.schlaikjer.music.stubserver;
+
+import com.schlaikjer.music.model.NetworkOpcode;
+import com.schlaikjer.music.model.Packet;
+import com.schlaikjer.music.model.PacketDecoder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for the musicd server that speaks the same wire protocol, backed by a
+ * {@link SyntheticLibrary}. Requests on a connection are answered in order by a writer thread,
+ * so CANCELs for anything not yet started are honoured the same way the real server does.
+ */
+public class StubServer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(StubServer.class.getSimpleName());
+
+    private static final int CHECKSUM_SIZE = 20;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final SyntheticLibrary _library;
+    private volatile boolean _compression_enabled = true;
+    private volatile boolean _ping_enabled = true;
+    // Content responses still to be damaged in transit, for testing checksum verification
+    private final AtomicInteger _corrupt_responses = new AtomicInteger();
+    // Told of every request as it arrives, for tests that check what the client sends and when
+    private volatile Consumer<Packet> _request_listener = null;
+    // While set, requests are taken in but not answered
+    private final Object _hold_lock = new Object();
+    private boolean _holding = false;
+    // Image batch records are sent in the order asked for unless this is set
+    private volatile boolean _batch_reversed = false;
+    // Records of the next image batch response to send before dropping the connection, or -1
+    private final AtomicInteger _batch_drop_after = new AtomicInteger(-1);
+
+    private ServerSocket _server_socket;
+    private Thread _accept_thread;
+    private final Set<Connection> _connections = ConcurrentHashMap.newKeySet();
+
+    // Totals across all connections, for benchmarks
+    private final AtomicLong _connection_count = new AtomicLong();
+    private final AtomicLong _request_count = new AtomicLong();
+    private final AtomicLong _bytes_sent = new AtomicLong();
+
+    public StubServer(SyntheticLibrary library) {
+        _library = library;
+    }
+
+    public SyntheticLibrary getLibrary() {
+        return _library;
+    }
+
+    /**
+     * Whether to offer deflate in the HELLO handshake. On by default, like the real server.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        _compression_enabled = enabled;
+    }
+
+    /**
+     * Whether to offer PING in the HELLO handshake. Turning it off stands in for an older server
+     * that doesn't know the opcode.
+     */
+    public void setPingEnabled(boolean enabled) {
+        _ping_enabled = enabled;
+    }
+
+    /**
+     * Flip a byte in each of the next count content responses, whole or ranged, so that what the
+     * client receives no longer matches its checksum.
+     */
+    public void corruptNextResponses(int count) {
+        _corrupt_responses.set(count);
+    }
+
+    /**
+     * Send the records of image batch responses last first. The protocol tags each record with
+     * its index, so clients must not rely on them arriving in order.
+     */
+    public void setBatchRecordsReversed(boolean reversed) {
+        _batch_reversed = reversed;
+    }
+
+    /**
+     * Close the connection partway through the next image batch response, once the given number of
+     * records have been sent.
+     */
+    public void dropMidBatch(int records) {
+        _batch_drop_after.set(records);
+    }
+
+    /**
+     * Have every request passed to the listener as it arrives, cancels included, before it is
+     * answered. Called on the connection's reader thread.
+     *
+     * @param listener Listener, or null for none
+     */
+    public void setRequestListener(Consumer<Packet> listener) {
+        _request_listener = listener;
+    }
+
+    /**
+     * Stop answering requests until {@link #releaseResponses}, as a busy server would. Requests
+     * still arrive, and cancels still take effect.
+     */
+    public void holdResponses() {
+        synchronized (_hold_lock) {
+            _holding = true;
+        }
+    }
+
+    public void releaseResponses() {
+        synchronized (_hold_lock) {
+            _holding = false;
+            _hold_lock.notifyAll();
+        }
+    }
+
+    private void awaitRelease() throws InterruptedException {
+        synchronized (_hold_lock) {
+            while (_holding) {
+                _hold_lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Start listening on the loopback interface.
+     *
+     * @param port Port to listen on, or 0 for any free port
+     */
+    public void start(int port) throws IOException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        _server_socket = new ServerSocket();
+        _server_socket.setReuseAddress(true);
+        _server_socket.bind(address);
+        _accept_thread = new Thread(this::acceptLoop, "StubServer-accept");
+        _accept_thread.setDaemon(true);
+        _accept_thread.start();
+        LOG.info("Serving " + _library.getTrackCount() + " tracks on " + _server_socket.getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return _server_socket.getLocalPort();
+    }
+
+    public long getConnectionCount() {
+        return _connection_count.get();
+    }
+
+    public long getRequestCount() {
+        return _request_count.get();
+    }
+
+    public long getBytesSent() {
+        return _bytes_sent.get();
+    }
+
+    /**
+     * Drop every open connection without stopping the server, as if the network had gone away.
+     * Connections are reset rather than closed, so anything not yet delivered is lost.
+     */
+    public void dropConnections() {
+        for (Connection connection : new ArrayList<>(_connections)) {
+            connection.reset();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (_server_socket != null) {
+                _server_socket.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close server socket", e);
+        }
+        dropConnections();
+    }
+
+    private void acceptLoop() {
+        while (!_server_socket.isClosed()) {
+            try {
+                Socket socket = _server_socket.accept();
+                socket.setTcpNoDelay(true);
+                _connection_count.incrementAndGet();
+                Connection connection = new Connection(socket);
+                _connections.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                if (!_server_socket.isClosed()) {
+                    LOG.log(Level.WARNING, "Accept failed", e);
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final Socket _socket;
+        private final ExecutorService _writer;
+        private final OutputStream _out;
+        // Requests the client withdrew before we got to them
+        private final Set<Integer> _cancelled = ConcurrentHashMap.newKeySet();
+        // Features agreed in the HELLO, only touched by the writer
+        private int _features = 0;
+        private final byte[] _content_buffer = new byte[IO_BUFFER_SIZE];
+
+        Connection(Socket socket) throws IOException {
+            _socket = socket;
+            _out = new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE);
+            _writer = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "StubServer-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void start() {
+            Thread reader = new Thread(this::readLoop, "StubServer-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void close() {
+            _connections.remove(this);
+            _writer.shutdownNow();
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to close connection", e);
+            }
+        }
+
+        void reset() {
+            try {
+                _socket.setSoLinger(true, 0);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to set linger on connection", e);
+            }
+            close();
+        }
+
+        private void readLoop() {
+            PacketDecoder decoder = new PacketDecoder((nonce, opcode, length) -> null);
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            try {
+                InputStream in = _socket.getInputStream();
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    Packet request;
+                    while ((request = decoder.decode(data)) != null) {
+                        onRequest(request);
+                    }
+                }
+
+                // Client has finished with us - answer what's left, then close
+                _writer.shutdown();
+                _writer.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (SocketException e) {
+                // Closed underneath us
+            } catch (IOException | InterruptedException e) {
+                LOG.log(Level.WARNING, "Connection failed", e);
+            }
+            close();
+        }
+
+        private void onRequest(Packet request) {
+            _request_count.incrementAndGet();
+            Consumer<Packet> listener = _request_listener;
+            if (listener != null) {
+                listener.accept(request);
+            }
+
+            // Cancels act immediately, everything else is answered in order
+            if (request.opcode == NetworkOpcode.CANCEL) {
+                if (request.data.length >= 4) {
+                    _cancelled.add(le(request.data).getInt(0));
+                }
+                return;
+            }
+
+            try {
+                _writer.execute(() -> {
+                    try {
+                        awaitRelease();
+                    } catch (InterruptedException e) {
+                        // Connection is closing
+                        return;
+                    }
+                    if (_cancelled.remove(request.nonce)) {
+                        return;
+                    }
+                    try {
+                        respond(request);
+                        _out.flush();
+                    } catch (IOException e) {
+                        LOG.log(Level.FINE, "Failed to write response", e);
+                        close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Connection is already closing
+            }
+        }
+
+        private void respond(Packet request) throws IOException {
+            ByteBuffer args = le(request.data);
+            switch (request.opcode) {
+                case NetworkOpcode.HELLO: {
+                    int offered = args.remaining() >= 4 ? args.getInt(0) : 0;
+                    _features = offered & ((_ping_enabled ? Packet.FEATURE_PING : 0) | (_compression_enabled ? Packet.FEATURE_DEFLATE : 0));
+                    writePacket(request, le(new byte[4]).putInt(_features).array(), false);
+                    break;
+                }
+
+                case NetworkOpcode.UPDATE_REMOTE_DB:
+                case NetworkOpcode.PING:
+                    writePacket(request, new byte[0], false);
+                    break;
+
+                case NetworkOpcode.FETCH_DB:
+                    writePacket(request, _library.getDatabaseBytes(), true);
+                    break;
+
+                case NetworkOpcode.FETCH_DB_DELTA: {
+                    long generation = args.remaining() >= 8 ? args.getLong(0) : 0;
+                    writePacket(request, _library.getDelta(generation).toByteArray(), true);
+                    break;
+                }
+
+                case NetworkOpcode.FETCH_DB_STREAM:
+                    writePacket(request, _library.getRecordStreamBytes(), true);
+                    break;
+
+                case NetworkOpcode.FETCH_TRACK:
+                    writeContent(request, _library.getTrack(checksum(request.data, 0)));
+                    break;
+
+                case NetworkOpcode.FETCH_IMAGE:
+                    writeContent(request, _library.getImage(checksum(request.data, 0)));
+                    break;
+
+                case NetworkOpcode.FETCH_IMAGE_THUMB: {
+                    int edge = args.remaining() >= CHECKSUM_SIZE + 4 ? args.getInt(CHECKSUM_SIZE) : 0;
+                    writeContent(request, _library.getThumbnail(checksum(request.data, 0), edge));
+                    break;
+                }
+
+                case NetworkOpcode.FETCH_TRACK_RANGE:
+                    writeTrackRange(request, args);
+                    break;
+
+                case NetworkOpcode.FETCH_IMAGES_BATCH:
+                    writeImageBatch(request, args);
+                    break;
+
+                default:
+                    LOG.warning("Unknown opcode " + request.opcode + " for nonce " + request.nonce);
+                    writePacket(request, new byte[0], false);
+                    break;
+            }
+        }
+
+        private void writePacket(Packet request, byte[] payload, boolean compressible) throws IOException {
+            boolean compress = compressible && (_features & Packet.FEATURE_DEFLATE) != 0;
+            for (ByteBuffer buffer : new Packet(request.nonce, request.opcode, payload).serialize(compress)) {
+                _out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                _bytes_sent.addAndGet(buffer.remaining());
+            }
+        }
+
+        private void writeHeader(Packet request, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Response for nonce " + request.nonce + " is too large");
+            }
+            ByteBuffer header = le(new byte[Packet.HEADER_SIZE]);
+            header.putInt(request.nonce).putInt(request.opcode).putInt((int) length);
+            _out.write(header.array());
+            _bytes_sent.addAndGet(Packet.HEADER_SIZE);
+        }
+
+        // Stream generated content without ever holding all of it
+        private void writeContentRange(SyntheticLibrary.Content content, long position, long length) throws IOException {
+            boolean corrupt = length > 0 && _corrupt_responses.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+            long end = position + length;
+            while (position < end) {
+                int n = content.read(position, _content_buffer, 0, (int) Math.min(_content_buffer.length, end - position));
+                if (n <= 0) {
+                    break;
+                }
+                if (corrupt) {
+                    _content_buffer[0] ^= 0x01;
+                    corrupt = false;
+                }
+                _out.write(_content_buffer, 0, n);
+                _bytes_sent.addAndGet(n);
+                position += n;
+            }
+        }
+
+        private void writeContent(Packet request, SyntheticLibrary.Content content) throws IOException {
+            if (content == null) {
+                writePacket(request, new byte[0], false);
+                return;
+            }
+            writeHeader(request, content.size);
+            writeContentRange(content, 0, content.size);
+        }
+
+        private void writeTrackRange(Packet request, ByteBuffer args) throws IOException {
+            if (args.remaining() < CHECKSUM_SIZE + 12) {
+                writePacket(request, new byte[0], false);
+                return;
+            }
+            SyntheticLibrary.Content content = _library.getTrack(checksum(request.data, 0));
+            if (content == null) {
+                writePacket(request, new byte[0], false);
+                return;
+            }
+
+            // Response is the total size, then as much of the range as the track covers
+            long offset = args.getLong(CHECKSUM_SIZE);
+            long length = args.getInt(CHECKSUM_SIZE + 8) & 0xFFFFFFFFL;
+            long start = Math.min(Math.max(0, offset), content.size);
+            long count = Math.min(length, content.size - start);
+            writeHeader(request, 8 + count);
+            _out.write(le(new byte[8]).putLong(content.size).array());
+            _bytes_sent.addAndGet(8);
+            writeContentRange(content, start, count);
+        }
+
+        private void writeImageBatch(Packet request, ByteBuffer args) throws IOException {
+            if (args.remaining() < 8) {
+                writePacket(request, new byte[0], false);
+                return;
+            }
+            int edge = args.getInt(0);
+            int count = Math.min(args.getInt(4), (args.remaining() - 8) / CHECKSUM_SIZE);
+
+            // Work out every record up front, since the total length leads the response
+            List<SyntheticLibrary.Content> images = new ArrayList<>(count);
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] checksum = checksum(request.data, 8 + i * CHECKSUM_SIZE);
+                SyntheticLibrary.Content image = edge > 0 ? _library.getThumbnail(checksum, edge) : _library.getImage(checksum);
+                images.add(image);
+                total += 8 + (image == null ? 0 : image.size);
+            }
+
+            writeHeader(request, total);
+            int dropAfter = _batch_drop_after.getAndSet(-1);
+            for (int n = 0; n < count; n++) {
+                if (n == dropAfter) {
+                    // Let what was sent arrive before the connection goes
+                    _out.flush();
+                    throw new IOException("Dropping connection after " + n + " batch records");
+                }
+                int i = _batch_reversed ? count - 1 - n : n;
+                SyntheticLibrary.Content image = images.get(i);
+                long size = image == null ? 0 : image.size;
+                _out.write(le(new byte[8]).putInt(i).putInt((int) size).array());
+                _bytes_sent.addAndGet(8);
+                if (image != null) {
+                    writeContentRange(image, 0, size);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer le(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] checksum(byte[] data, int offset) {
+        byte[] checksum = new byte[CHECKSUM_SIZE];
+        System.arraycopy(data, offset, checksum, 0, Math.max(0, Math.min(CHECKSUM_SIZE, data.length - offset)));
+        return checksum;
+    }
+
+    /**
+     * Run a stand-alone server, e.g. for pointing a device or emulator at.
+     * Arguments: [--port N] [--tracks N] [--track-size BYTES] [--image-size BYTES] [--no-compression]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 5959;
+        int tracks = 200_000;
+        long trackSize = SyntheticLibrary.DEFAULT_TRACK_SIZE;
+        int imageSize = SyntheticLibrary.DEFAULT_IMAGE_SIZE;
+        boolean compression = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--tracks":
+                    tracks = Integer.parseInt(args[++i]);
+                    break;
+                case "--track-size":
+                    trackSize = Long.parseLong(args[++i]);
+                    break;
+                case "--image-size":
+                    imageSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-compression":
+                    compression = false;
+                    break;
+                default:
+                    System.err.println("Unknown argument " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        StubServer server = new StubServer(new SyntheticLibrary(tracks, trackSize, imageSize));
+        server.setCompressionEnabled(compression);
+        // Listen on every interface, so that devices on the LAN can reach it
+        server.start(new InetSocketAddress(port));
+        Thread.currentThread().join();
+    }
+
+}
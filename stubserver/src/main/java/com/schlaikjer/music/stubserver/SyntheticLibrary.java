@@ -0,0 +1,328 @@
+package com.schlaikjer.music.stubserver;
+
+import com.google.protobuf.ByteString;
+import com.schlaikjer.msgs.TrackOuterClass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A generated music library of any size. Artists, albums and tracks are laid out the way musicd
+ * would index a real collection, and every track and cover has content of a plausible size.
+ * Content is never held in memory - it is generated on demand, so any range of it can be served,
+ * and the same checksum always yields the same bytes.
+ * <p>
+ * As with musicd, checksums are the SHA-1 of the content. To keep that affordable for libraries of
+ * hundreds of thousands of tracks, all content is cut from one shared stream of bytes and ends in a
+ * short tail of its own. One pass over the shared stream then covers every item, with each tail
+ * hashed on a copy of the digest.
+ */
+public class SyntheticLibrary {
+
+    public static final int TRACKS_PER_ALBUM = 12;
+    public static final int ALBUMS_PER_ARTIST = 5;
+
+    public static final long DEFAULT_TRACK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_IMAGE_SIZE = 256 * 1024;
+
+    private static final String LIBRARY_ROOT = "/music";
+    private static final String[] GENRES = {"Rock", "Jazz", "Electronic", "Classical", "Folk", "Hip-Hop"};
+
+    // Seed of the stream all content starts with, and how long each item's own tail is
+    private static final long SHARED_SEED = 0x6D7573696364L;
+    private static final int TAIL_SIZE = 64;
+
+    // Content of a single track or image
+    public static class Content {
+        public final byte[] checksum;
+        public final long size;
+        final long seed;
+
+        Content(byte[] checksum, long size, long seed) {
+            this.checksum = checksum;
+            this.size = size;
+            this.seed = seed;
+        }
+
+        /**
+         * Copy part of the content into a buffer. Reads past the end of the content are truncated.
+         *
+         * @return Number of bytes copied
+         */
+        public int read(long position, byte[] dest, int offset, int length) {
+            int count = (int) Math.max(0, Math.min(length, size - position));
+            long tailStart = size - tailLength(size);
+            int shared = (int) Math.max(0, Math.min(count, tailStart - position));
+            fill(SHARED_SEED, position, dest, offset, shared);
+            fill(seed, position + shared - tailStart, dest, offset + shared, count - shared);
+            return count;
+        }
+    }
+
+    private final int _track_count;
+    private final long _generation;
+    private final TrackOuterClass.MusicDatabase _database;
+    private final Map<ByteBuffer, Content> _tracks = new HashMap<>();
+    private final Map<ByteBuffer, Content> _images = new HashMap<>();
+
+    // Serialized forms, built on first use
+    private byte[] _database_bytes;
+    private byte[] _record_stream_bytes;
+
+    public SyntheticLibrary(int trackCount) {
+        this(trackCount, DEFAULT_TRACK_SIZE, DEFAULT_IMAGE_SIZE);
+    }
+
+    /**
+     * @param trackCount Number of tracks in the library
+     * @param trackSize  Mean track size in bytes. Individual tracks vary by up to a quarter either way
+     * @param imageSize  Mean cover image size in bytes, varying the same way
+     */
+    public SyntheticLibrary(int trackCount, long trackSize, int imageSize) {
+        _track_count = trackCount;
+        _generation = 1;
+
+        // Sizes and seeds come from each item's name, and the checksums then from its content
+        int albumCount = (trackCount + TRACKS_PER_ALBUM - 1) / TRACKS_PER_ALBUM;
+        long[] imageSizes = new long[albumCount];
+        long[] imageSeeds = new long[albumCount];
+        for (int album = 0; album < albumCount; album++) {
+            byte[] id = sha1(("image/" + album).getBytes(StandardCharsets.UTF_8));
+            imageSizes[album] = vary(imageSize, id);
+            imageSeeds[album] = seed(id);
+        }
+        long[] trackSizes = new long[trackCount];
+        long[] trackSeeds = new long[trackCount];
+        for (int index = 0; index < trackCount; index++) {
+            byte[] id = sha1(("track/" + index).getBytes(StandardCharsets.UTF_8));
+            trackSizes[index] = vary(trackSize, id);
+            trackSeeds[index] = seed(id);
+        }
+        byte[][] imageChecksums = checksums(imageSizes, imageSeeds);
+        byte[][] trackChecksums = checksums(trackSizes, trackSeeds);
+
+        TrackOuterClass.MusicDatabase.Builder db = TrackOuterClass.MusicDatabase.newBuilder();
+        for (int album = 0; album < albumCount; album++) {
+            int artist = album / ALBUMS_PER_ARTIST;
+            String artistName = String.format("Artist %05d", artist);
+            String albumName = String.format("Album %06d", album);
+            String albumPath = LIBRARY_ROOT + "/" + artistName + "/" + albumName;
+
+            // One cover per album
+            byte[] imageChecksum = imageChecksums[album];
+            Content image = new Content(imageChecksum, imageSizes[album], imageSeeds[album]);
+            _images.put(ByteBuffer.wrap(imageChecksum), image);
+            db.addImages(TrackOuterClass.Image.newBuilder()
+                    .setRawPath(albumPath + "/cover.jpg")
+                    .setParentPath(albumPath)
+                    .setChecksum(ByteString.copyFrom(imageChecksum))
+                    .setSizeBytes(imageSizes[album])
+                    .build());
+
+            for (int n = 0; n < TRACKS_PER_ALBUM; n++) {
+                int index = album * TRACKS_PER_ALBUM + n;
+                if (index >= trackCount) {
+                    break;
+                }
+
+                byte[] trackChecksum = trackChecksums[index];
+                Content track = new Content(trackChecksum, trackSizes[index], trackSeeds[index]);
+                _tracks.put(ByteBuffer.wrap(trackChecksum), track);
+
+                String title = String.format("Track %07d", index);
+                db.addTracks(TrackOuterClass.Track.newBuilder()
+                        .setRawPath(String.format("%s/%02d - %s.flac", albumPath, n + 1, title))
+                        .setParentPath(albumPath)
+                        .setChecksum(ByteString.copyFrom(trackChecksum))
+                        .setTagTitle(title)
+                        .setTagArtist(artistName)
+                        .setTagAlbum(albumName)
+                        .setTagYear(1960 + album % 60)
+                        .setTagTrack(n + 1)
+                        .setTagGenre(GENRES[artist % GENRES.length])
+                        .setSizeBytes(trackSizes[index])
+                        .build());
+            }
+        }
+        db.setGeneration(_generation);
+        _database = db.build();
+    }
+
+    public int getTrackCount() {
+        return _track_count;
+    }
+
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public TrackOuterClass.MusicDatabase getDatabase() {
+        return _database;
+    }
+
+    /**
+     * @return Track content for the checksum, or null if there is no such track
+     */
+    public Content getTrack(byte[] checksum) {
+        return _tracks.get(ByteBuffer.wrap(checksum));
+    }
+
+    /**
+     * @return Image content for the checksum, or null if there is no such image
+     */
+    public Content getImage(byte[] checksum) {
+        return _images.get(ByteBuffer.wrap(checksum));
+    }
+
+    /**
+     * @return A downscaled copy of the image, sized as a JPEG of that edge size would roughly be
+     */
+    public Content getThumbnail(byte[] checksum, int edgeSize) {
+        Content image = getImage(checksum);
+        if (image == null || edgeSize <= 0) {
+            return image;
+        }
+        long size = Math.min(image.size, Math.max(1024, (long) edgeSize * edgeSize / 4));
+        return new Content(image.checksum, size, image.seed ^ edgeSize);
+    }
+
+    public synchronized byte[] getDatabaseBytes() {
+        if (_database_bytes == null) {
+            _database_bytes = _database.toByteArray();
+        }
+        return _database_bytes;
+    }
+
+    /**
+     * @return The library as a FETCH_DB_STREAM response: each track and image as a length-delimited
+     * DatabaseRecord, then the generation
+     */
+    public synchronized byte[] getRecordStreamBytes() {
+        if (_record_stream_bytes != null) {
+            return _record_stream_bytes;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(getDatabaseBytes().length + _track_count * 4);
+        try {
+            for (TrackOuterClass.Track track : _database.getTracksList()) {
+                TrackOuterClass.DatabaseRecord.newBuilder().setTrack(track).build().writeDelimitedTo(out);
+            }
+            for (TrackOuterClass.Image image : _database.getImagesList()) {
+                TrackOuterClass.DatabaseRecord.newBuilder().setImage(image).build().writeDelimitedTo(out);
+            }
+            TrackOuterClass.DatabaseRecord.newBuilder().setGeneration(_generation).build().writeDelimitedTo(out);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+        _record_stream_bytes = out.toByteArray();
+        return _record_stream_bytes;
+    }
+
+    /**
+     * The library never changes, so a client that is up to date gets an empty delta and anyone
+     * else gets a full snapshot.
+     */
+    public TrackOuterClass.MusicDatabaseDelta getDelta(long sinceGeneration) {
+        TrackOuterClass.MusicDatabaseDelta.Builder delta = TrackOuterClass.MusicDatabaseDelta.newBuilder()
+                .setGeneration(_generation);
+        if (sinceGeneration != _generation) {
+            delta.setFull(true)
+                    .addAllAddedTracks(_database.getTracksList())
+                    .addAllAddedImages(_database.getImagesList());
+        }
+        return delta.build();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] sha1(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    /**
+     * SHA-1 of the content of each item, given their sizes and tail seeds.
+     */
+    private static byte[][] checksums(long[] sizes, long[] seeds) {
+        // Visit items in order of how much of the shared stream they use, so that a single pass
+        // over it reaches each one in turn
+        Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> sizes[i] - tailLength(sizes[i])));
+
+        byte[][] checksums = new byte[sizes.length][];
+        MessageDigest shared = newDigest();
+        long hashed = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            for (int i : order) {
+                long sharedLength = sizes[i] - tailLength(sizes[i]);
+                while (hashed < sharedLength) {
+                    int length = (int) Math.min(buffer.length, sharedLength - hashed);
+                    fill(SHARED_SEED, hashed, buffer, 0, length);
+                    shared.update(buffer, 0, length);
+                    hashed += length;
+                }
+
+                MessageDigest item = (MessageDigest) shared.clone();
+                int tail = tailLength(sizes[i]);
+                fill(seeds[i], 0, buffer, 0, tail);
+                item.update(buffer, 0, tail);
+                checksums[i] = item.digest();
+            }
+        } catch (CloneNotSupportedException e) {
+            // SHA-1 digests are always cloneable
+            throw new RuntimeException(e);
+        }
+        return checksums;
+    }
+
+    private static int tailLength(long size) {
+        return (int) Math.min(TAIL_SIZE, size);
+    }
+
+    // Content streams are a series of 64 bit words, each derived from the stream seed and its index
+    private static void fill(long streamSeed, long position, byte[] dest, int offset, int count) {
+        for (int i = 0; i < count; ) {
+            long word = mix(streamSeed + ((position + i) >>> 3));
+            for (int b = (int) ((position + i) & 7); b < 8 && i < count; b++, i++) {
+                dest[offset + i] = (byte) (word >>> (b * 8));
+            }
+        }
+    }
+
+    private static long seed(byte[] checksum) {
+        return ByteBuffer.wrap(checksum).getLong();
+    }
+
+    private static long vary(long mean, byte[] checksum) {
+        // Somewhere between three quarters and five quarters of the mean
+        long spread = Math.max(1, mean / 2);
+        return mean - mean / 4 + Math.floorMod(seed(checksum) >>> 1, spread);
+    }
+
+    // SplitMix64 finalizer - cheap, and good enough that content doesn't compress
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}